@@ -1,18 +1,61 @@
 package org.example;
 
 import org.example.peer.PeerNode;
+import org.example.tracker.TrackerClient;
+import org.example.tracker.UdpTracker;
 import org.example.util.Logger;
 import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+/**
+ * Options:
+ * --tracker host:port   also announce to this UDP tracker (repeatable)
+ * --run-tracker port    run a UDP tracker in this process, for peers multicast doesn't reach
+ */
 public class Main {
     public static void main(String[] args) {
         Logger.setLevel(Logger.Level.INFO);
 
+        // Validate every option before anything binds a port
+        List<InetSocketAddress> trackers = new ArrayList<>();
+        int trackerPort = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--tracker":
+                        trackers.add(TrackerClient.parseAddress(optionValue(args, i++)));
+                        break;
+                    case "--run-tracker":
+                        trackerPort = parsePort(optionValue(args, i++));
+                        break;
+                    case "-h":
+                    case "--help":
+                        printUsage();
+                        return;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+
         try {
             // Choose random port in range 6881-6889
             int port = 6881 + (int)(Math.random() * 9);
             PeerNode node = new PeerNode(port);
+            trackers.forEach(node::addTracker);
+
+            UdpTracker tracker = null;
+            if (trackerPort > 0) {
+                tracker = new UdpTracker(trackerPort);
+                tracker.start();
+            }
             node.start();
 
             Scanner scanner = new Scanner(System.in);
@@ -35,10 +78,12 @@ public class Main {
                         break;
                     case "3":
                         node.stop();
+                        if (tracker != null) tracker.stop();
                         System.exit(0);
                         break;
                     case "4":
                         node.showNetworkStatus();
+                        if (tracker != null) System.out.println("Tracker: " + tracker.getStats());
                         break;
                     default:
                         System.out.println("Invalid option");
@@ -50,9 +95,33 @@ public class Main {
         }
     }
 
+    /**
+     * Value of the option at args[i], which must follow it
+     */
+    private static String optionValue(String[] args, int i) {
+        if (i + 1 >= args.length) throw new IllegalArgumentException(args[i] + " needs a value");
+        return args[i + 1];
+    }
+
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            if (port >= 1 && port <= 65535) return port;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid port " + value);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: org.example.Main [--tracker host:port]... [--run-tracker port]");
+        System.err.println("  --tracker host:port   also announce to this UDP tracker (repeatable)");
+        System.err.println("  --run-tracker port    run a UDP tracker in this process");
+    }
+
     private static void shareFile(PeerNode node, Scanner scanner) {
         try {
-            System.out.print("Enter file path: ");
+            System.out.print("Enter file or directory path: ");
             String filePath = scanner.nextLine();
             File file = new File(filePath);
 
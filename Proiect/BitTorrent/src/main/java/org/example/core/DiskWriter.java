@@ -0,0 +1,194 @@
+package org.example.core;
+
+import org.example.util.Logger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage for verified pieces
+ * - pieces are queued in memory and flushed every flushIntervalMs
+ * - a flush sorts the queue by file offset and merges adjacent pieces
+ *   into one gathering write
+ * - force() is issued at most every forceIntervalMs, after which the
+ *   written pieces are reported as durable
+ * Without a scheduler every submit is written and forced immediately.
+ */
+public class DiskWriter {
+    public interface DurabilityListener {
+        void onDurable(List<Integer> pieceIndexes);
+    }
+
+    private static final int MAX_BUFFERS_PER_WRITE = 64; // keep gathering writes under IOV_MAX
+
+    private final Storage storage;
+    private final ScheduledExecutorService scheduler;
+    private final long forceIntervalMs;
+    private final long maxPendingBytes;
+    private final DurabilityListener listener;
+
+    private final ConcurrentSkipListMap<Long, PendingWrite> queue;   // offset -> write
+    private final Map<Integer, PendingWrite> byPiece;               // for reads of queued pieces
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final List<Integer> writtenNotForced = new ArrayList<>(); // guarded by this
+    private ScheduledFuture<?> flushTask;
+    private long lastForce;
+    private volatile boolean closed;
+
+    // Stats
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong piecesWritten = new AtomicLong();
+    private final AtomicLong forceCalls = new AtomicLong();
+
+    public DiskWriter(Storage storage, ScheduledExecutorService scheduler,
+                      long flushIntervalMs, long forceIntervalMs, long maxPendingBytes,
+                      DurabilityListener listener) {
+        this.storage = storage;
+        this.scheduler = scheduler;
+        this.forceIntervalMs = forceIntervalMs;
+        this.maxPendingBytes = maxPendingBytes;
+        this.listener = listener;
+        this.queue = new ConcurrentSkipListMap<>();
+        this.byPiece = new ConcurrentHashMap<>();
+        this.lastForce = System.currentTimeMillis();
+
+        if (scheduler != null) {
+            this.flushTask = scheduler.scheduleWithFixedDelay(this::flushQuietly,
+                    flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue a verified piece for writing
+     */
+    public void submit(int pieceIndex, long offset, byte[] data) throws IOException {
+        if (closed) throw new IOException("Disk writer closed");
+
+        PendingWrite write = new PendingWrite(pieceIndex, offset, data);
+        byPiece.put(pieceIndex, write);
+        queue.put(offset, write);
+        long pending = pendingBytes.addAndGet(data.length);
+
+        if (scheduler == null) {
+            flush(true);
+        } else if (pending >= maxPendingBytes) {
+            // Don't let the queue grow without bound between ticks
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Data of a piece that is queued but not written yet, or null
+     */
+    public byte[] getQueued(int pieceIndex) {
+        PendingWrite write = byPiece.get(pieceIndex);
+        return write != null ? write.data : null;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush(false);
+        } catch (IOException e) {
+            Logger.error("Write-behind flush failed for " + storage.getDisplayName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write everything queued, then force if the interval elapsed (or forceNow)
+     */
+    public synchronized void flush(boolean forceNow) throws IOException {
+        if (!queue.isEmpty()) {
+            writeQueued();
+        }
+
+        long now = System.currentTimeMillis();
+        if (!writtenNotForced.isEmpty() && (forceNow || now - lastForce >= forceIntervalMs)) {
+            storage.force();
+            forceCalls.incrementAndGet();
+            lastForce = now;
+
+            List<Integer> durable = new ArrayList<>(writtenNotForced);
+            writtenNotForced.clear();
+            if (listener != null) {
+                listener.onDurable(durable);
+            }
+        }
+    }
+
+    private void writeQueued() throws IOException {
+        // Drain in offset order, merging runs of adjacent pieces
+        List<PendingWrite> run = new ArrayList<>();
+        Map.Entry<Long, PendingWrite> entry;
+        while ((entry = queue.pollFirstEntry()) != null) {
+            PendingWrite write = entry.getValue();
+            if (!run.isEmpty()) {
+                PendingWrite last = run.get(run.size() - 1);
+                boolean adjacent = last.offset + last.data.length == write.offset;
+                if (!adjacent || run.size() == MAX_BUFFERS_PER_WRITE) {
+                    writeRun(run);
+                    run.clear();
+                }
+            }
+            run.add(write);
+        }
+        if (!run.isEmpty()) {
+            writeRun(run);
+        }
+    }
+
+    private void writeRun(List<PendingWrite> run) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(run.get(i).data);
+        }
+
+        try {
+            storage.write(run.get(0).offset, buffers);
+        } catch (IOException e) {
+            // Put the run back so the next flush retries it
+            for (PendingWrite write : run) {
+                queue.putIfAbsent(write.offset, write);
+            }
+            throw e;
+        }
+        writeCalls.incrementAndGet();
+
+        for (PendingWrite write : run) {
+            writtenNotForced.add(write.pieceIndex);
+            byPiece.remove(write.pieceIndex, write);
+            pendingBytes.addAndGet(-write.data.length);
+        }
+        piecesWritten.addAndGet(run.size());
+    }
+
+    /**
+     * Flush and force everything, the storage itself stays open
+     */
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        flush(true);
+    }
+
+    public long getPendingBytes() { return pendingBytes.get(); }
+    public long getWriteCalls() { return writeCalls.get(); }
+    public long getPiecesWritten() { return piecesWritten.get(); }
+    public long getForceCalls() { return forceCalls.get(); }
+
+    private static class PendingWrite {
+        final int pieceIndex;
+        final long offset;
+        final byte[] data;
+
+        PendingWrite(int pieceIndex, long offset, byte[] data) {
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.example.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-wide LRU cache of open FileChannels
+ * - at most maxOpen channels stay open across all torrents
+ * - callers acquire() a handle, use it, and release() it; a handle in use is
+ *   never closed, eviction of a busy handle is deferred until its last release
+ * - closed files are simply reopened by the next acquire()
+ * Open/close counters are kept so the cap can be sized from real churn.
+ */
+public class FileHandleCache {
+    public static final int DEFAULT_MAX_OPEN = 512;
+
+    private final int maxOpen;
+    private final LinkedHashMap<String, Handle> handles; // access order, guarded by this
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong opens = new AtomicLong();
+    private final AtomicLong closes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FileHandleCache(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+        this.handles = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Get an open channel for a file, opening it if needed
+     * Must be paired with release()
+     */
+    public Handle acquire(File file) throws IOException {
+        String key = file.getAbsolutePath();
+
+        synchronized (this) {
+            Handle handle = handles.get(key);
+            if (handle != null && handle.channel.isOpen()) {
+                handle.refCount++;
+                hits.incrementAndGet();
+                return handle;
+            }
+        }
+
+        // Open outside the lock, a slow disk shouldn't block other torrents
+        FileChannel channel = open(file);
+        opens.incrementAndGet();
+
+        synchronized (this) {
+            Handle existing = handles.get(key);
+            if (existing != null && existing.channel.isOpen()) {
+                // Lost a race with another opener, keep theirs
+                closeQuietly(channel);
+                existing.refCount++;
+                return existing;
+            }
+
+            Handle handle = new Handle(channel);
+            handle.refCount = 1;
+            handles.put(key, handle);
+            evictIfNeeded();
+            return handle;
+        }
+    }
+
+    public synchronized void release(Handle handle) {
+        handle.refCount--;
+        if (handle.refCount == 0 && handle.evicted) {
+            closeQuietly(handle.channel);
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            Handle lru = it.next().getValue();
+            it.remove();
+            evictions.incrementAndGet();
+            lru.evicted = true;
+            if (lru.refCount == 0) {
+                closeQuietly(lru.channel);
+            }
+        }
+    }
+
+    /**
+     * Close the cached handles of the given files (torrent closed)
+     */
+    public synchronized void closeAll(Iterable<File> files) {
+        for (File file : files) {
+            Handle handle = handles.remove(file.getAbsolutePath());
+            if (handle != null) {
+                handle.evicted = true;
+                if (handle.refCount == 0) closeQuietly(handle.channel);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Handle handle : handles.values()) {
+            handle.evicted = true;
+            if (handle.refCount == 0) closeQuietly(handle.channel);
+        }
+        handles.clear();
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (AccessDeniedException e) {
+            // Seeding a file we may not modify
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+                closes.incrementAndGet();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // Metrics
+    public int getMaxOpen() { return maxOpen; }
+    public synchronized int getOpenCount() { return handles.size(); }
+    public long getHits() { return hits.get(); }
+    public long getOpens() { return opens.get(); }
+    public long getCloses() { return closes.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    public String getStats() {
+        long h = hits.get(), o = opens.get();
+        double hitRate = (h + o) == 0 ? 100.0 : 100.0 * h / (h + o);
+        return String.format("%d/%d open, %d opens, %d closes, %d evictions, %.1f%% hit rate",
+                getOpenCount(), maxOpen, o, closes.get(), evictions.get(), hitRate);
+    }
+
+    /**
+     * A reference-counted open file
+     */
+    public static class Handle {
+        private final FileChannel channel;
+        private int refCount;     // guarded by the cache
+        private boolean evicted;  // guarded by the cache
+
+        Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+    }
+}
@@ -1,34 +1,72 @@
 package org.example.core;
 
+import org.example.core.protocol.Request;
 import org.example.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * Manages file storage, reading, and writing of pieces
  */
 public class FileManager {
+    // Write-behind tuning
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("bittorrent.flushIntervalMs", 200);
+    private static final long FSYNC_INTERVAL_MS = Long.getLong("bittorrent.fsyncIntervalMs", 2000);
+    private static final long MAX_PENDING_WRITE_BYTES = Long.getLong("bittorrent.maxPendingWriteBytes", 16 * 1024 * 1024);
+
     private final TorrentFile torrent;
     private final File downloadDir;
-    private final File targetFile;
-    private final BitSet havePieces; // which pieces we have
+    private final Storage storage; // maps pieces onto the torrent's file(s)
+    private final PieceBitmap havePieces; // which pieces we have
     private final Map<Integer, byte[]> pieceCache; // in-memory cache
+    private final Executor hashExecutor; // runs SHA-1 verification + disk write
+    private final Map<Integer, CompletableFuture<Boolean>> inFlightWrites; // pieces being verified
+    private final ResumeData resumeData; // pieces known to be durable on disk
+    private final DiskWriter diskWriter; // write-behind queue for verified pieces
+    private final Object pieceArrived = new Object(); // notified when a piece becomes available
 
     public FileManager(TorrentFile torrent, File downloadDir) {
+        this(torrent, downloadDir, Runnable::run, null, new FileHandleCache(FileHandleCache.DEFAULT_MAX_OPEN));
+    }
+
+    /**
+     * @param hashExecutor runs piece verification
+     * @param ioScheduler  drives write-behind flushes; null writes and forces every piece immediately
+     * @param handleCache  node-wide cache of open files
+     */
+    public FileManager(TorrentFile torrent, File downloadDir, Executor hashExecutor,
+                       ScheduledExecutorService ioScheduler, FileHandleCache handleCache) {
         this.torrent = torrent;
         this.downloadDir = downloadDir;
-        this.targetFile = new File(downloadDir, torrent.getName());
-        this.havePieces = new BitSet(torrent.getNumPieces());
+        this.storage = new Storage(torrent, downloadDir, handleCache);
+        this.havePieces = new PieceBitmap(torrent.getNumPieces());
         this.pieceCache = new ConcurrentHashMap<>();
+        this.hashExecutor = hashExecutor;
+        this.inFlightWrites = new ConcurrentHashMap<>();
+        this.resumeData = new ResumeData(new File(downloadDir, torrent.getName() + ".resume"),
+                torrent.getInfoHash(), torrent.getNumPieces(),
+                (int)((torrent.getPieceLength() + Request.BLOCK_SIZE - 1) / Request.BLOCK_SIZE));
+        this.diskWriter = new DiskWriter(storage, ioScheduler,
+                FLUSH_INTERVAL_MS, FSYNC_INTERVAL_MS, MAX_PENDING_WRITE_BYTES,
+                resumeData::markDurable);
 
-        // Check existing file
-        if (targetFile.exists()) {
+        // Check existing file(s)
+        boolean existing = storage.anyExists();
+        if (existing && storage.isAllocated() && resumeData.load()) {
+            loadResumeData();
+        } else if (existing) {
             verifyExistingFile();
-        } else {
-            // Pre-allocate file
+        }
+
+        // Pre-allocate missing or short files
+        if (!storage.isAllocated()) {
             try {
-                createEmptyFile();
+                storage.allocate();
             } catch (IOException e) {
                 Logger.error("Failed to create file: " + e.getMessage());
             }
@@ -36,13 +74,19 @@ public class FileManager {
     }
 
     /**
-     * Pre-allocate file with correct size
+     * Trust the resume file instead of re-hashing the whole file
      */
-    private void createEmptyFile() throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(targetFile, "rw")) {
-            raf.setLength(torrent.getTotalLength());
+    private void loadResumeData() {
+        PieceBitmap durable = resumeData.getDurablePieces();
+        for (int w = 0; w < durable.wordCount(); w++) {
+            long word = durable.word(w);
+            while (word != 0) {
+                havePieces.set((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
         }
-        Logger.info("Created empty file: " + targetFile.getPath());
+        Logger.info("Resumed " + torrent.getName() + ": have " + havePieces.count() + "/" +
+                torrent.getNumPieces() + " pieces");
     }
 
     /**
@@ -50,9 +94,9 @@ public class FileManager {
      */
     private void verifyExistingFile() {
         Logger.info("Verifying existing file...");
-        try (RandomAccessFile raf = new RandomAccessFile(targetFile, "r")) {
+        try {
             for (int i = 0; i < torrent.getNumPieces(); i++) {
-                byte[] piece = readPieceFromDisk(raf, i);
+                byte[] piece = storage.readPiece(i);
                 if (piece != null && verifyPiece(i, piece)) {
                     havePieces.set(i);
                 }
@@ -61,67 +105,145 @@ public class FileManager {
             Logger.error("Error verifying file: " + e.getMessage());
         }
 
-        Logger.info("Have " + havePieces.cardinality() + "/" +
+        Logger.info("Have " + havePieces.count() + "/" +
                 torrent.getNumPieces() + " pieces");
-    }
 
-    /**
-     * Read piece from disk
-     */
-    private byte[] readPieceFromDisk(RandomAccessFile raf, int pieceIndex) throws IOException {
-        long offset = (long)pieceIndex * torrent.getPieceLength();
-        int length = (pieceIndex == torrent.getNumPieces() - 1) ?
-                torrent.getLastPieceLength() : (int)torrent.getPieceLength();
-
-        byte[] data = new byte[length];
-        raf.seek(offset);
-        int bytesRead = raf.read(data);
+        // Pieces read back from the file are on disk, record them for next start
+        resumeData.markDurable(indexesOf(havePieces));
+    }
 
-        return (bytesRead == length) ? data : null;
+    private static List<Integer> indexesOf(PieceBitmap bitmap) {
+        List<Integer> indexes = new ArrayList<>(bitmap.count());
+        for (int i = 0; i < bitmap.size(); i++) {
+            if (bitmap.get(i)) indexes.add(i);
+        }
+        return indexes;
     }
 
     /**
      * Verify piece integrity
      */
     private boolean verifyPiece(int pieceIndex, byte[] data) {
-        byte[] expectedHash = torrent.getPieceHash(pieceIndex);
-        byte[] actualHash = Hash.sha1(data);
-        return Arrays.equals(expectedHash, actualHash);
+        return torrent.verifyPiece(pieceIndex, data, 0, data.length);
+    }
+
+    /**
+     * Write piece to disk, blocking until it is verified and written
+     */
+    public boolean writePiece(int pieceIndex, byte[] data) {
+        return writePieceAsync(pieceIndex, data).join();
     }
 
     /**
-     * Write piece to disk
+     * Verify and write a piece on the hashing executor
+     * Completes with true once the piece is queued for disk and marked as present,
+     * false if verification failed. It is recorded in the resume file only after
+     * the write-behind stage has forced it to disk.
+     * Different pieces are hashed and written in parallel; a piece that is
+     * already being verified returns the future of that attempt.
      */
-    public synchronized boolean writePiece(int pieceIndex, byte[] data) {
+    public CompletableFuture<Boolean> writePieceAsync(int pieceIndex, byte[] data) {
         if (havePieces.get(pieceIndex)) {
-            return true;
+            return CompletableFuture.completedFuture(true);
+        }
+
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlightWrites.putIfAbsent(pieceIndex, future);
+        if (existing != null) {
+            return existing;
         }
 
+        try {
+            hashExecutor.execute(() -> {
+                boolean ok = false;
+                try {
+                    ok = verifyAndWrite(pieceIndex, data);
+                } finally {
+                    inFlightWrites.remove(pieceIndex);
+                    future.complete(ok);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Executor rejected the task (shutting down)
+            inFlightWrites.remove(pieceIndex);
+            future.complete(false);
+        }
+        return future;
+    }
+
+    private boolean verifyAndWrite(int pieceIndex, byte[] data) {
         // Verify piece
         if (!verifyPiece(pieceIndex, data)) {
             Logger.warn("Piece " + pieceIndex + " failed verification");
             return false;
         }
 
-        // Write to disk
-        try (RandomAccessFile raf = new RandomAccessFile(targetFile, "rw")) {
+        // Hand over to the write-behind stage, reads are served from its queue until flushed
+        try {
             long offset = (long)pieceIndex * torrent.getPieceLength();
-            raf.seek(offset);
-            raf.write(data);
-
-            havePieces.set(pieceIndex);
-
-            return true;
+            diskWriter.submit(pieceIndex, offset, data);
         } catch (IOException e) {
             Logger.error("Failed to write piece " + pieceIndex + ": " + e.getMessage());
             return false;
         }
+
+        // Only the bitmap update is shared state, and it is a single CAS
+        havePieces.set(pieceIndex);
+
+        // Wake up blocked stream readers
+        synchronized (pieceArrived) {
+            pieceArrived.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Write part of an unfinished piece to its place on disk (memory pressure)
+     * The data stays unverified until completeSpilledPiece reads it back.
+     */
+    public void writePartial(int pieceIndex, int begin, byte[] data, int off, int len) throws IOException {
+        long offset = (long)pieceIndex * torrent.getPieceLength() + begin;
+        storage.write(offset, ByteBuffer.wrap(data, off, len));
+    }
+
+    /**
+     * Verify a piece whose blocks were written straight to disk
+     */
+    public CompletableFuture<Boolean> completeSpilledPiece(int pieceIndex) {
+        try {
+            byte[] data = storage.readPiece(pieceIndex);
+            if (data != null) {
+                return writePieceAsync(pieceIndex, data);
+            }
+        } catch (IOException e) {
+            Logger.error("Failed to read spilled piece " + pieceIndex + ": " + e.getMessage());
+        }
+        return CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Received-block bitmaps of unfinished pieces saved by the last run
+     */
+    public Map<Integer, BitSet> getSavedPartialPieces() {
+        return resumeData.getPartialPieces();
+    }
+
+    /**
+     * Force partial blocks written with writePartial and record their bitmaps
+     */
+    public void savePartialPieces(Map<Integer, BitSet> blocks) {
+        try {
+            storage.force();
+            resumeData.setPartialPieces(blocks);
+        } catch (IOException e) {
+            Logger.error("Failed to save partial pieces of " + torrent.getName() + ": " + e.getMessage());
+        }
     }
 
     /**
      * Read piece (from cache or disk)
      */
-    public synchronized byte[] readPiece(int pieceIndex) {
+    public byte[] readPiece(int pieceIndex) {
         if (!havePieces.get(pieceIndex)) {
             return null;
         }
@@ -131,9 +253,15 @@ public class FileManager {
             return pieceCache.get(pieceIndex);
         }
 
-        // Read from disk
-        try (RandomAccessFile raf = new RandomAccessFile(targetFile, "r")) {
-            byte[] piece = readPieceFromDisk(raf, pieceIndex);
+        // Still waiting in the write-behind queue
+        byte[] queued = diskWriter.getQueued(pieceIndex);
+        if (queued != null) {
+            return queued;
+        }
+
+        // Read from disk (may span several files)
+        try {
+            byte[] piece = storage.readPiece(pieceIndex);
             if (piece != null) {
                 // Cache it
                 pieceCache.put(pieceIndex, piece);
@@ -146,24 +274,85 @@ public class FileManager {
     }
 
     /**
-     * Get bitfield of pieces we have
+     * Block until a piece is available or the timeout expires (0 = wait forever)
+     * Returns true if we have the piece
+     */
+    public boolean awaitPiece(int pieceIndex, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pieceArrived) {
+            while (!havePieces.get(pieceIndex)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMs > 0 && remaining <= 0) return false;
+                pieceArrived.wait(timeoutMs > 0 ? remaining : 0);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open a read-only channel over the torrent data that blocks until pieces arrive
+     */
+    public PieceStreamChannel openStream(PieceStreamChannel.CursorListener cursorListener) {
+        return new PieceStreamChannel(this, torrent, cursorListener);
+    }
+
+    /**
+     * Get bitfield of pieces we have (snapshot, used for Bitfield messages)
      */
-    public synchronized BitSet getBitfield() {
-        return (BitSet)havePieces.clone();
+    public BitSet getBitfield() {
+        return havePieces.toBitSet();
+    }
+
+    /**
+     * Live view of the pieces we have, safe to read without locking
+     */
+    public PieceBitmap getPieceBitmap() {
+        return havePieces;
+    }
+
+    public boolean hasPiece(int pieceIndex) {
+        return havePieces.get(pieceIndex);
+    }
+
+    /**
+     * Next piece at or after fromIndex that we are missing and the peer has, or -1
+     */
+    public int nextMissingPiece(PieceBitmap peerPieces, int fromIndex) {
+        return havePieces.nextMissing(peerPieces, fromIndex);
     }
 
     /**
      * Check if download is complete
      */
     public boolean isComplete() {
-        return havePieces.cardinality() == torrent.getNumPieces();
+        return havePieces.isFull();
+    }
+
+    /**
+     * Bytes of verified pieces waiting in the write-behind queue
+     */
+    public long getPendingWriteBytes() {
+        return diskWriter.getPendingBytes();
+    }
+
+    /**
+     * Flush pending writes, force them to disk and update the resume file
+     */
+    public void close() {
+        try {
+            diskWriter.close();
+        } catch (IOException e) {
+            Logger.error("Failed to flush " + torrent.getName() + ": " + e.getMessage());
+        } finally {
+            storage.close();
+        }
     }
 
     /**
      * Get completion percentage
      */
     public double getCompletionPercentage() {
-        double value = 100.0 * havePieces.cardinality() / torrent.getNumPieces();
+        double value = 100.0 * havePieces.count() / torrent.getNumPieces();
         return Math.round(value * 100.0) / 100.0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package org.example.core;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bitmap of pieces backed by an AtomicLongArray
+ * - set/get are single CAS / volatile reads on one 64-bit word
+ * - the number of set bits is tracked separately so count() is O(1)
+ * - snapshots and searches work a word (64 pieces) at a time
+ */
+public class PieceBitmap {
+    private final int numPieces;
+    private final AtomicLongArray words;
+    private final AtomicInteger count;
+
+    public PieceBitmap(int numPieces) {
+        this.numPieces = numPieces;
+        this.words = new AtomicLongArray(wordCount(numPieces));
+        this.count = new AtomicInteger();
+    }
+
+    /**
+     * Build a bitmap from a BitSet (e.g. a parsed Bitfield message)
+     */
+    public static PieceBitmap fromBitSet(BitSet bits, int numPieces) {
+        PieceBitmap bitmap = new PieceBitmap(numPieces);
+        for (int i = bits.nextSetBit(0); i >= 0 && i < numPieces; i = bits.nextSetBit(i + 1)) {
+            bitmap.set(i);
+        }
+        return bitmap;
+    }
+
+    private static int wordCount(int numPieces) {
+        return (numPieces + 63) >>> 6;
+    }
+
+    /**
+     * Set a bit, returns true if this call changed it
+     */
+    public boolean set(int index) {
+        checkIndex(index);
+        int w = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long old = words.get(w);
+            if ((old & mask) != 0) return false;
+            if (words.compareAndSet(w, old, old | mask)) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Clear a bit, returns true if this call changed it
+     */
+    public boolean clear(int index) {
+        checkIndex(index);
+        int w = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long old = words.get(w);
+            if ((old & mask) == 0) return false;
+            if (words.compareAndSet(w, old, old & ~mask)) {
+                count.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public boolean get(int index) {
+        if (index < 0 || index >= numPieces) return false;
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Number of set bits, O(1)
+     */
+    public int count() {
+        return count.get();
+    }
+
+    public int size() {
+        return numPieces;
+    }
+
+    public boolean isFull() {
+        return count.get() == numPieces;
+    }
+
+    /**
+     * Raw word access for word-level iteration
+     * Bits past numPieces in the last word are always zero
+     */
+    public int wordCount() {
+        return words.length();
+    }
+
+    public long word(int wordIndex) {
+        return words.get(wordIndex);
+    }
+
+    /**
+     * Copy of the words, each read atomically
+     */
+    public long[] snapshot() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return copy;
+    }
+
+    public BitSet toBitSet() {
+        return BitSet.valueOf(snapshot());
+    }
+
+    /**
+     * Find the first piece at or after fromIndex that we are missing and the peer has
+     * Works on 64-bit words: (~ours & theirs), then numberOfTrailingZeros
+     * Returns -1 if there is none
+     */
+    public int nextMissing(PieceBitmap peer, int fromIndex) {
+        if (fromIndex < 0) fromIndex = 0;
+        if (fromIndex >= numPieces) return -1;
+
+        int limit = Math.min(words.length(), peer.words.length());
+        int w = fromIndex >>> 6;
+        long candidates = ~words.get(w) & peer.words.get(w) & (-1L << fromIndex);
+
+        while (true) {
+            if (candidates != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(candidates);
+                return index < numPieces ? index : -1;
+            }
+            if (++w >= limit) return -1;
+            candidates = ~words.get(w) & peer.words.get(w);
+        }
+    }
+
+    /**
+     * Same as nextMissing(peer, fromIndex), wrapping around to the start
+     */
+    public int nextMissingWrapped(PieceBitmap peer, int fromIndex) {
+        int index = nextMissing(peer, fromIndex);
+        if (index < 0 && fromIndex > 0) {
+            index = nextMissing(peer, 0);
+        }
+        return index;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= numPieces) {
+            throw new IndexOutOfBoundsException("Piece index " + index + " out of range [0, " + numPieces + ")");
+        }
+    }
+}
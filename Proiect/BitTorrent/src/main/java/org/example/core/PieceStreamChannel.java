@@ -0,0 +1,125 @@
+package org.example.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only view of a torrent's data for streaming playback
+ * - read() blocks until the piece under the position has been downloaded
+ * - every read/seek reports the current piece to a CursorListener, which
+ *   lets the piece picker keep its priority window just ahead of the reader
+ */
+public class PieceStreamChannel implements SeekableByteChannel {
+    public interface CursorListener {
+        void onCursorMoved(int pieceIndex);
+    }
+
+    private static final long WAIT_SLICE_MS = 1000; // re-check closed flag while waiting
+
+    private final FileManager fileManager;
+    private final TorrentFile torrent;
+    private final CursorListener cursorListener;
+    private long position;
+    private volatile boolean open = true;
+
+    PieceStreamChannel(FileManager fileManager, TorrentFile torrent, CursorListener cursorListener) {
+        this.fileManager = fileManager;
+        this.torrent = torrent;
+        this.cursorListener = cursorListener;
+        notifyCursor();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= torrent.getTotalLength()) return -1;
+        if (!dst.hasRemaining()) return 0;
+
+        int pieceIndex = (int)(position / torrent.getPieceLength());
+        int offsetInPiece = (int)(position % torrent.getPieceLength());
+        notifyCursor();
+
+        try {
+            while (!fileManager.awaitPiece(pieceIndex, WAIT_SLICE_MS)) {
+                ensureOpen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for piece " + pieceIndex);
+        }
+
+        byte[] piece = fileManager.readPiece(pieceIndex);
+        if (piece == null) {
+            throw new IOException("Failed to read piece " + pieceIndex);
+        }
+
+        int n = Math.min(dst.remaining(), piece.length - offsetInPiece);
+        dst.put(piece, offsetInPiece, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        this.position = newPosition;
+        notifyCursor();
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return torrent.getTotalLength();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * Blocking InputStream over this channel
+     */
+    public InputStream asInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    private void notifyCursor() {
+        if (cursorListener != null && position < torrent.getTotalLength()) {
+            cursorListener.onCursorMoved((int)(position / torrent.getPieceLength()));
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) throw new ClosedChannelException();
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.core;
+
+import org.example.util.Logger;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persisted resume state for a torrent: which pieces are durable on disk
+ * File format (big endian):
+ * - magic: 4 bytes ("BTRS")
+ * - version: 1 byte
+ * - info_hash: 20 bytes
+ * - numPieces: 4 bytes
+ * - words: ceil(numPieces / 64) longs, same layout as PieceBitmap
+ * - version 2 only: partialCount (4 bytes), then per unfinished piece its
+ *   index (4 bytes), word count (4 bytes) and received-block bitmap words
+ * Only pieces that have been forced to disk are ever recorded here.
+ * Version 1 files are still read.
+ */
+public class ResumeData {
+    private static final int MAGIC = 0x42545253; // "BTRS"
+    private static final byte VERSION = 2;
+
+    private final File file;
+    private final byte[] infoHash;
+    private final int maxBlockWords; // longs in a piece's received-block bitmap
+    private final PieceBitmap durablePieces;
+    private Map<Integer, BitSet> partialPieces; // piece -> received blocks, guarded by this
+
+    public ResumeData(File file, byte[] infoHash, int numPieces, int blocksPerPiece) {
+        this.file = file;
+        this.infoHash = infoHash;
+        this.maxBlockWords = (blocksPerPiece + 63) / 64;
+        this.durablePieces = new PieceBitmap(numPieces);
+        this.partialPieces = new HashMap<>();
+    }
+
+    /**
+     * Load the resume file if it exists and belongs to this torrent
+     * Returns false if there is nothing usable (missing, corrupt, other torrent)
+     */
+    public boolean load() {
+        if (!file.exists()) return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) return false;
+            byte version = in.readByte();
+            if (version != 1 && version != VERSION) return false;
+
+            byte[] storedHash = new byte[20];
+            in.readFully(storedHash);
+            if (!Arrays.equals(storedHash, infoHash)) return false;
+
+            int numPieces = in.readInt();
+            if (numPieces != durablePieces.size()) return false;
+
+            // Parse everything before applying anything, a corrupt tail must not leave half a state
+            PieceBitmap durable = new PieceBitmap(numPieces);
+            for (int w = 0; w < durable.wordCount(); w++) {
+                long word = in.readLong();
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    int index = (w << 6) + bit;
+                    if (index >= numPieces) return false;
+                    durable.set(index);
+                    word &= word - 1;
+                }
+            }
+
+            Map<Integer, BitSet> partial = new HashMap<>();
+            if (version >= 2) {
+                // Counts are checked before they size anything
+                int count = in.readInt();
+                if (count < 0 || count > numPieces) return false;
+                for (int i = 0; i < count; i++) {
+                    int index = in.readInt();
+                    int wordCount = in.readInt();
+                    if (wordCount < 0 || wordCount > maxBlockWords) return false;
+                    long[] words = new long[wordCount];
+                    for (int w = 0; w < words.length; w++) words[w] = in.readLong();
+                    if (index >= 0 && index < numPieces && !durable.get(index)) {
+                        partial.put(index, BitSet.valueOf(words));
+                    }
+                }
+            }
+
+            synchronized (this) {
+                for (int w = 0; w < durable.wordCount(); w++) {
+                    long word = durable.word(w);
+                    while (word != 0) {
+                        durablePieces.set((w << 6) + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                if (version >= 2) partialPieces = partial;
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.warn("Ignoring unreadable resume file " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Record pieces as durable and persist (write to temp file, then rename)
+     */
+    public synchronized void markDurable(Iterable<Integer> pieceIndexes) {
+        for (int index : pieceIndexes) {
+            durablePieces.set(index);
+            partialPieces.remove(index);
+        }
+        save();
+    }
+
+    /**
+     * Replace the recorded unfinished pieces and persist
+     * Their blocks must already be on disk.
+     */
+    public synchronized void setPartialPieces(Map<Integer, BitSet> blocks) {
+        partialPieces = new HashMap<>(blocks);
+        save();
+    }
+
+    public synchronized Map<Integer, BitSet> getPartialPieces() {
+        return new HashMap<>(partialPieces);
+    }
+
+    public synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.write(infoHash);
+            out.writeInt(durablePieces.size());
+            for (long word : durablePieces.snapshot()) {
+                out.writeLong(word);
+            }
+            out.writeInt(partialPieces.size());
+            for (Map.Entry<Integer, BitSet> e : partialPieces.entrySet()) {
+                long[] words = e.getValue().toLongArray();
+                out.writeInt(e.getKey());
+                out.writeInt(words.length);
+                for (long word : words) out.writeLong(word);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Logger.error("Failed to write resume file " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.error("Failed to replace resume file " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    public PieceBitmap getDurablePieces() {
+        return durablePieces;
+    }
+}
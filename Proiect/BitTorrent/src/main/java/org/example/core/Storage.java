@@ -0,0 +1,237 @@
+package org.example.core;
+
+import org.example.util.Logger;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps torrent offsets onto the files of a torrent
+ * - single-file torrents: <downloadDir>/<name>
+ * - multi-file torrents:  <downloadDir>/<name>/<path...>
+ * Reads use the piece span index; writes at arbitrary offsets are split at
+ * file boundaries. File channels come from a node-wide FileHandleCache, so an
+ * idle torrent holds no descriptors and reopens its files on the next access.
+ */
+public class Storage {
+    private final TorrentFile torrent;
+    private final File[] files;
+    private final long[] fileStarts; // torrent offset of each file, for binary search
+    private final FileHandleCache handleCache;
+    private final Set<Integer> dirty; // files written since the last force
+
+    public Storage(TorrentFile torrent, File downloadDir, FileHandleCache handleCache) {
+        this.torrent = torrent;
+        this.handleCache = handleCache;
+        List<TorrentFile.FileEntry> entries = torrent.getFiles();
+        this.files = new File[entries.size()];
+        this.fileStarts = new long[entries.size()];
+
+        File root = torrent.isMultiFile() ? new File(downloadDir, torrent.getName()) : downloadDir;
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(root, entries.get(i).getRelativePath());
+            fileStarts[i] = entries.get(i).offset;
+        }
+
+        this.dirty = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * True if any file of the torrent is already on disk
+     */
+    public boolean anyExists() {
+        for (File file : files) {
+            if (file.exists()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * True if every file exists with its full length
+     */
+    public boolean isAllocated() {
+        List<TorrentFile.FileEntry> entries = torrent.getFiles();
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].exists() || files[i].length() != entries.get(i).length) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Create missing directories and files, extend short files to their length
+     */
+    public void allocate() throws IOException {
+        List<TorrentFile.FileEntry> entries = torrent.getFiles();
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+            if (!file.exists() || file.length() < entries.get(i).length) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(entries.get(i).length);
+                }
+            }
+        }
+        Logger.info("Allocated " + files.length + " file(s) for " + torrent.getName());
+    }
+
+    /**
+     * Read a whole piece across its file spans, or null if the data isn't there
+     */
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        byte[] data = new byte[torrent.getPieceSize(pieceIndex)];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        for (TorrentFile.Span span : torrent.getPieceSpans(pieceIndex)) {
+            if (!files[span.fileIndex].exists()) return null;
+            buffer.limit(span.pieceOffset + span.length).position(span.pieceOffset);
+            FileHandleCache.Handle handle = handleCache.acquire(files[span.fileIndex]);
+            try {
+                if (!readFully(handle.channel(), buffer, span.fileOffset)) return null;
+            } finally {
+                handleCache.release(handle);
+            }
+        }
+        return data;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) return false;
+            position += n;
+        }
+        return true;
+    }
+
+    /**
+     * Write consecutive buffers starting at a torrent offset
+     * Uses one gathering write when the whole run falls inside one file.
+     */
+    public void write(long offset, ByteBuffer[] srcs) throws IOException {
+        long total = 0;
+        for (ByteBuffer src : srcs) total += src.remaining();
+
+        int fileIndex = fileAt(offset);
+        long fileOffset = offset - fileStarts[fileIndex];
+        long fileLength = torrent.getFiles().get(fileIndex).length;
+
+        if (fileOffset + total <= fileLength) {
+            FileHandleCache.Handle handle = handleCache.acquire(files[fileIndex]);
+            try {
+                FileChannel channel = handle.channel();
+                synchronized (channel) {
+                    channel.position(fileOffset);
+                    long written = 0;
+                    while (written < total) {
+                        written += channel.write(srcs);
+                    }
+                }
+            } finally {
+                handleCache.release(handle);
+            }
+            dirty.add(fileIndex);
+            return;
+        }
+
+        // Run crosses file boundaries, write buffer by buffer
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            write(offset, src);
+            offset += length;
+        }
+    }
+
+    /**
+     * Write one buffer at a torrent offset, splitting it across files
+     */
+    public void write(long offset, ByteBuffer src) throws IOException {
+        ByteBuffer buffer = src.duplicate();
+        int fileIndex = fileAt(offset);
+
+        while (buffer.hasRemaining()) {
+            if (fileIndex >= files.length) {
+                throw new EOFException("Write past end of torrent at offset " + offset);
+            }
+            long fileOffset = offset - fileStarts[fileIndex];
+            long available = torrent.getFiles().get(fileIndex).length - fileOffset;
+            if (available <= 0) {
+                fileIndex++;
+                continue;
+            }
+
+            int n = (int)Math.min(buffer.remaining(), available);
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(chunk.position() + n);
+
+            FileHandleCache.Handle handle = handleCache.acquire(files[fileIndex]);
+            try {
+                long pos = fileOffset;
+                while (chunk.hasRemaining()) {
+                    pos += handle.channel().write(chunk, pos);
+                }
+            } finally {
+                handleCache.release(handle);
+            }
+            dirty.add(fileIndex);
+
+            buffer.position(buffer.position() + n);
+            offset += n;
+            fileIndex++;
+        }
+    }
+
+    /**
+     * Index of the file containing a torrent offset (last non-empty file starting at or before it)
+     */
+    private int fileAt(long offset) {
+        int index = Arrays.binarySearch(fileStarts, offset);
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            // Several files can start at the same offset when some are empty
+            while (index + 1 < fileStarts.length && fileStarts[index + 1] == offset) index++;
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * Force every file written since the last call
+     * fsync applies to the file, so a handle reopened after eviction still
+     * flushes what an earlier handle wrote.
+     */
+    public void force() throws IOException {
+        Iterator<Integer> it = dirty.iterator();
+        while (it.hasNext()) {
+            int fileIndex = it.next();
+            it.remove();
+            FileHandleCache.Handle handle = handleCache.acquire(files[fileIndex]);
+            try {
+                handle.channel().force(false);
+            } catch (IOException e) {
+                dirty.add(fileIndex); // retry on the next force
+                throw e;
+            } finally {
+                handleCache.release(handle);
+            }
+        }
+    }
+
+    /**
+     * Drop this torrent's handles from the cache
+     */
+    public void close() {
+        handleCache.closeAll(Arrays.asList(files));
+    }
+
+    public String getDisplayName() {
+        return torrent.getName();
+    }
+}
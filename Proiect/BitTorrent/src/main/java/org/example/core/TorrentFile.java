@@ -2,7 +2,13 @@ package org.example.core;
 
 import org.example.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Represents a .torrent file metadata
@@ -12,7 +18,10 @@ import java.util.*;
  *   - name: filename
  *   - piece length: size of each piece
  *   - pieces: concatenated SHA-1 hashes
- *   - length: total file size
+ *   - length: total file size (single-file torrents)
+ *   - files: list of {length, path} (multi-file torrents, name is the directory)
+ * Pieces are laid over the concatenation of all files, so a piece can span
+ * several files. The span index maps each piece to its file segments.
  */
 public class TorrentFile {
     private String name;
@@ -20,9 +29,23 @@ public class TorrentFile {
     private byte[] pieces; // concatenated 20-byte SHA-1 hashes
     private long totalLength;
     private byte[] infoHash; // SHA-1 of bencoded info dict
+    private boolean multiFile;
+    private List<FileEntry> files; // in torrent order, with absolute offsets
+    private Span[][] spanIndex;    // piece -> file segments, built once
 
     public static final long DEFAULT_PIECE_LENGTH = 256 * 1024; // 256 KB
 
+    // Per-thread output buffer for piece verification, avoids a new array per check
+    private static final ThreadLocal<byte[]> DIGEST_SCRATCH =
+            ThreadLocal.withInitial(() -> new byte[Hash.SHA1_LENGTH]);
+
+    /**
+     * Create torrent from a file or a directory
+     */
+    public static TorrentFile create(File file) throws IOException {
+        return file.isDirectory() ? createFromDirectory(file) : createFromFile(file);
+    }
+
     /**
      * Create torrent from file
      */
@@ -31,6 +54,7 @@ public class TorrentFile {
         torrent.name = file.getName();
         torrent.totalLength = file.length();
         torrent.pieceLength = DEFAULT_PIECE_LENGTH;
+        torrent.files = List.of(new FileEntry(List.of(file.getName()), file.length(), 0));
 
         // Calculate piece hashes
         int numPieces = (int)Math.ceil((double)torrent.totalLength / torrent.pieceLength);
@@ -40,20 +64,21 @@ public class TorrentFile {
 
         try (FileInputStream fis = new FileInputStream(file)) {
             byte[] buffer = new byte[(int)torrent.pieceLength];
+            byte[] hash = new byte[Hash.SHA1_LENGTH];
 
             for (int i = 0; i < numPieces; i++) {
                 int bytesRead = fis.read(buffer);
                 if (bytesRead == -1) break;
 
-                // if the piece doesn't have exactly pieceLength(256) KB - truncate irrelevant data
-                byte[] pieceData = Arrays.copyOf(buffer, bytesRead);
-                byte[] hash = Hash.sha1(pieceData);
+                // if the piece doesn't have exactly pieceLength(256) KB - only hash the bytes read
+                Hash.sha1(buffer, 0, bytesRead, hash, 0);
                 piecesStream.write(hash);
 
             }
         }
 
         torrent.pieces = piecesStream.toByteArray();
+        torrent.buildSpanIndex();
 
         // Calculate info_hash
         Map<String, Object> infoDict = torrent.buildInfoDict();
@@ -67,6 +92,126 @@ public class TorrentFile {
         return torrent;
     }
 
+    /**
+     * Create a multi-file torrent from every regular file under a directory
+     * Pieces are hashed in parallel, one task per piece reading its file spans.
+     */
+    public static TorrentFile createFromDirectory(File dir) throws IOException {
+        Path root = dir.toPath();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        if (paths.isEmpty()) {
+            throw new IOException("Directory has no files: " + dir);
+        }
+
+        TorrentFile torrent = new TorrentFile();
+        torrent.name = dir.getName();
+        torrent.pieceLength = DEFAULT_PIECE_LENGTH;
+        torrent.multiFile = true;
+        torrent.files = new ArrayList<>();
+
+        long offset = 0;
+        for (Path path : paths) {
+            List<String> components = new ArrayList<>();
+            for (Path part : root.relativize(path)) {
+                components.add(part.toString());
+            }
+            long length = Files.size(path);
+            torrent.files.add(new FileEntry(components, length, offset));
+            offset += length;
+        }
+        torrent.totalLength = offset;
+
+        int numPieces = (int)((torrent.totalLength + torrent.pieceLength - 1) / torrent.pieceLength);
+        torrent.pieces = new byte[numPieces * Hash.SHA1_LENGTH];
+        torrent.buildSpanIndex();
+
+        hashPiecesInParallel(torrent, paths);
+
+        Map<String, Object> infoDict = torrent.buildInfoDict();
+        torrent.infoHash = Hash.sha1(Bencode.encode(infoDict));
+
+        Logger.info("Created torrent for " + dir.getName() + " (" + paths.size() + " files, " +
+                numPieces + " pieces, info_hash: " + Hash.toHex(torrent.infoHash) + ")");
+
+        return torrent;
+    }
+
+    private static void hashPiecesInParallel(TorrentFile torrent, List<Path> paths) throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int p = 0; p < torrent.getNumPieces(); p++) {
+                final int pieceIndex = p;
+                tasks.add(pool.submit(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocate(torrent.getPieceSize(pieceIndex));
+                    for (Span span : torrent.getPieceSpans(pieceIndex)) {
+                        // Opened per span so thousands of files never hold thousands of descriptors
+                        try (FileChannel channel = FileChannel.open(paths.get(span.fileIndex), StandardOpenOption.READ)) {
+                            ByteBuffer slice = buffer.duplicate();
+                            slice.position(span.pieceOffset).limit(span.pieceOffset + span.length);
+                            long pos = span.fileOffset;
+                            while (slice.hasRemaining()) {
+                                int n = channel.read(slice, pos);
+                                if (n < 0) throw new EOFException("File changed while hashing");
+                                pos += n;
+                            }
+                        }
+                    }
+                    Hash.sha1(buffer, torrent.pieces, pieceIndex * Hash.SHA1_LENGTH);
+                    return null;
+                }));
+            }
+
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to hash pieces: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Precompute which file segments each piece covers
+     */
+    private void buildSpanIndex() {
+        int numPieces = getNumPieces();
+        spanIndex = new Span[numPieces][];
+        int fileIndex = 0;
+        List<Span> spans = new ArrayList<>();
+
+        for (int p = 0; p < numPieces; p++) {
+            long pieceStart = (long)p * pieceLength;
+            int remaining = getPieceSize(p);
+            int pieceOffset = 0;
+            spans.clear();
+
+            while (remaining > 0 && fileIndex < files.size()) {
+                FileEntry file = files.get(fileIndex);
+                long fileOffset = pieceStart + pieceOffset - file.offset;
+                long available = file.length - fileOffset;
+                if (available <= 0) {
+                    fileIndex++; // empty file or already consumed
+                    continue;
+                }
+                int length = (int)Math.min(remaining, available);
+                spans.add(new Span(fileIndex, fileOffset, pieceOffset, length));
+                pieceOffset += length;
+                remaining -= length;
+                if (length == available) fileIndex++;
+            }
+            spanIndex[p] = spans.toArray(new Span[0]);
+        }
+    }
+
     /**
      * Build info dictionary for bencoding
      */
@@ -75,7 +220,18 @@ public class TorrentFile {
         info.put("name", name);
         info.put("piece length", pieceLength);
         info.put("pieces", pieces);
-        info.put("length", totalLength);
+        if (multiFile) {
+            List<Object> fileList = new ArrayList<>();
+            for (FileEntry file : files) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("length", file.length);
+                entry.put("path", new ArrayList<Object>(file.path));
+                fileList.add(entry);
+            }
+            info.put("files", fileList);
+        } else {
+            info.put("length", totalLength);
+        }
         return info;
     }
 
@@ -110,7 +266,30 @@ public class TorrentFile {
         tf.name = new String((byte[])info.get("name"));
         tf.pieceLength = (Long)info.get("piece length");
         tf.pieces = (byte[])info.get("pieces");
-        tf.totalLength = (Long)info.get("length");
+        checkPathComponent(tf.name);
+
+        if (info.containsKey("files")) {
+            tf.multiFile = true;
+            tf.files = new ArrayList<>();
+            long offset = 0;
+            for (Object o : (List<?>)info.get("files")) {
+                Map<?, ?> entry = (Map<?, ?>)o;
+                long length = (Long)entry.get("length");
+                List<String> path = new ArrayList<>();
+                for (Object part : (List<?>)entry.get("path")) {
+                    String component = new String((byte[])part);
+                    checkPathComponent(component);
+                    path.add(component);
+                }
+                tf.files.add(new FileEntry(path, length, offset));
+                offset += length;
+            }
+            tf.totalLength = offset;
+        } else {
+            tf.totalLength = (Long)info.get("length");
+            tf.files = List.of(new FileEntry(List.of(tf.name), tf.totalLength, 0));
+        }
+        tf.buildSpanIndex();
 
         // Calculate info_hash
         byte[] bencodedInfo = Bencode.encode(info);
@@ -122,8 +301,28 @@ public class TorrentFile {
         return tf;
     }
 
+    /**
+     * Reject path components that would escape the download directory
+     */
+    private static void checkPathComponent(String component) throws IOException {
+        if (component.isEmpty() || component.equals(".") || component.equals("..")
+                || component.contains("/") || component.contains("\\")) {
+            throw new IOException("Invalid path component in torrent: '" + component + "'");
+        }
+    }
+
     // Getters
     public String getName() { return name; }
+    public boolean isMultiFile() { return multiFile; }
+    public List<FileEntry> getFiles() { return Collections.unmodifiableList(files); }
+    public Span[] getPieceSpans(int index) { return spanIndex[index]; }
+
+    /**
+     * Size in bytes of a piece (the last one is usually shorter)
+     */
+    public int getPieceSize(int index) {
+        return (index == getNumPieces() - 1) ? getLastPieceLength() : (int)pieceLength;
+    }
     public long getPieceLength() { return pieceLength; }
     public long getTotalLength() { return totalLength; }
     public byte[] getInfoHash() { return infoHash; }
@@ -135,8 +334,71 @@ public class TorrentFile {
         return hash;
     }
 
+    /**
+     * Compare a 20-byte digest against the stored hash of a piece, in place
+     */
+    public boolean pieceHashMatches(int index, byte[] digest, int digestOffset) {
+        int start = index * Hash.SHA1_LENGTH;
+        return Arrays.equals(pieces, start, start + Hash.SHA1_LENGTH,
+                digest, digestOffset, digestOffset + Hash.SHA1_LENGTH);
+    }
+
+    /**
+     * Hash the remaining bytes of a buffer and compare with the piece hash
+     * The buffer can be a heap, direct or mapped slice, it is not copied.
+     */
+    public boolean verifyPiece(int index, ByteBuffer data) {
+        byte[] digest = DIGEST_SCRATCH.get();
+        Hash.sha1(data, digest, 0);
+        return pieceHashMatches(index, digest, 0);
+    }
+
+    public boolean verifyPiece(int index, byte[] data, int offset, int length) {
+        byte[] digest = DIGEST_SCRATCH.get();
+        Hash.sha1(data, offset, length, digest, 0);
+        return pieceHashMatches(index, digest, 0);
+    }
+
     public int getLastPieceLength() {
         long remainder = totalLength % pieceLength;
         return (int)(remainder == 0 ? pieceLength : remainder);
     }
+
+    /**
+     * A file inside the torrent
+     * - path: components relative to the torrent root
+     * - offset: where the file starts in the concatenated torrent data
+     */
+    public static class FileEntry {
+        public final List<String> path;
+        public final long length;
+        public final long offset;
+
+        FileEntry(List<String> path, long length, long offset) {
+            this.path = List.copyOf(path);
+            this.length = length;
+            this.offset = offset;
+        }
+
+        public String getRelativePath() {
+            return String.join(File.separator, path);
+        }
+    }
+
+    /**
+     * Part of a piece that lives in one file
+     */
+    public static class Span {
+        public final int fileIndex;
+        public final long fileOffset;  // where the segment starts in the file
+        public final int pieceOffset;  // where the segment starts in the piece
+        public final int length;
+
+        Span(int fileIndex, long fileOffset, int pieceOffset, int length) {
+            this.fileIndex = fileIndex;
+            this.fileOffset = fileOffset;
+            this.pieceOffset = pieceOffset;
+            this.length = length;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package org.example.core.protocol;
+
+import org.example.util.Hash;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Allowed Fast message (Fast Extension, BEP 6) - a piece the peer may
+ * request even while choked
+ * Format: <length><id><index>
+ * - length: 4 bytes (5)
+ * - id: 1 byte (0x11)
+ * - index: 4 bytes (piece index)
+ */
+public class AllowedFast {
+    public static final byte MESSAGE_ID = 0x11;
+    public static final int DEFAULT_SET_SIZE = 10;
+
+    private int pieceIndex;
+
+    public AllowedFast(int pieceIndex) {
+        this.pieceIndex = pieceIndex;
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(4).putInt(pieceIndex).array();
+    }
+
+    public static AllowedFast parse(byte[] data) {
+        return new AllowedFast(ByteBuffer.wrap(data).getInt());
+    }
+
+    public int getPieceIndex() { return pieceIndex; }
+
+    /**
+     * The canonical allowed fast set for a peer (BEP 6)
+     * Depends only on the peer's /24 and the info_hash, so reconnecting from
+     * another port doesn't yield more free pieces. Empty for IPv6 peers.
+     */
+    public static Set<Integer> generate(int k, int numPieces, byte[] infoHash, InetAddress peer) {
+        Set<Integer> allowed = new LinkedHashSet<>();
+        if (!(peer instanceof Inet4Address) || numPieces == 0) return allowed;
+        k = Math.min(k, numPieces);
+
+        byte[] ip = peer.getAddress();
+        byte[] x = new byte[4 + infoHash.length];
+        x[0] = ip[0];
+        x[1] = ip[1];
+        x[2] = ip[2]; // last octet masked out
+        System.arraycopy(infoHash, 0, x, 4, infoHash.length);
+
+        while (allowed.size() < k) {
+            x = Hash.sha1(x);
+            ByteBuffer digest = ByteBuffer.wrap(x);
+            for (int i = 0; i < 5 && allowed.size() < k; i++) {
+                long y = digest.getInt(i * 4) & 0xFFFFFFFFL;
+                allowed.add((int)(y % numPieces));
+            }
+        }
+        return allowed;
+    }
+}
@@ -8,9 +8,13 @@ import java.util.BitSet;
  * - length: 4 bytes
  * - id: 1 byte (5 for bitfield)
  * - bitfield: variable length
+ * With the Fast Extension (BEP 6) a peer that has all or none of the pieces
+ * sends Have All (0x0E) or Have None (0x0F) instead, both without payload.
  */
 public class Bitfield {
     public static final byte MESSAGE_ID = 5;
+    public static final byte HAVE_ALL_ID = 0x0E;
+    public static final byte HAVE_NONE_ID = 0x0F;
 
     private BitSet pieces;
     private int numPieces;
@@ -57,6 +61,9 @@ public class Bitfield {
         return new Bitfield(pieces, numPieces);
     }
 
+    public boolean isAll() { return pieces.cardinality() == numPieces; }
+    public boolean isEmpty() { return pieces.isEmpty(); }
+
     public BitSet getPieces() { return pieces; }
     public boolean hasPiece(int index) { return pieces.get(index); }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package org.example.core.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cancel message - withdraw an earlier request
+ * Format: <length><id><index><begin><length>
+ * - length: 4 bytes (13)
+ * - id: 1 byte (8)
+ * - index, begin, length: same as the Request being cancelled
+ */
+public class Cancel {
+    public static final byte MESSAGE_ID = 8;
+
+    private int pieceIndex;
+    private int begin;
+    private int length;
+
+    public Cancel(int pieceIndex, int begin, int length) {
+        this.pieceIndex = pieceIndex;
+        this.begin = begin;
+        this.length = length;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(begin);
+        buffer.putInt(length);
+        return buffer.array();
+    }
+
+    public static Cancel parse(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int pieceIndex = buffer.getInt();
+        int begin = buffer.getInt();
+        int length = buffer.getInt();
+        return new Cancel(pieceIndex, begin, length);
+    }
+
+    public int getPieceIndex() { return pieceIndex; }
+    public int getBegin() { return begin; }
+    public int getLength() { return length; }
+}
@@ -0,0 +1,40 @@
+package org.example.core.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extended message (BEP 10) - carries the messages of protocol extensions
+ * Format: <length><id><extended id><payload>
+ * - length: 4 bytes
+ * - id: 1 byte (20)
+ * - extended id: 1 byte, 0 = extended handshake, otherwise an id the receiver assigned
+ * - payload: variable length (bencoded dictionary for the handshake)
+ */
+public class Extended {
+    public static final byte MESSAGE_ID = 20;
+    public static final int HANDSHAKE_ID = 0;
+
+    private int extendedId;
+    private byte[] payload;
+
+    public Extended(int extendedId, byte[] payload) {
+        this.extendedId = extendedId;
+        this.payload = payload;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + payload.length);
+        buffer.put((byte)extendedId);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    public static Extended parse(byte[] data) {
+        byte[] payload = new byte[data.length - 1];
+        System.arraycopy(data, 1, payload, 0, payload.length);
+        return new Extended(data[0] & 0xFF, payload);
+    }
+
+    public int getExtendedId() { return extendedId; }
+    public byte[] getPayload() { return payload; }
+}
@@ -10,16 +10,22 @@ import java.util.Arrays;
  * Format: <pstrlen><pstr><reserved><info_hash><peer_id>
  * - pstrlen: 1 byte (19)
  * - pstr: 19 bytes ("BitTorrent protocol")
- * - reserved: 8 bytes (all zeros)
+ * - reserved: 8 bytes, extension bits (0x04 in the last byte = Fast Extension, BEP 6,
+ *             0x10 in byte 5 = Extension Protocol, BEP 10)
  * - info_hash: 20 bytes
  * - peer_id: 20 bytes
  */
 public class Handshake {
     private static final String PROTOCOL = "BitTorrent protocol";
     private static final int HANDSHAKE_LENGTH = 68;
+    private static final int FAST_EXTENSION_BYTE = 7;
+    private static final int FAST_EXTENSION_BIT = 0x04;
+    private static final int EXTENSION_PROTOCOL_BYTE = 5;
+    private static final int EXTENSION_PROTOCOL_BIT = 0x10;
 
     private byte[] infoHash;
     private byte[] peerId;
+    private byte[] reserved = new byte[8];
 
     public Handshake(byte[] infoHash, byte[] peerId) {
         if (infoHash.length != 20) throw new IllegalArgumentException("Info hash must be 20 bytes");
@@ -29,6 +35,30 @@ public class Handshake {
         this.peerId = peerId;
     }
 
+    /**
+     * Advertise the Fast Extension (BEP 6)
+     */
+    public Handshake enableFastExtension() {
+        reserved[FAST_EXTENSION_BYTE] |= FAST_EXTENSION_BIT;
+        return this;
+    }
+
+    public boolean supportsFastExtension() {
+        return (reserved[FAST_EXTENSION_BYTE] & FAST_EXTENSION_BIT) != 0;
+    }
+
+    /**
+     * Advertise the Extension Protocol (BEP 10)
+     */
+    public Handshake enableExtensionProtocol() {
+        reserved[EXTENSION_PROTOCOL_BYTE] |= EXTENSION_PROTOCOL_BIT;
+        return this;
+    }
+
+    public boolean supportsExtensionProtocol() {
+        return (reserved[EXTENSION_PROTOCOL_BYTE] & EXTENSION_PROTOCOL_BIT) != 0;
+    }
+
     /**
      * Serialize handshake to bytes
      */
@@ -40,7 +70,7 @@ public class Handshake {
             // Protocol string
             out.write(PROTOCOL.getBytes(StandardCharsets.UTF_8));
             // Reserved bytes
-            out.write(new byte[8]);
+            out.write(reserved);
             // Info hash
             out.write(infoHash);
             // Peer ID
@@ -54,7 +84,8 @@ public class Handshake {
     /**
      * Parse handshake from input stream
      */
-    public static Handshake parse(InputStream in) throws IOException {
+    public static Handshake parse(InputStream input) throws IOException {
+        DataInputStream in = input instanceof DataInputStream ? (DataInputStream)input : new DataInputStream(input);
 
         // Read protocol length
         int pstrlen = in.read();
@@ -66,28 +97,31 @@ public class Handshake {
 
         // Read protocol string
         byte[] pstr = new byte[pstrlen];
-        in.read(pstr);
+        in.readFully(pstr);
 //        System.out.println("Protocol string: " + new String(pstr, StandardCharsets.UTF_8));
         String protocol = new String(pstr, StandardCharsets.UTF_8);
         if (!protocol.equals(PROTOCOL)) {
             throw new IOException("Invalid protocol: " + protocol);
         }
 
-        // Skip reserved bytes
-        in.skip(8);
+        // Reserved bytes (extension bits)
+        byte[] reserved = new byte[8];
+        in.readFully(reserved);
 
         // Read info hash
         byte[] infoHash = new byte[20];
-        in.read(infoHash);
+        in.readFully(infoHash);
 //        System.out.println("Info hash: " + Hash.toHex(infoHash));
 
 
         // Read peer ID
         byte[] peerId = new byte[20];
-        in.read(peerId);
+        in.readFully(peerId);
 
 //        System.out.println("Peer id: " + Hash.toHex(peerId));
-        return new Handshake(infoHash, peerId);
+        Handshake handshake = new Handshake(infoHash, peerId);
+        handshake.reserved = reserved;
+        return handshake;
     }
 
     public byte[] getInfoHash() { return infoHash; }
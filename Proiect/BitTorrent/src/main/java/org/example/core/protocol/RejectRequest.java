@@ -0,0 +1,44 @@
+package org.example.core.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reject Request message (Fast Extension, BEP 6) - a request will not be served
+ * Format: <length><id><index><begin><length>
+ * - length: 4 bytes (13)
+ * - id: 1 byte (0x10)
+ * - index, begin, length: same as the rejected Request
+ */
+public class RejectRequest {
+    public static final byte MESSAGE_ID = 0x10;
+
+    private int pieceIndex;
+    private int begin;
+    private int length;
+
+    public RejectRequest(int pieceIndex, int begin, int length) {
+        this.pieceIndex = pieceIndex;
+        this.begin = begin;
+        this.length = length;
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(pieceIndex);
+        buffer.putInt(begin);
+        buffer.putInt(length);
+        return buffer.array();
+    }
+
+    public static RejectRequest parse(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int pieceIndex = buffer.getInt();
+        int begin = buffer.getInt();
+        int length = buffer.getInt();
+        return new RejectRequest(pieceIndex, begin, length);
+    }
+
+    public int getPieceIndex() { return pieceIndex; }
+    public int getBegin() { return begin; }
+    public int getLength() { return length; }
+}
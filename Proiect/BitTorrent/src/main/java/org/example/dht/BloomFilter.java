@@ -0,0 +1,71 @@
+package org.example.dht;
+
+import org.example.util.Hash;
+import java.net.InetAddress;
+
+/**
+ * BEP 33 bloom filter of peer IP addresses
+ * 2048 bits set by k=2 indexes taken from SHA-1 of the address; 256 bytes
+ * summarise a swarm of any size, and filters from several nodes are merged
+ * with a bitwise OR before the count is estimated.
+ */
+public class BloomFilter {
+    public static final int BYTES = 256;
+    private static final int M = BYTES * 8;
+    private static final int K = 2;
+    private static final double MAX_ESTIMATE = 6000; // with every bit set the formula has no answer
+
+    private final byte[] bits;
+
+    public BloomFilter() {
+        this.bits = new byte[BYTES];
+    }
+
+    private BloomFilter(byte[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Filter received in a scrape response, null if it has the wrong size
+     */
+    public static BloomFilter fromBytes(byte[] data) {
+        if (data == null || data.length != BYTES) return null;
+        return new BloomFilter(data.clone());
+    }
+
+    public void add(InetAddress address) {
+        byte[] hash = Hash.sha1(address.getAddress());
+        for (int i = 0; i < K; i++) {
+            int index = ((hash[2 * i] & 0xFF) | ((hash[2 * i + 1] & 0xFF) << 8)) % M;
+            bits[index / 8] |= (byte)(1 << (index % 8));
+        }
+    }
+
+    public void merge(BloomFilter other) {
+        for (int i = 0; i < BYTES; i++) {
+            bits[i] |= other.bits[i];
+        }
+    }
+
+    /**
+     * Estimated number of distinct addresses: c = ln(z / m) / (k * ln(1 - 1 / m))
+     */
+    public int estimate() {
+        int zeros = M;
+        for (byte b : bits) zeros -= Integer.bitCount(b & 0xFF);
+        if (zeros == 0) return (int)MAX_ESTIMATE;
+        double c = Math.log((double)zeros / M) / (K * Math.log(1 - 1.0 / M));
+        return (int)Math.round(Math.min(c, MAX_ESTIMATE));
+    }
+
+    public boolean isEmpty() {
+        for (byte b : bits) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    public byte[] toBytes() {
+        return bits.clone();
+    }
+}
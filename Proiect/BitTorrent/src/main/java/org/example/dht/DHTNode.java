@@ -1,15 +1,22 @@
 package org.example.dht;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Represents a node in the DHT
  */
 public class DHTNode {
+    public static final int COMPACT_LENGTH = 26; // 20-byte id + IPv4 address + port
+
     private byte[] nodeId; // 20-byte ID
     private InetSocketAddress address;
     private long lastSeen;
+    private int failures; // queries without an answer since the last one answered
 
     public DHTNode(byte[] nodeId, InetSocketAddress address) {
         this.nodeId = nodeId;
@@ -19,6 +26,11 @@ public class DHTNode {
 
     public void updateLastSeen() {
         this.lastSeen = System.currentTimeMillis();
+        this.failures = 0;
+    }
+
+    public void markFailed() {
+        failures++;
     }
 
     /**
@@ -32,9 +44,42 @@ public class DHTNode {
         return distance;
     }
 
+    /**
+     * Compact node info: node id followed by the compact IPv4 address
+     */
+    public byte[] toCompact() {
+        byte[] compact = new byte[COMPACT_LENGTH];
+        System.arraycopy(nodeId, 0, compact, 0, 20);
+        System.arraycopy(address.getAddress().getAddress(), 0, compact, 20, 4);
+        compact[24] = (byte)((address.getPort() >> 8) & 0xFF);
+        compact[25] = (byte)(address.getPort() & 0xFF);
+        return compact;
+    }
+
+    public boolean isIPv4() {
+        return address.getAddress().getAddress().length == 4;
+    }
+
+    public static List<DHTNode> parseCompact(byte[] data) {
+        List<DHTNode> nodes = new ArrayList<>(data.length / COMPACT_LENGTH);
+        for (int off = 0; off + COMPACT_LENGTH <= data.length; off += COMPACT_LENGTH) {
+            int port = ((data[off + 24] & 0xFF) << 8) | (data[off + 25] & 0xFF);
+            if (port == 0) continue;
+            try {
+                InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(data, off + 20, off + 24));
+                nodes.add(new DHTNode(Arrays.copyOfRange(data, off, off + 20), new InetSocketAddress(ip, port)));
+            } catch (UnknownHostException e) {
+                // Not thrown for 4-byte addresses
+            }
+        }
+        return nodes;
+    }
+
     public byte[] getNodeId() { return nodeId; }
     public InetSocketAddress getAddress() { return address; }
+    public void setAddress(InetSocketAddress address) { this.address = address; }
     public long getLastSeen() { return lastSeen; }
+    public int getFailures() { return failures; }
 
     @Override
     public boolean equals(Object o) {
@@ -46,4 +91,4 @@ public class DHTNode {
     public int hashCode() {
         return Arrays.hashCode(nodeId);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package org.example.dht;
+
+import org.example.util.Hash;
+import org.example.util.Logger;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persisted DHT state, so a restarted node keeps its identity and contacts
+ * File format (big endian):
+ * - magic: 4 bytes ("BTDH")
+ * - version: 1 byte
+ * - node id: 20 bytes
+ * - port: 2 bytes, the unicast port the node listened on
+ * - nodeCount: 4 bytes, then per node its id (20 bytes) and address
+ * - torrentCount: 4 bytes, then per torrent its info_hash (20 bytes),
+ *   peerCount (4 bytes) and per peer its address, kind (1 byte) and
+ *   last refresh time (8 bytes)
+ * An address is the IP length (1 byte, 4 or 16), the IP and the port (2 bytes).
+ */
+public class DhtSnapshot {
+    private static final int MAGIC = 0x42544448; // "BTDH"
+    private static final byte VERSION = 1;
+
+    final byte[] nodeId;
+    final int port;
+    final List<DHTNode> nodes;
+    final Map<String, List<PeerStore.Stored>> peers; // infoHashHex -> peers, oldest refresh first
+
+    DhtSnapshot(byte[] nodeId, int port, List<DHTNode> nodes, Map<String, List<PeerStore.Stored>> peers) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.nodes = nodes;
+        this.peers = peers;
+    }
+
+    /**
+     * Read a snapshot, null if the file is missing or unusable
+     */
+    static DhtSnapshot load(File file) {
+        if (file == null || !file.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) return null;
+
+            byte[] nodeId = new byte[20];
+            in.readFully(nodeId);
+            int port = in.readUnsignedShort();
+
+            int nodeCount = in.readInt();
+            List<DHTNode> nodes = new ArrayList<>(Math.min(nodeCount, 1024));
+            for (int i = 0; i < nodeCount; i++) {
+                byte[] id = new byte[20];
+                in.readFully(id);
+                nodes.add(new DHTNode(id, readAddress(in)));
+            }
+
+            int torrentCount = in.readInt();
+            Map<String, List<PeerStore.Stored>> peers = new HashMap<>();
+            for (int i = 0; i < torrentCount; i++) {
+                byte[] infoHash = new byte[20];
+                in.readFully(infoHash);
+                int peerCount = in.readInt();
+                List<PeerStore.Stored> stored = new ArrayList<>(Math.min(peerCount, 1024));
+                for (int j = 0; j < peerCount; j++) {
+                    InetSocketAddress peer = readAddress(in);
+                    int kind = in.readUnsignedByte();
+                    long refreshed = in.readLong();
+                    if (kind >= PeerStore.Kind.values().length) throw new IOException("bad peer kind " + kind);
+                    stored.add(new PeerStore.Stored(peer, PeerStore.Kind.values()[kind], refreshed));
+                }
+                peers.put(Hash.toHex(infoHash), stored);
+            }
+            return new DhtSnapshot(nodeId, port, nodes, peers);
+        } catch (IOException e) {
+            Logger.warn("Ignoring unreadable DHT snapshot " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Write the snapshot (to a temp file, then rename)
+     */
+    void save(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.write(nodeId);
+            out.writeShort(port);
+
+            out.writeInt(nodes.size());
+            for (DHTNode node : nodes) {
+                out.write(node.getNodeId());
+                writeAddress(out, node.getAddress());
+            }
+
+            out.writeInt(peers.size());
+            for (Map.Entry<String, List<PeerStore.Stored>> e : peers.entrySet()) {
+                out.write(Hash.fromHex(e.getKey()));
+                out.writeInt(e.getValue().size());
+                for (PeerStore.Stored stored : e.getValue()) {
+                    writeAddress(out, stored.peer);
+                    out.writeByte(stored.kind.ordinal());
+                    out.writeLong(stored.refreshed);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Logger.error("Failed to write DHT snapshot " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.error("Failed to replace DHT snapshot " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+        byte[] ip = address.getAddress().getAddress();
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeShort(address.getPort());
+    }
+
+    private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length != 4 && length != 16) throw new IOException("bad address length " + length);
+        byte[] ip = new byte[length];
+        in.readFully(ip);
+        return new InetSocketAddress(InetAddress.getByAddress(ip), in.readUnsignedShort());
+    }
+}
@@ -1,50 +1,143 @@
 package org.example.dht;
 
 import org.example.util.*;
+import java.io.File;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
- * Local DHT implementation for peer discovery in LAN
- * Robust version - binds to all interfaces to fix VirtualBox/VPN issues
+ * Kademlia-style DHT for peer discovery
+ * Nodes keep a k-bucket routing table and talk over unicast UDP: lookups
+ * iteratively query the ALPHA closest known nodes until the K closest to the
+ * target have answered, and announces are stored only on those K nodes.
+ * The LAN multicast group is used just to bootstrap, a node pings it to
+ * find its first contacts.
+ * Receiving is staged: the receive threads only rate-limit per source and
+ * decode, handling (and the sends it triggers) runs on a worker pool.
+ * With a state file the node id, contacts and stored peers survive restarts.
  */
 public class LocalDHT {
     private static final String MULTICAST_GROUP = "239.192.1.1";
-    private static final int DHT_PORT = 6881;
+    private static final int DHT_PORT = 6881; // multicast bootstrap port
+    private static final int K = RoutingTable.K;
+    private static final int ALPHA = 3; // parallel queries per lookup
+    private static final int UNICAST_PORT = Integer.getInteger("bittorrent.dhtPort", 0); // 0 = any free port
+    private static final long QUERY_TIMEOUT_MS = Long.getLong("bittorrent.dhtQueryTimeoutMs", 1000);
+    private static final int QUERY_RETRIES = Integer.getInteger("bittorrent.dhtQueryRetries", 1);
+    private static final long BOOTSTRAP_INTERVAL_MS = 30000;
+    private static final long TOKEN_ROTATE_MS = 5 * 60 * 1000;
+    private static final int MAX_VALUES = 50; // peers per get_peers response
+    private static final int MAX_PACKET_BYTES = Integer.getInteger("bittorrent.dhtMaxPacketBytes", 1400); // fits one Ethernet frame
+    private static final long ANNOUNCE_BATCH_MS = Long.getLong("bittorrent.dhtAnnounceBatchMs", 500);
+    private static final int COMPACT_VALUE_BYTES = 8; // "6:" + IPv4 address and port
+    private static final long PEER_TTL_MS = Long.getLong("bittorrent.dhtPeerTtlMs", 30 * 60 * 1000);
+    private static final int MAX_PEERS_PER_TORRENT = Integer.getInteger("bittorrent.dhtMaxPeersPerTorrent", 500);
+    private static final long REANNOUNCE_MS = Long.getLong("bittorrent.dhtReannounceMs", 15 * 60 * 1000);
+    private static final long MAINTENANCE_MS = 60000; // expiry and node refresh
+    private static final int WORKERS = Integer.getInteger("bittorrent.dhtWorkers", 4);
+    private static final int WORKER_QUEUE = Integer.getInteger("bittorrent.dhtWorkerQueue", 4096);
+    private static final double SOURCE_RATE = Integer.getInteger("bittorrent.dhtSourceRate", 50); // messages/s per address
+    private static final int SOURCE_BURST = Integer.getInteger("bittorrent.dhtSourceBurst", 100);
+    private static final int MAX_DATAGRAM = 65536;
+    private static final int RECEIVE_BUFFER = 1024 * 1024;
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("bittorrent.dhtSnapshotMs", 5 * 60 * 1000);
 
     private final byte[] nodeId;
-    private MulticastSocket socket;
+    private final File stateFile;           // snapshot for warm restarts, null = none
+    private final List<DHTNode> restoredNodes; // verified in the background after start
+    private MulticastSocket multicastSocket; // bootstrap only
+    private DatagramChannel channel;         // all queries and responses
     private InetAddress group;
 
     // storage
-    private Map<String, Set<InetSocketAddress>> torrentPeers; // info_hash -> peers
-    private Map<String, DHTNode> nodes; // nodeId -> DHTNode
+    private final PeerStore torrentPeers; // info_hash -> peers announced to us or found by lookups
+    private final RoutingTable routingTable;
     private final Map<String, String> torrentNames = new ConcurrentHashMap<>();   // infoHashHex -> filename
     private final Map<String, Long> torrentSizes = new ConcurrentHashMap<>();     // infoHashHex -> size
+    private final Map<String, byte[]> ownTorrents = new ConcurrentHashMap<>();    // infoHashHex -> info_hash we announce
+    private final Set<String> seeding = ConcurrentHashMap.newKeySet();           // own torrents announced as complete
+    private final Map<String, byte[]> pendingAnnounces = new ConcurrentHashMap<>(); // waiting for the next batch
+    private final Map<String, SwarmEstimate> swarmEstimates = new ConcurrentHashMap<>(); // from our own get_peers lookups
+    private final AtomicBoolean announceScheduled = new AtomicBoolean();
+    private volatile int announcePort;
+    private volatile BiConsumer<byte[], InetSocketAddress> announceListener; // peers announced to us
+
+    private final TransactionTable transactions; // queries awaiting a response
+    private volatile String bootstrapTx;         // multicast ping, any node may answer it
+    private volatile long bootstrapUntil;
+    private final CompletableFuture<Void> firstContact = new CompletableFuture<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile byte[] tokenSecret = new byte[8];
+    private volatile byte[] previousTokenSecret = new byte[8];
+
+    private final RateLimiter rateLimiter = new RateLimiter(SOURCE_RATE, SOURCE_BURST);
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();   // over the source's rate or worker queue full
+    private final AtomicLong malformed = new AtomicLong();
 
     private volatile boolean running;
-    private ExecutorService executor;
+    private ExecutorService executor; // receive threads
+    private ThreadPoolExecutor workers; // message handling
+    private ScheduledExecutorService timer;
 
     public LocalDHT() throws IOException {
-        this.nodeId = generateNodeId();
-        this.torrentPeers = new ConcurrentHashMap<>();
-        this.nodes = new ConcurrentHashMap<>();
+        this(null);
+    }
+
+    /**
+     * @param stateFile snapshot to restore from and save to, null to start fresh every time
+     */
+    public LocalDHT(File stateFile) throws IOException {
+        DhtSnapshot snapshot = DhtSnapshot.load(stateFile);
+        this.stateFile = stateFile;
+        this.nodeId = snapshot != null ? snapshot.nodeId : generateNodeId();
+        this.torrentPeers = new PeerStore(PEER_TTL_MS, MAX_PEERS_PER_TORRENT);
+        this.routingTable = new RoutingTable(nodeId);
+        this.restoredNodes = snapshot != null ? restore(snapshot) : Collections.emptyList();
         this.executor = Executors.newCachedThreadPool();
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE), r -> {
+                    Thread t = new Thread(r, "dht-worker-" + workerCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dht-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        random.nextBytes(tokenSecret);
 
         // 1. Create socket and enable address reuse
-        this.socket = new MulticastSocket(DHT_PORT);
-        this.socket.setReuseAddress(true);
+        this.multicastSocket = new MulticastSocket(DHT_PORT);
+        this.multicastSocket.setReuseAddress(true);
 
         // 2. CRITICAL: Enable Loopback! (false means "enabled" in setLoopbackMode legacy API)
-        this.socket.setLoopbackMode(false);
+        this.multicastSocket.setLoopbackMode(false);
 
         this.group = InetAddress.getByName(MULTICAST_GROUP);
 
         // 3. CRITICAL: Join group on ALL valid interfaces
         joinGroupOnAllInterfaces();
 
+        // 4. Unicast socket for the DHT itself
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER); // absorb bursts until a receive thread drains them
+        bindChannel(UNICAST_PORT == 0 && snapshot != null ? snapshot.port : UNICAST_PORT);
+        this.transactions = new TransactionTable(timer, this::send, QUERY_TIMEOUT_MS, QUERY_RETRIES);
+
         Logger.info("DHT started with node ID: " + Hash.toHex(nodeId));
     }
 
@@ -61,7 +154,7 @@ public class LocalDHT {
 
                 try {
                     // Join group on specific interface
-                    socket.joinGroup(new InetSocketAddress(group, DHT_PORT), iface);
+                    multicastSocket.joinGroup(new InetSocketAddress(group, DHT_PORT), iface);
                 } catch (IOException e) {
                     Logger.debug("Could not join on " + iface.getName() + ": " + e.getMessage());
                 }
@@ -71,6 +164,40 @@ public class LocalDHT {
         }
     }
 
+    /**
+     * Prefer the port of the last run, other nodes still have it in their tables
+     */
+    private void bindChannel(int port) throws IOException {
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            if (port == UNICAST_PORT) throw e;
+            Logger.debug("DHT port " + port + " of the last run is taken, using " + UNICAST_PORT);
+            channel.bind(new InetSocketAddress(UNICAST_PORT));
+        }
+    }
+
+    /**
+     * Load contacts and unexpired peers of the last run, returns the nodes to verify
+     */
+    private List<DHTNode> restore(DhtSnapshot snapshot) {
+        List<DHTNode> nodes = new ArrayList<>();
+        for (DHTNode node : snapshot.nodes) {
+            if (routingTable.add(node.getNodeId(), node.getAddress())) nodes.add(node);
+        }
+        long now = System.currentTimeMillis();
+        int peers = 0;
+        for (Map.Entry<String, List<PeerStore.Stored>> e : snapshot.peers.entrySet()) {
+            for (PeerStore.Stored stored : e.getValue()) {
+                if (now - stored.refreshed >= PEER_TTL_MS) continue;
+                torrentPeers.add(e.getKey(), stored.peer, stored.kind, stored.refreshed);
+                peers++;
+            }
+        }
+        Logger.info("Restored " + nodes.size() + " DHT nodes and " + peers + " peers from " + stateFile.getName());
+        return nodes;
+    }
+
     private byte[] generateNodeId() {
         byte[] id = new byte[20];
         new Random().nextBytes(id);
@@ -79,21 +206,222 @@ public class LocalDHT {
 
     public void start() {
         running = true;
-        executor.submit(this::receiveLoop);
-        Logger.info("DHT listening on " + MULTICAST_GROUP + ":" + DHT_PORT);
+        executor.submit(() -> receiveLoop(multicastSocket));
+        executor.submit(this::channelReceiveLoop);
+        timer.scheduleAtFixedRate(this::bootstrap, 0, BOOTSTRAP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::rotateTokenSecret, TOKEN_ROTATE_MS, TOKEN_ROTATE_MS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::maintain, MAINTENANCE_MS, MAINTENANCE_MS, TimeUnit.MILLISECONDS);
+        if (stateFile != null) {
+            timer.scheduleAtFixedRate(this::saveSnapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (!restoredNodes.isEmpty()) {
+            // Lookups can use the restored contacts right away, the ones that left are dropped as pings time out
+            firstContact.complete(null);
+            timer.execute(this::verifyRestoredNodes);
+        }
+        // Stored peers expire, so keep our own announces fresh well within their TTL
+        timer.scheduleAtFixedRate(this::announceAll, REANNOUNCE_MS, REANNOUNCE_MS, TimeUnit.MILLISECONDS);
+        Logger.info("DHT listening on UDP " + getPort() + ", bootstrap via " + MULTICAST_GROUP + ":" + DHT_PORT);
+    }
+
+    // ==================== BOOTSTRAP ====================
+
+    /**
+     * Ping the multicast group while the routing table is thin, then look up
+     * our own id to fill the buckets around us
+     */
+    private void bootstrap() {
+        if (!running || routingTable.size() >= K) return;
+
+        Message ping = new Message(Message.Type.PING, transactions.newId());
+        ping.put("node_id", nodeId);
+        bootstrapTx = ping.getTransactionId();
+        bootstrapUntil = System.currentTimeMillis() + QUERY_TIMEOUT_MS;
+        sendMessageTo(ping, new InetSocketAddress(group, DHT_PORT));
+
+        // No announce here: addNode announces on first contact, the reannounce timer after that
+        timer.schedule(() -> lookup(nodeId, false, null), QUERY_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private void announceAll() {
+        if (routingTable.size() == 0) return;
+        announce(new ArrayList<>(ownTorrents.values()));
+    }
+
+    // ==================== MAINTENANCE ====================
+
+    private void verifyRestoredNodes() {
+        for (DHTNode node : restoredNodes) {
+            Message ping = new Message(Message.Type.PING, transactions.newId());
+            ping.put("node_id", nodeId);
+            query(ping, node).whenComplete((response, error) -> {
+                if (error != null) routingTable.remove(node.getNodeId());
+            });
+        }
     }
 
     /**
-     * Announce that we have a torrent
+     * Save the node id, good contacts and unexpired peers for the next start
+     * Synchronized: the periodic save and the one in stop() share the temp file.
      */
-    public void announceTorrent(byte[] infoHash, int port) {
-        Message msg = new Message(Message.Type.ANNOUNCE_PEER, generateTxId());
-        msg.put("info_hash", infoHash);
-        msg.put("port", (long)port); // Ensure Long type
-        msg.put("node_id", nodeId);
+    private synchronized void saveSnapshot() {
+        if (stateFile == null) return;
+        List<DHTNode> nodes = new ArrayList<>();
+        for (DHTNode node : routingTable.all()) {
+            if (node.getFailures() < RoutingTable.MAX_FAILURES) nodes.add(node);
+        }
+        new DhtSnapshot(nodeId, getPort(), nodes, torrentPeers.export(System.currentTimeMillis())).save(stateFile);
+    }
+
+    /**
+     * Expire stored peers, ping nodes we have not heard from in a while and
+     * evict the ones that stayed silent past their TTL
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        rateLimiter.prune(now);
+        int expiredPeers = torrentPeers.expire(now);
+        int evictedNodes = routingTable.evictStale(now);
+        if (expiredPeers > 0 || evictedNodes > 0) {
+            Logger.debug("DHT maintenance: expired " + expiredPeers + " peers, evicted " + evictedNodes + " nodes");
+        }
 
-        sendMessage(msg);
-        Logger.info("Announced torrent: " + Hash.toHex(infoHash));
+        // An answer refreshes lastSeen, silence marks the node failed
+        for (DHTNode node : routingTable.seenBefore(now - RoutingTable.NODE_TTL_MS / 2)) {
+            Message ping = new Message(Message.Type.PING, transactions.newId());
+            ping.put("node_id", nodeId);
+            query(ping, node);
+        }
+    }
+
+    // ==================== PUBLIC API ====================
+
+    /**
+     * Announce that we have a torrent, on the K nodes closest to its info_hash
+     * Announces made within ANNOUNCE_BATCH_MS of each other go out as one batch.
+     * @param seed we have the complete torrent, counted as a seed by scrapes
+     */
+    public void announceTorrent(byte[] infoHash, int port, boolean seed) {
+        announcePort = port;
+        String hex = Hash.toHex(infoHash);
+        ownTorrents.put(hex, infoHash);
+        if (seed) seeding.add(hex);
+        else seeding.remove(hex);
+        if (routingTable.size() == 0) {
+            Logger.info("No DHT contacts yet, announce of " + hex + " deferred until bootstrap");
+            return;
+        }
+        pendingAnnounces.put(hex, infoHash);
+        if (announceScheduled.compareAndSet(false, true)) {
+            timer.schedule(this::flushAnnounces, ANNOUNCE_BATCH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushAnnounces() {
+        announceScheduled.set(false);
+        List<byte[]> batch = new ArrayList<>();
+        for (String hex : pendingAnnounces.keySet()) {
+            byte[] infoHash = pendingAnnounces.remove(hex);
+            if (infoHash != null) batch.add(infoHash);
+        }
+        announce(batch);
+    }
+
+    /**
+     * Node an announce batch goes to, with every info_hash it is among the K closest to
+     */
+    private static class AnnounceTarget {
+        final DHTNode node;
+        final byte[] token; // tokens are per address, one is good for every info_hash
+        final List<byte[]> infoHashes = new ArrayList<>();
+
+        AnnounceTarget(DHTNode node, byte[] token) {
+            this.node = node;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Look up every info_hash, then send each of the nodes found a single
+     * announce_peer (split only to stay within MAX_PACKET_BYTES)
+     */
+    private void announce(List<byte[]> infoHashes) {
+        if (infoHashes.isEmpty()) return;
+        List<CompletableFuture<Lookup>> lookups = new ArrayList<>();
+        for (byte[] infoHash : infoHashes) {
+            lookups.add(lookup(infoHash, true, null));
+        }
+
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            Map<String, AnnounceTarget> targets = new LinkedHashMap<>();
+            for (CompletableFuture<Lookup> future : lookups) {
+                Lookup lookup = future.join();
+                for (Candidate c : lookup.closestResponded()) {
+                    if (c.token == null) continue;
+                    targets.computeIfAbsent(Hash.toHex(c.node.getNodeId()), k -> new AnnounceTarget(c.node, c.token))
+                            .infoHashes.add(lookup.target);
+                }
+            }
+
+            int messages = 0;
+            for (AnnounceTarget target : targets.values()) {
+                messages += sendAnnounce(target);
+            }
+            if (infoHashes.size() == 1) {
+                Logger.info("Announced torrent " + Hash.toHex(infoHashes.get(0)) + " to " + targets.size() + " nodes");
+            } else {
+                Logger.info("Announced " + infoHashes.size() + " torrents to " + targets.size() +
+                        " nodes in " + messages + " messages");
+            }
+        });
+    }
+
+    /**
+     * Seeds and downloads go in separate messages, as the seed flag covers a whole announce
+     */
+    private int sendAnnounce(AnnounceTarget target) {
+        List<byte[]> seeds = new ArrayList<>();
+        List<byte[]> downloads = new ArrayList<>();
+        for (byte[] infoHash : target.infoHashes) {
+            (seeding.contains(Hash.toHex(infoHash)) ? seeds : downloads).add(infoHash);
+        }
+        return sendAnnounce(target, seeds, true) + sendAnnounce(target, downloads, false);
+    }
+
+    /**
+     * A single info_hash goes in "info_hash", several in "info_hashes" (20 bytes each)
+     */
+    private int sendAnnounce(AnnounceTarget target, List<byte[]> all, boolean seed) {
+        int perMessage = Math.max(1, (MAX_PACKET_BYTES - 128) / 20);
+        int messages = 0;
+        for (int from = 0; from < all.size(); from += perMessage) {
+            List<byte[]> chunk = all.subList(from, Math.min(all.size(), from + perMessage));
+            Message msg = new Message(Message.Type.ANNOUNCE_PEER, transactions.newId());
+            if (chunk.size() == 1) {
+                msg.put("info_hash", chunk.get(0));
+            } else {
+                byte[] joined = new byte[chunk.size() * 20];
+                for (int i = 0; i < chunk.size(); i++) {
+                    System.arraycopy(chunk.get(i), 0, joined, i * 20, 20);
+                }
+                msg.put("info_hashes", joined);
+            }
+            msg.put("port", (long)announcePort); // Ensure Long type
+            if (seed) msg.put("seed", 1L);
+            msg.put("token", target.token);
+            msg.put("node_id", nodeId);
+            query(msg, target.node);
+            messages++;
+        }
+        return messages;
+    }
+
+    /**
+     * Notified of every peer announced to this node, so downloads learn about
+     * peers that join after their lookup
+     */
+    public void setAnnounceListener(BiConsumer<byte[], InetSocketAddress> listener) {
+        this.announceListener = listener;
     }
 
     /**
@@ -106,60 +434,311 @@ public class LocalDHT {
     }
 
     /**
-     * Get peers we already found for a torrent
+     * Get unexpired peers we already found for a torrent
      */
-    public Set<InetSocketAddress> getPeers(byte[] infoHash) {
-        String key = Hash.toHex(infoHash);
-        return torrentPeers.getOrDefault(key, new HashSet<>());
+    public List<InetSocketAddress> getPeers(byte[] infoHash) {
+        return torrentPeers.get(Hash.toHex(infoHash), System.currentTimeMillis());
     }
 
     /**
-     * Query DHT for peers
+     * Look up peers for a torrent
+     * The listener gets every peer as soon as a response carries it (and the
+     * peers we already know right away), so connections can start before the
+     * lookup ends. The future completes with all peers found once it converged.
      */
-    public void findPeers(byte[] infoHash) {
-        Message msg = new Message(Message.Type.GET_PEERS, generateTxId());
-        msg.put("info_hash", infoHash);
-        msg.put("node_id", nodeId);
-
-        sendMessage(msg);
+    public CompletableFuture<Set<InetSocketAddress>> findPeers(byte[] infoHash, Consumer<InetSocketAddress> listener) {
         Logger.debug("Querying for peers: " + Hash.toHex(infoHash));
+        Lookup lookup = new Lookup(infoHash, true, listener);
+        getPeers(infoHash).forEach(lookup::notifyPeer);
+
+        // Right after start the bootstrap ping may still be out
+        firstContact.copy().completeOnTimeout(null, 2 * QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS).thenRun(() -> {
+            lookup.addCandidates(routingTable.closest(infoHash, K));
+            lookup.step();
+        });
+        return lookup.done.thenApply(done -> {
+            Logger.debug("Peer lookup for " + Hash.toHex(infoHash) + " done, " + done.responded +
+                    " nodes answered, " + done.peers.size() + " peers");
+            return done.peers;
+        });
     }
 
-    private void sendMessage(Message msg) {
-        try {
-            byte[] data = msg.toBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, group, DHT_PORT);
-            socket.send(packet);
-        } catch (IOException e) {
-            Logger.error("Failed to send DHT message: " + e.getMessage());
+    // ==================== LOOKUPS ====================
+
+    /**
+     * Run an iterative lookup, completes once it converged on the K closest nodes
+     * @param peerListener notified of every new peer a get_peers response carries, may be null
+     */
+    private CompletableFuture<Lookup> lookup(byte[] target, boolean getPeers, Consumer<InetSocketAddress> peerListener) {
+        Lookup lookup = new Lookup(target, getPeers, peerListener);
+        lookup.addCandidates(routingTable.closest(target, K));
+        lookup.step();
+        return lookup.done;
+    }
+
+    /**
+     * Node of a lookup's shortlist
+     */
+    private static class Candidate {
+        enum State { NEW, QUERIED, RESPONDED, FAILED }
+
+        final DHTNode node;
+        State state = State.NEW;
+        byte[] token; // from get_peers, needed to announce
+        BloomFilter seeds;       // BEP 33 scrape filters from get_peers, may be null
+        BloomFilter downloaders;
+
+        Candidate(DHTNode node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Iterative find_node / get_peers: keep ALPHA queries in flight towards the
+     * closest unqueried candidates, finish once the K closest candidates have
+     * all answered or failed
+     */
+    private class Lookup {
+        final byte[] target;
+        final boolean getPeers;
+        final Consumer<InetSocketAddress> peerListener;
+        final CompletableFuture<Lookup> done = new CompletableFuture<>();
+        final Map<String, Candidate> candidates = new HashMap<>(); // guarded by this
+        final Set<InetSocketAddress> peers = ConcurrentHashMap.newKeySet();
+        int inFlight;
+        int responded;
+
+        Lookup(byte[] target, boolean getPeers, Consumer<InetSocketAddress> peerListener) {
+            this.target = target;
+            this.getPeers = getPeers;
+            this.peerListener = peerListener;
+        }
+
+        synchronized void addCandidates(List<DHTNode> nodes) {
+            for (DHTNode node : nodes) {
+                if (Arrays.equals(node.getNodeId(), nodeId)) continue;
+                candidates.putIfAbsent(Hash.toHex(node.getNodeId()), new Candidate(node));
+            }
+        }
+
+        void step() {
+            boolean finished = false;
+            synchronized (this) {
+                if (done.isDone()) return;
+                boolean waiting = false;
+                int considered = 0;
+                for (Candidate c : sortedCandidates()) {
+                    if (considered++ >= K) break;
+                    if (c.state != Candidate.State.NEW) continue;
+                    if (inFlight >= ALPHA) {
+                        waiting = true;
+                        continue;
+                    }
+                    c.state = Candidate.State.QUERIED;
+                    inFlight++;
+                    query(createQuery(), c.node).whenComplete((response, error) -> {
+                        if (error == null) onResponse(c, response);
+                        else onFailure(c);
+                    });
+                }
+                finished = inFlight == 0 && !waiting && !done.isDone();
+            }
+            if (finished) {
+                if (getPeers) recordSwarmEstimate(this);
+                done.complete(this);
+            }
+        }
+
+        private List<Candidate> sortedCandidates() {
+            List<Candidate> sorted = new ArrayList<>();
+            for (Candidate c : candidates.values()) {
+                if (c.state != Candidate.State.FAILED) sorted.add(c);
+            }
+            sorted.sort((a, b) -> RoutingTable.compareDistance(a.node.getNodeId(), b.node.getNodeId(), target));
+            return sorted;
+        }
+
+        private Message createQuery() {
+            Message msg;
+            if (getPeers) {
+                msg = new Message(Message.Type.GET_PEERS, transactions.newId());
+                msg.put("info_hash", target);
+                msg.put("scrape", 1L);
+            } else {
+                msg = new Message(Message.Type.FIND_NODE, transactions.newId());
+                msg.put("target", target);
+            }
+            msg.put("node_id", nodeId);
+            return msg;
+        }
+
+        void onResponse(Candidate c, Message msg) {
+            synchronized (this) {
+                if (c.state != Candidate.State.QUERIED) return;
+                c.state = Candidate.State.RESPONDED;
+                inFlight--;
+                responded++;
+                if (msg.get("token") instanceof byte[]) c.token = (byte[])msg.get("token");
+                if (msg.get("BFsd") instanceof byte[]) c.seeds = BloomFilter.fromBytes((byte[])msg.get("BFsd"));
+                if (msg.get("BFpe") instanceof byte[]) c.downloaders = BloomFilter.fromBytes((byte[])msg.get("BFpe"));
+                if (msg.get("nodes") instanceof byte[]) addCandidates(DHTNode.parseCompact((byte[])msg.get("nodes")));
+            }
+            if (getPeers) {
+                for (InetSocketAddress peer : storeValues(target, msg)) {
+                    notifyPeer(peer);
+                }
+            }
+            step();
+        }
+
+        void onFailure(Candidate c) {
+            synchronized (this) {
+                if (c.state != Candidate.State.QUERIED) return;
+                c.state = Candidate.State.FAILED;
+                inFlight--;
+            }
+            step();
+        }
+
+        void notifyPeer(InetSocketAddress peer) {
+            if (peerListener == null || !peers.add(peer)) return;
+            try {
+                peerListener.accept(peer);
+            } catch (RuntimeException e) {
+                Logger.error("DHT peer listener failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * The K closest nodes that answered, closest first
+         */
+        synchronized List<Candidate> closestResponded() {
+            List<Candidate> result = new ArrayList<>();
+            for (Candidate c : sortedCandidates()) {
+                if (c.state == Candidate.State.RESPONDED) result.add(c);
+                if (result.size() >= K) break;
+            }
+            return result;
         }
     }
 
-    private void receiveLoop() {
-        byte[] buffer = new byte[8192];
+    /**
+     * Merge the scrape filters of the K closest nodes a get_peers lookup reached
+     * (and what was announced to us) into a swarm size estimate
+     */
+    private void recordSwarmEstimate(Lookup lookup) {
+        String key = Hash.toHex(lookup.target);
+        BloomFilter seeds = new BloomFilter();
+        BloomFilter downloaders = new BloomFilter();
+        long now = System.currentTimeMillis();
+        torrentPeers.scrape(key, now, seeds, downloaders);
+
+        boolean scraped = false;
+        for (Candidate c : lookup.closestResponded()) {
+            if (c.seeds != null) seeds.merge(c.seeds);
+            if (c.downloaders != null) downloaders.merge(c.downloaders);
+            scraped |= c.seeds != null || c.downloaders != null;
+        }
+        if (scraped || !seeds.isEmpty() || !downloaders.isEmpty()) {
+            swarmEstimates.put(key, new SwarmEstimate(seeds.estimate(), downloaders.estimate(), now));
+        }
+    }
+
+    /**
+     * Send a query to a node; a node that never answers is marked failed
+     */
+    private CompletableFuture<Message> query(Message msg, DHTNode node) {
+        CompletableFuture<Message> future = transactions.send(msg, node.getAddress());
+        future.whenComplete((response, error) -> {
+            if (error instanceof TimeoutException) routingTable.markFailed(node.getNodeId());
+        });
+        return future;
+    }
+
+    // ==================== RECEIVING ====================
+
+    /**
+     * Multicast group, only bootstrap pings arrive here
+     */
+    private void receiveLoop(DatagramSocket source) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
         while (running) {
             try {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                source.receive(packet);
 
                 byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
                 InetSocketAddress sender = new InetSocketAddress(
                         packet.getAddress(), packet.getPort()
                 );
 
-                handleMessage(data, sender);
+                dispatch(data, sender);
+            } catch (IOException e) {
+                if (running) {
+                    Logger.error("DHT receive error: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // One bad datagram must not stop this receive thread
+                Logger.error("DHT multicast datagram failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Unicast channel, everything else
+     */
+    private void channelReceiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        while (running) {
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                dispatch(data, sender);
+            } catch (ClosedChannelException e) {
+                return;
             } catch (IOException e) {
                 if (running) {
                     Logger.error("DHT receive error: " + e.getMessage());
                 }
+            } catch (RuntimeException e) {
+                // One bad datagram must not stop this receive thread
+                Logger.error("DHT datagram failed: " + e);
             }
         }
     }
 
-    private void handleMessage(byte[] data, InetSocketAddress sender) {
+    /**
+     * Receive stage: rate-limit the source, decode, and queue for a worker
+     */
+    private void dispatch(byte[] data, InetSocketAddress sender) {
+        received.incrementAndGet();
+        if (!rateLimiter.tryAcquire(sender.getAddress(), System.currentTimeMillis())) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        Message msg;
         try {
-            Message msg = Message.parse(data);
+            msg = Message.parse(data);
+        } catch (Exception e) {
+            malformed.incrementAndGet();
+            Logger.debug("Failed to parse DHT message from " + sender + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            workers.execute(() -> handleMessage(msg, sender));
+        } catch (RejectedExecutionException e) {
+            // Queue full (or shutting down), same as a datagram lost on the wire
+            dropped.incrementAndGet();
+        }
+    }
 
+    private void handleMessage(Message msg, InetSocketAddress sender) {
+        try {
             // Ignore messages from ourselves
             byte[] msgNodeId = (byte[]) msg.get("node_id");
             if (msgNodeId != null && Arrays.equals(msgNodeId, nodeId)) {
@@ -173,20 +752,39 @@ public class LocalDHT {
                 case GET_PEERS:
                     handleGetPeers(msg, sender);
                     break;
+                case FIND_NODE:
+                    handleFindNode(msg, sender);
+                    break;
                 case PING:
                     handlePing(msg, sender);
                     break;
                 case RESPONSE:
                     handleResponse(msg, sender);
-                    break;
+                    return; // node recorded once the response matched a query
             }
-        } catch (Exception e) {
-            Logger.debug("Failed to parse DHT message: " + e.getMessage());
+
+            // Every query comes from the sender's unicast socket
+            addNode(msgNodeId, sender);
+        } catch (RuntimeException e) {
+            // Well-formed bencode with fields of the wrong type
+            malformed.incrementAndGet();
+            Logger.debug("Invalid DHT message from " + sender + ": " + e.getMessage());
         }
     }
 
     private void handleAnnouncePeer(Message msg, InetSocketAddress sender) {
-        byte[] infoHash = (byte[])msg.get("info_hash");
+        List<byte[]> infoHashes = new ArrayList<>();
+        if (msg.get("info_hash") instanceof byte[]) {
+            infoHashes.add((byte[])msg.get("info_hash"));
+        }
+        if (msg.get("info_hashes") instanceof byte[]) {
+            byte[] joined = (byte[])msg.get("info_hashes");
+            for (int off = 0; off + 20 <= joined.length; off += 20) {
+                infoHashes.add(Arrays.copyOfRange(joined, off, off + 20));
+            }
+        }
+        if (infoHashes.isEmpty()) return;
+
         Object portObj = msg.get("port");
 
         int port;
@@ -194,79 +792,165 @@ public class LocalDHT {
         else if (portObj instanceof Integer) port = (Integer) portObj;
         else return;
 
-        byte[] remoteNodeId = (byte[])msg.get("node_id");
-
         // Filter out invalid addresses
         if (sender.getAddress().isAnyLocalAddress()) return;
 
-        String key = Hash.toHex(infoHash);
+        // Only nodes that asked us with get_peers may store here
+        if (!isValidToken((byte[])msg.get("token"), sender.getAddress())) {
+            Logger.debug("Rejected announce with a bad token from " + sender);
+            return;
+        }
 
         // The sender is the DHT UDP port, but the peer service is on the TCP port in the payload
         InetSocketAddress peerAddress = new InetSocketAddress(sender.getAddress(), port);
 
-        torrentPeers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
-                .add(peerAddress);
-
-        if (remoteNodeId != null) {
-            nodes.put(Hash.toHex(remoteNodeId), new DHTNode(remoteNodeId, sender));
+        long now = System.currentTimeMillis();
+        PeerStore.Kind kind = Long.valueOf(1).equals(msg.get("seed")) ? PeerStore.Kind.SEED : PeerStore.Kind.DOWNLOADER;
+        BiConsumer<byte[], InetSocketAddress> listener = announceListener;
+        for (byte[] infoHash : infoHashes) {
+            torrentPeers.add(Hash.toHex(infoHash), peerAddress, kind, now);
+            if (listener != null) listener.accept(infoHash, peerAddress);
         }
 
-        Logger.debug("Peer announced: " + peerAddress + " for " + key.substring(0, 8));
+        Message response = new Message(Message.Type.RESPONSE, msg.getTransactionId());
+        response.put("node_id", nodeId);
+        sendMessageTo(response, sender);
+
+        Logger.debug("Peer announced: " + peerAddress + " for " + infoHashes.size() + " torrent(s)");
     }
 
     private void handleGetPeers(Message msg, InetSocketAddress sender) {
         byte[] infoHash = (byte[])msg.get("info_hash");
         String key = Hash.toHex(infoHash);
 
-        Set<InetSocketAddress> peers = torrentPeers.get(key);
-        if (peers != null && !peers.isEmpty()) {
-            Message response = new Message(Message.Type.RESPONSE, msg.getTransactionId());
-
-            List<byte[]> peerList = new ArrayList<>();
-            for (InetSocketAddress peer : peers) {
-                // Don't send sender back to themselves
-                if (peer.getAddress().equals(sender.getAddress()) && peer.getPort() == sender.getPort()) continue;
-
-                byte[] compact = new byte[6];
-                byte[] addr = peer.getAddress().getAddress();
-                System.arraycopy(addr, 0, compact, 0, 4);
-                compact[4] = (byte)((peer.getPort() >> 8) & 0xFF);
-                compact[5] = (byte)(peer.getPort() & 0xFF);
-                peerList.add(compact);
+        Message response = new Message(Message.Type.RESPONSE, msg.getTransactionId());
+        response.put("node_id", nodeId);
+        response.put("token", createToken(sender.getAddress()));
+        response.put("nodes", compactNodes(infoHash));
+        long now = System.currentTimeMillis();
+
+        // BEP 33 scrape: summaries of the seeds and downloaders announced here
+        if (Long.valueOf(1).equals(msg.get("scrape"))) {
+            BloomFilter seeds = new BloomFilter();
+            BloomFilter downloaders = new BloomFilter();
+            torrentPeers.scrape(key, now, seeds, downloaders);
+            response.put("BFsd", seeds.toBytes());
+            response.put("BFpe", downloaders.toBytes());
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (InetSocketAddress peer : torrentPeers.get(key, now)) {
+            if (peer.getAddress() instanceof Inet4Address) peers.add(peer); // compact values are IPv4
+        }
+        if (!peers.isEmpty()) {
+            // Whatever the rest of the response leaves of the packet budget, "6:values" + "l...e" included
+            int room = (MAX_PACKET_BYTES - encodedSize(response) - 10) / COMPACT_VALUE_BYTES;
+            int count = Math.max(0, Math.min(Math.min(MAX_VALUES, room), peers.size()));
+            List<byte[]> peerList = new ArrayList<>(count);
+            for (InetSocketAddress peer : sample(peers, count)) {
+                peerList.add(CompactPeers.encode(Collections.singletonList(peer), false));
             }
+            if (!peerList.isEmpty()) response.put("values", peerList);
+        }
 
-            response.put("values", peerList);
-            response.put("node_id", nodeId);
-            response.put("info_hash", infoHash);
+        sendMessageTo(response, sender);
+    }
 
-            sendMessageTo(response, sender);
+    private static int encodedSize(Message msg) {
+        try {
+            return msg.toBytes().length;
+        } catch (IOException e) {
+            return MAX_PACKET_BYTES;
         }
     }
 
+    /**
+     * Uniform random subset of n elements, so a big swarm hands different
+     * askers different peers
+     */
+    private static <T> List<T> sample(List<T> items, int n) {
+        if (n >= items.size()) return items;
+        List<T> copy = new ArrayList<>(items);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < n; i++) {
+            Collections.swap(copy, i, i + random.nextInt(copy.size() - i));
+        }
+        return copy.subList(0, n);
+    }
+
+    private void handleFindNode(Message msg, InetSocketAddress sender) {
+        byte[] target = (byte[])msg.get("target");
+        if (target == null || target.length != 20) return;
+
+        Message response = new Message(Message.Type.RESPONSE, msg.getTransactionId());
+        response.put("node_id", nodeId);
+        response.put("nodes", compactNodes(target));
+        sendMessageTo(response, sender);
+    }
+
+    /**
+     * Compact info of the K (IPv4) nodes we know closest to a target
+     */
+    private byte[] compactNodes(byte[] target) {
+        List<DHTNode> closest = routingTable.closest(target, K);
+        byte[] nodes = new byte[closest.size() * DHTNode.COMPACT_LENGTH];
+        int off = 0;
+        for (DHTNode node : closest) {
+            if (!node.isIPv4()) continue;
+            System.arraycopy(node.toCompact(), 0, nodes, off, DHTNode.COMPACT_LENGTH);
+            off += DHTNode.COMPACT_LENGTH;
+        }
+        return Arrays.copyOf(nodes, off);
+    }
+
     private void handleResponse(Message msg, InetSocketAddress sender) {
-        byte[] infoHash = (byte[]) msg.get("info_hash");
-        if (infoHash == null) return;
+        byte[] responderId = (byte[])msg.get("node_id");
 
-        String key = Hash.toHex(infoHash);
+        // Every node of the group may answer our bootstrap ping
+        if (msg.getTransactionId().equals(bootstrapTx) && System.currentTimeMillis() < bootstrapUntil) {
+            addNode(responderId, sender);
+            return;
+        }
+
+        // Otherwise only the queried node, unknown ids are late or unsolicited
+        if (transactions.complete(msg, sender)) {
+            addNode(responderId, sender);
+        }
+    }
+
+    /**
+     * Record a node that contacted us or answered; the first contact
+     * releases announces deferred while we knew nobody
+     */
+    private void addNode(byte[] id, InetSocketAddress address) {
+        boolean wasEmpty = routingTable.size() == 0;
+        if (routingTable.add(id, address) && wasEmpty) {
+            firstContact.complete(null);
+            if (!ownTorrents.isEmpty()) timer.execute(this::announceAll);
+        }
+    }
 
+    /**
+     * Keep the peers a get_peers response carried, returns them
+     */
+    private List<InetSocketAddress> storeValues(byte[] infoHash, Message msg) {
         @SuppressWarnings("unchecked")
-        List<byte[]> values = (List<byte[]>) msg.get("values");
-        if (values == null) return;
+        List<byte[]> values = msg.get("values") instanceof List ? (List<byte[]>) msg.get("values") : null;
+        if (values == null) return Collections.emptyList();
 
+        String key = Hash.toHex(infoHash);
+        long now = System.currentTimeMillis();
+        List<InetSocketAddress> found = new ArrayList<>();
         for (byte[] compact : values) {
-            if (compact.length != 6) continue;
-            try {
-                InetSocketAddress peer = new InetSocketAddress(
-                        InetAddress.getByAddress(Arrays.copyOfRange(compact, 0, 4)),
-                        ((compact[4] & 0xFF) << 8) | (compact[5] & 0xFF)
-                );
-
+            for (InetSocketAddress peer : CompactPeers.decode(compact, false)) {
                 if (peer.getAddress().isAnyLocalAddress()) continue;
-
-                torrentPeers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(peer);
-                Logger.info("Discovered peer via DHT: " + peer);
-            } catch (Exception ignored) {}
+                found.add(peer);
+                if (torrentPeers.add(key, peer, PeerStore.Kind.FOUND, now)) {
+                    Logger.info("Discovered peer via DHT: " + peer);
+                }
+            }
         }
+        return found;
     }
 
     private void handlePing(Message msg, InetSocketAddress sender) {
@@ -275,33 +959,74 @@ public class LocalDHT {
         sendMessageTo(response, sender);
     }
 
+    // ==================== TOKENS ====================
+
+    private byte[] createToken(InetAddress address) {
+        return createToken(tokenSecret, address);
+    }
+
+    private static byte[] createToken(byte[] secret, InetAddress address) {
+        byte[] ip = address.getAddress();
+        byte[] input = Arrays.copyOf(secret, secret.length + ip.length);
+        System.arraycopy(ip, 0, input, secret.length, ip.length);
+        return Arrays.copyOf(Hash.sha1(input), 8);
+    }
+
+    private boolean isValidToken(byte[] token, InetAddress address) {
+        if (token == null) return false;
+        return Arrays.equals(token, createToken(tokenSecret, address))
+                || Arrays.equals(token, createToken(previousTokenSecret, address));
+    }
+
+    private void rotateTokenSecret() {
+        byte[] secret = new byte[8];
+        random.nextBytes(secret);
+        previousTokenSecret = tokenSecret;
+        tokenSecret = secret;
+    }
+
     private void sendMessageTo(Message msg, InetSocketAddress target) {
         try {
-            byte[] data = msg.toBytes();
-            DatagramPacket packet = new DatagramPacket(
-                    data, data.length, target.getAddress(), target.getPort()
-            );
-            socket.send(packet);
+            send(msg, target);
         } catch (IOException e) {
             Logger.error("Failed to send message to " + target);
         }
     }
 
-    private String generateTxId() {
-        return String.valueOf(System.nanoTime());
+    private void send(Message msg, InetSocketAddress target) throws IOException {
+        channel.send(ByteBuffer.wrap(msg.toBytes()), target);
     }
 
     public void stop() {
         running = false;
+        timer.shutdownNow();
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.leaveGroup(group);
-                socket.close();
+            // Let a periodic snapshot that is already being written finish first
+            if (!timer.awaitTermination(2, TimeUnit.SECONDS)) {
+                Logger.warn("DHT timer did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transactions.cancelAll();
+        saveSnapshot();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("Error closing DHT channel: " + e.getMessage());
+        }
+        try {
+            if (multicastSocket != null && !multicastSocket.isClosed()) {
+                multicastSocket.leaveGroup(group);
             }
         } catch (IOException e) {
-            Logger.error("Error stopping DHT: " + e.getMessage());
+            Logger.debug("Error leaving DHT group: " + e.getMessage());
+        } finally {
+            // Also unblocks the multicast receive thread
+            if (multicastSocket != null) multicastSocket.close();
         }
         executor.shutdownNow();
+        workers.shutdownNow();
     }
 
     // --- Accessors for UI/PeerNode ---
@@ -315,14 +1040,34 @@ public class LocalDHT {
     }
 
     public int getActiveTorrentCount() {
-        return torrentPeers.size();
+        return torrentPeers.torrentCount();
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Receive path counters for the status display
+     */
+    public String getStats() {
+        return String.format("%d received, %d dropped, %d malformed, %d queued",
+                received.get(), dropped.get(), malformed.get(), workers.getQueue().size());
+    }
+
+    /**
+     * Swarm size from the last get_peers lookup of a torrent (announce or
+     * peer search), null if none returned scrape filters yet
+     */
+    public SwarmEstimate getSwarmEstimate(byte[] infoHash) {
+        return swarmEstimates.get(Hash.toHex(infoHash));
     }
 
     public int getKnownNodesCount() {
-        return nodes.size();
+        return routingTable.size();
     }
 
     public Map<String, Set<InetSocketAddress>> getTorrentPeersMap() {
-        return new HashMap<>(torrentPeers); // Return copy to prevent concurrency issues
+        return torrentPeers.snapshot(System.currentTimeMillis());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package org.example.dht;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Peers stored per info_hash, from announces and lookup results
+ * Every entry expires unless it is announced again within the TTL, and each
+ * info_hash keeps at most a bounded number of peers: a new peer replaces the
+ * one that was refreshed longest ago.
+ */
+public class PeerStore {
+    /**
+     * How we know a peer; only announced peers go into scrape filters
+     */
+    public enum Kind { FOUND, DOWNLOADER, SEED }
+
+    private static class Entry {
+        final long refreshed;
+        final Kind kind;
+
+        Entry(long refreshed, Kind kind) {
+            this.refreshed = refreshed;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * A peer entry as saved in the DHT snapshot
+     */
+    public static class Stored {
+        final InetSocketAddress peer;
+        final Kind kind;
+        final long refreshed;
+
+        Stored(InetSocketAddress peer, Kind kind, long refreshed) {
+            this.peer = peer;
+            this.kind = kind;
+            this.refreshed = refreshed;
+        }
+    }
+
+    private final long ttlMs;
+    private final int maxPeersPerTorrent;
+    private final Map<String, LinkedHashMap<InetSocketAddress, Entry>> torrents = new HashMap<>(); // guarded by this
+
+    public PeerStore(long ttlMs, int maxPeersPerTorrent) {
+        this.ttlMs = ttlMs;
+        this.maxPeersPerTorrent = maxPeersPerTorrent;
+    }
+
+    /**
+     * Store or refresh a peer, returns true if it was not known yet
+     * A peer only found in a lookup result keeps what it last announced itself as.
+     */
+    public synchronized boolean add(String infoHashHex, InetSocketAddress peer, Kind kind, long now) {
+        LinkedHashMap<InetSocketAddress, Entry> peers = torrents.computeIfAbsent(infoHashHex, k ->
+                new LinkedHashMap<>(16, 0.75f, false) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Entry> eldest) {
+                        return size() > maxPeersPerTorrent;
+                    }
+                });
+        // Re-insert so the refreshed peer moves to the back of the eviction order
+        Entry old = peers.remove(peer);
+        if (old != null && kind == Kind.FOUND) kind = old.kind;
+        peers.put(peer, new Entry(now, kind));
+        return old == null;
+    }
+
+    /**
+     * Unexpired peers of a torrent, most recently refreshed first
+     */
+    public synchronized List<InetSocketAddress> get(String infoHashHex, long now) {
+        LinkedHashMap<InetSocketAddress, Entry> peers = torrents.get(infoHashHex);
+        if (peers == null) return new ArrayList<>();
+        List<InetSocketAddress> result = new ArrayList<>(peers.size());
+        for (Map.Entry<InetSocketAddress, Entry> e : peers.entrySet()) {
+            if (now - e.getValue().refreshed < ttlMs) result.add(e.getKey());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Add the unexpired announced peers of a torrent to BEP 33 filters
+     */
+    public synchronized void scrape(String infoHashHex, long now, BloomFilter seeds, BloomFilter downloaders) {
+        LinkedHashMap<InetSocketAddress, Entry> peers = torrents.get(infoHashHex);
+        if (peers == null) return;
+        for (Map.Entry<InetSocketAddress, Entry> e : peers.entrySet()) {
+            Entry entry = e.getValue();
+            if (now - entry.refreshed >= ttlMs) continue;
+            if (entry.kind == Kind.SEED) seeds.add(e.getKey().getAddress());
+            else if (entry.kind == Kind.DOWNLOADER) downloaders.add(e.getKey().getAddress());
+        }
+    }
+
+    /**
+     * Drop peers not refreshed within the TTL, returns how many were removed
+     */
+    public synchronized int expire(long now) {
+        int removed = 0;
+        Iterator<LinkedHashMap<InetSocketAddress, Entry>> torrentIt = torrents.values().iterator();
+        while (torrentIt.hasNext()) {
+            LinkedHashMap<InetSocketAddress, Entry> peers = torrentIt.next();
+            // Insertion order is refresh order, so expired peers are at the front
+            Iterator<Entry> it = peers.values().iterator();
+            while (it.hasNext() && now - it.next().refreshed >= ttlMs) {
+                it.remove();
+                removed++;
+            }
+            if (peers.isEmpty()) torrentIt.remove();
+        }
+        return removed;
+    }
+
+    /**
+     * Unexpired entries of every torrent, oldest refresh first, for the DHT snapshot
+     */
+    public synchronized Map<String, List<Stored>> export(long now) {
+        Map<String, List<Stored>> result = new HashMap<>();
+        for (Map.Entry<String, LinkedHashMap<InetSocketAddress, Entry>> t : torrents.entrySet()) {
+            List<Stored> stored = new ArrayList<>();
+            for (Map.Entry<InetSocketAddress, Entry> e : t.getValue().entrySet()) {
+                Entry entry = e.getValue();
+                if (now - entry.refreshed < ttlMs) stored.add(new Stored(e.getKey(), entry.kind, entry.refreshed));
+            }
+            if (!stored.isEmpty()) result.put(t.getKey(), stored);
+        }
+        return result;
+    }
+
+    /**
+     * Snapshot of every torrent with its unexpired peers
+     */
+    public synchronized Map<String, Set<InetSocketAddress>> snapshot(long now) {
+        Map<String, Set<InetSocketAddress>> result = new HashMap<>();
+        for (String infoHashHex : torrents.keySet()) {
+            List<InetSocketAddress> peers = get(infoHashHex, now);
+            if (!peers.isEmpty()) result.put(infoHashHex, new LinkedHashSet<>(peers));
+        }
+        return result;
+    }
+
+    public synchronized int torrentCount() {
+        return torrents.size();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedHashMap<InetSocketAddress, Entry> peers : torrents.values()) size += peers.size();
+        return size;
+    }
+}
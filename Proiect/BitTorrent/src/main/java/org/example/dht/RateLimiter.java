@@ -0,0 +1,69 @@
+package org.example.dht;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket per source address
+ * Each source may send up to burst messages at once and ratePerSecond on
+ * average; a message that finds its bucket empty is dropped. Buckets that
+ * refilled completely carry no state and are pruned.
+ */
+public class RateLimiter {
+    private final double ratePerMs;
+    private final double burst;
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(double ratePerSecond, int burst) {
+        this.ratePerMs = ratePerSecond / 1000.0;
+        this.burst = burst;
+    }
+
+    /**
+     * Take a token for a message from this source, false if it is over its rate
+     */
+    public boolean tryAcquire(InetAddress source, long now) {
+        return buckets.computeIfAbsent(source, k -> new Bucket(burst, now)).tryAcquire(now);
+    }
+
+    /**
+     * Forget sources whose bucket is full again, they would start from burst anyway
+     */
+    public void prune(long now) {
+        buckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private class Bucket {
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerMs);
+                lastRefill = now;
+            }
+        }
+    }
+}
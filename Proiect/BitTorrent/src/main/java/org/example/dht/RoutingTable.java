@@ -0,0 +1,156 @@
+package org.example.dht;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Kademlia routing table: 160 k-buckets indexed by the length of the
+ * prefix a node id shares with ours
+ * Long-lived nodes are kept over newcomers; a full bucket only takes a new
+ * node in place of one that stopped answering queries or was not heard from
+ * within NODE_TTL_MS.
+ */
+public class RoutingTable {
+    public static final int K = 8; // bucket size and replication factor
+    static final int MAX_FAILURES = 3; // unanswered queries before a node can be replaced
+    public static final long NODE_TTL_MS = Long.getLong("bittorrent.dhtNodeTtlMs", 30 * 60 * 1000);
+
+    private final byte[] ownId;
+    private final List<LinkedList<DHTNode>> buckets; // least recently seen first, guarded by this
+
+    public RoutingTable(byte[] ownId) {
+        this.ownId = ownId;
+        this.buckets = new ArrayList<>(160);
+        for (int i = 0; i < 160; i++) {
+            buckets.add(new LinkedList<>());
+        }
+    }
+
+    /**
+     * Record that a node was heard from, returns false if its bucket had no room
+     */
+    public synchronized boolean add(byte[] nodeId, InetSocketAddress address) {
+        if (nodeId == null || nodeId.length != 20 || Arrays.equals(nodeId, ownId)) return false;
+        LinkedList<DHTNode> bucket = buckets.get(bucketIndex(nodeId));
+
+        Iterator<DHTNode> it = bucket.iterator();
+        while (it.hasNext()) {
+            DHTNode node = it.next();
+            if (Arrays.equals(node.getNodeId(), nodeId)) {
+                it.remove();
+                node.setAddress(address);
+                node.updateLastSeen();
+                bucket.addLast(node);
+                return true;
+            }
+        }
+
+        if (bucket.size() >= K) {
+            long staleBefore = System.currentTimeMillis() - NODE_TTL_MS;
+            DHTNode bad = null;
+            for (DHTNode node : bucket) {
+                if (node.getFailures() >= MAX_FAILURES || node.getLastSeen() < staleBefore) {
+                    bad = node;
+                    break;
+                }
+            }
+            if (bad == null) return false;
+            bucket.remove(bad);
+        }
+        bucket.addLast(new DHTNode(nodeId, address));
+        return true;
+    }
+
+    public synchronized void remove(byte[] nodeId) {
+        buckets.get(bucketIndex(nodeId)).removeIf(node -> Arrays.equals(node.getNodeId(), nodeId));
+    }
+
+    /**
+     * A query to this node went unanswered
+     */
+    public synchronized void markFailed(byte[] nodeId) {
+        for (DHTNode node : buckets.get(bucketIndex(nodeId))) {
+            if (Arrays.equals(node.getNodeId(), nodeId)) {
+                node.markFailed();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Up to n good nodes closest to a target id, closest first
+     */
+    public synchronized List<DHTNode> closest(byte[] target, int n) {
+        List<DHTNode> nodes = new ArrayList<>();
+        for (LinkedList<DHTNode> bucket : buckets) {
+            for (DHTNode node : bucket) {
+                if (node.getFailures() < MAX_FAILURES) nodes.add(node);
+            }
+        }
+        nodes.sort((a, b) -> compareDistance(a.getNodeId(), b.getNodeId(), target));
+        return nodes.size() > n ? new ArrayList<>(nodes.subList(0, n)) : nodes;
+    }
+
+    /**
+     * Nodes not heard from since a time, to be pinged before they go stale
+     */
+    public synchronized List<DHTNode> seenBefore(long time) {
+        List<DHTNode> nodes = new ArrayList<>();
+        for (LinkedList<DHTNode> bucket : buckets) {
+            for (DHTNode node : bucket) {
+                if (node.getLastSeen() < time) nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Remove nodes not heard from within NODE_TTL_MS, returns how many were removed
+     */
+    public synchronized int evictStale(long now) {
+        int removed = 0;
+        for (LinkedList<DHTNode> bucket : buckets) {
+            // Least recently seen first, so stale nodes are at the front
+            while (!bucket.isEmpty() && now - bucket.getFirst().getLastSeen() >= NODE_TTL_MS) {
+                bucket.removeFirst();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized List<DHTNode> all() {
+        List<DHTNode> nodes = new ArrayList<>();
+        buckets.forEach(nodes::addAll);
+        return nodes;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedList<DHTNode> bucket : buckets) size += bucket.size();
+        return size;
+    }
+
+    /**
+     * Number of leading bits a node id shares with ours (0..159)
+     */
+    private int bucketIndex(byte[] nodeId) {
+        for (int i = 0; i < 20; i++) {
+            int x = (nodeId[i] ^ ownId[i]) & 0xFF;
+            if (x != 0) return i * 8 + Integer.numberOfLeadingZeros(x) - 24;
+        }
+        return 159;
+    }
+
+    /**
+     * Orders ids by XOR distance to a target
+     */
+    public static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        for (int i = 0; i < 20; i++) {
+            int da = (a[i] ^ target[i]) & 0xFF;
+            int db = (b[i] ^ target[i]) & 0xFF;
+            if (da != db) return Integer.compare(da, db);
+        }
+        return 0;
+    }
+}
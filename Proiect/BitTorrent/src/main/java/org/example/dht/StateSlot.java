@@ -0,0 +1,78 @@
+package org.example.dht;
+
+import org.example.util.Logger;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A DHT snapshot file claimed by one running node
+ * Slots are numbered (dht-0.state, dht-1.state, ...) and held with a lock
+ * file while the node runs. A restarted node takes the lowest free slot, so
+ * it finds its snapshot again whatever TCP port it picked; several nodes
+ * sharing a state directory each get their own.
+ */
+public class StateSlot implements Closeable {
+    private static final int MAX_SLOTS = 64;
+
+    private final File stateFile;
+    private final FileChannel lockChannel;
+
+    private StateSlot(File stateFile, FileChannel lockChannel) {
+        this.stateFile = stateFile;
+        this.lockChannel = lockChannel;
+    }
+
+    /**
+     * Lock the lowest slot no other node holds, null if none is free
+     */
+    public static StateSlot claim(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.warn("Cannot create state directory " + dir + ", DHT starts without a snapshot");
+            return null;
+        }
+        for (int slot = 0; slot < MAX_SLOTS; slot++) {
+            File lockFile = new File(dir, "dht-" + slot + ".lock");
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    return new StateSlot(new File(dir, "dht-" + slot + ".state"), channel);
+                }
+            } catch (OverlappingFileLockException e) {
+                // Held by another node in this process
+            } catch (IOException e) {
+                Logger.warn("Cannot lock " + lockFile + ": " + e.getMessage());
+            }
+            closeQuietly(channel);
+        }
+        Logger.warn("No free DHT state slot in " + dir + ", DHT starts without a snapshot");
+        return null;
+    }
+
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Release the slot (closing the channel drops the lock)
+     */
+    @Override
+    public void close() {
+        closeQuietly(lockChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
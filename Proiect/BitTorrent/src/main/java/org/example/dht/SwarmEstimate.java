@@ -0,0 +1,26 @@
+package org.example.dht;
+
+/**
+ * Swarm size estimated from the merged scrape filters of a torrent's closest nodes
+ */
+public class SwarmEstimate {
+    private final int seeds;
+    private final int downloaders;
+    private final long time;
+
+    public SwarmEstimate(int seeds, int downloaders, long time) {
+        this.seeds = seeds;
+        this.downloaders = downloaders;
+        this.time = time;
+    }
+
+    public int getSeeds() { return seeds; }
+    public int getDownloaders() { return downloaders; }
+    public int getTotal() { return seeds + downloaders; }
+    public long getTime() { return time; }
+
+    @Override
+    public String toString() {
+        return "~" + seeds + " seeds, ~" + downloaders + " downloaders";
+    }
+}
@@ -0,0 +1,126 @@
+package org.example.dht;
+
+import org.example.util.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outstanding DHT queries by transaction id
+ * Each query gets a future that completes with the response of the queried
+ * node, or exceptionally with a TimeoutException once every retry went
+ * unanswered. Retries resend the same message with the same id, so a late
+ * answer to an earlier attempt still counts.
+ */
+public class TransactionTable {
+    /**
+     * Puts a message on the wire
+     */
+    public interface Sender {
+        void send(Message msg, InetSocketAddress target) throws IOException;
+    }
+
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(new java.util.Random().nextInt());
+    private final ScheduledExecutorService timer;
+    private final Sender sender;
+    private final long timeoutMs;
+    private final int maxRetries;
+
+    public TransactionTable(ScheduledExecutorService timer, Sender sender, long timeoutMs, int maxRetries) {
+        this.timer = timer;
+        this.sender = sender;
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Short transaction id, unique among outstanding queries
+     */
+    public String newId() {
+        return Integer.toHexString(nextId.getAndIncrement() & 0xFFFF);
+    }
+
+    /**
+     * Send a query and track its response
+     */
+    public CompletableFuture<Message> send(Message query, InetSocketAddress target) {
+        Transaction tx = new Transaction(query, target);
+        Transaction existing = transactions.putIfAbsent(query.getTransactionId(), tx);
+        if (existing != null) {
+            tx.future.completeExceptionally(new IllegalStateException("Transaction id in use"));
+            return tx.future;
+        }
+        tx.future.whenComplete((response, error) -> {
+            transactions.remove(query.getTransactionId(), tx);
+            ScheduledFuture<?> timeout = tx.timeout;
+            if (timeout != null) timeout.cancel(false);
+        });
+        attempt(tx);
+        return tx.future;
+    }
+
+    private void attempt(Transaction tx) {
+        if (tx.future.isDone()) return;
+        try {
+            sender.send(tx.query, tx.target);
+        } catch (IOException e) {
+            tx.future.completeExceptionally(e);
+            return;
+        }
+        try {
+            tx.timeout = timer.schedule(() -> onTimeout(tx), timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            tx.future.cancel(false); // shutting down
+        }
+    }
+
+    private void onTimeout(Transaction tx) {
+        if (tx.future.isDone()) return;
+        if (tx.attempts++ < maxRetries) {
+            Logger.debug("Retrying DHT query " + tx.query.getTransactionId() + " to " + tx.target);
+            attempt(tx);
+        } else {
+            tx.future.completeExceptionally(new TimeoutException("No response from " + tx.target));
+        }
+    }
+
+    /**
+     * Complete the query a response belongs to
+     * Returns false for unknown ids and for answers from another address
+     * than the one queried.
+     */
+    public boolean complete(Message response, InetSocketAddress from) {
+        Transaction tx = transactions.get(response.getTransactionId());
+        if (tx == null || !tx.target.equals(from)) return false;
+        return tx.future.complete(response);
+    }
+
+    public int size() {
+        return transactions.size();
+    }
+
+    /**
+     * Fail every outstanding query (shutdown)
+     */
+    public void cancelAll() {
+        for (Transaction tx : transactions.values()) {
+            tx.future.cancel(false);
+        }
+    }
+
+    private static class Transaction {
+        final Message query;
+        final InetSocketAddress target;
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        volatile ScheduledFuture<?> timeout;
+        int attempts; // retries so far, only touched by the timer thread
+
+        Transaction(Message query, InetSocketAddress target) {
+            this.query = query;
+            this.target = target;
+        }
+    }
+}
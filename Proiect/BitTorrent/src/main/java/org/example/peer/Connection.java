@@ -2,8 +2,12 @@ package org.example.peer;
 
 import org.example.core.protocol.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Manages connection to a single peer
@@ -16,9 +20,19 @@ public class Connection {
     private volatile boolean interested = false;
     private volatile boolean peerChoked = true;
     private volatile boolean peerInterested = false;
+    private volatile boolean fastExtension = false; // both sides support BEP 6
+    private volatile boolean extensionProtocol = false; // both sides support BEP 10
+    private volatile Map<String, Integer> peerExtensions = Collections.emptyMap(); // name -> id the peer assigned
+    private volatile int peerListenPort; // from the extended handshake, 0 if unknown
+    private final boolean outgoing; // we dialed the peer
 
     public Connection(Socket socket) throws IOException {
+        this(socket, false);
+    }
+
+    public Connection(Socket socket, boolean outgoing) throws IOException {
         this.socket = socket;
+        this.outgoing = outgoing;
         this.in = new DataInputStream(socket.getInputStream());
         this.out = new DataOutputStream(socket.getOutputStream());
     }
@@ -52,6 +66,14 @@ public class Connection {
         out.flush();
     }
 
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public InetSocketAddress getRemoteSocketAddress() {
+        return (InetSocketAddress)socket.getRemoteSocketAddress();
+    }
+
     public String getRemoteAddress() {
         if (socket != null && socket.getRemoteSocketAddress() != null) {
             return socket.getRemoteSocketAddress().toString();
@@ -87,6 +109,41 @@ public class Connection {
         sendMessage(Bitfield.MESSAGE_ID, bitfield.toBytes());
     }
 
+    /**
+     * Announce our pieces: Have All / Have None when the Fast Extension
+     * is on and they apply, the full bitfield otherwise
+     */
+    public void sendPieceState(Bitfield bitfield) throws IOException {
+        if (fastExtension && bitfield.isAll()) {
+            sendMessage(Bitfield.HAVE_ALL_ID, null);
+        } else if (fastExtension && bitfield.isEmpty()) {
+            sendMessage(Bitfield.HAVE_NONE_ID, null);
+        } else {
+            sendBitfield(bitfield);
+        }
+    }
+
+    /**
+     * Send reject request (Fast Extension)
+     */
+    public void sendReject(RejectRequest reject) throws IOException {
+        sendMessage(RejectRequest.MESSAGE_ID, reject.toBytes());
+    }
+
+    /**
+     * Send allowed fast (Fast Extension)
+     */
+    public void sendAllowedFast(AllowedFast allowedFast) throws IOException {
+        sendMessage(AllowedFast.MESSAGE_ID, allowedFast.toBytes());
+    }
+
+    /**
+     * Send extended message (Extension Protocol)
+     */
+    public void sendExtended(Extended extended) throws IOException {
+        sendMessage(Extended.MESSAGE_ID, extended.toBytes());
+    }
+
     /**
      * Send interested
      */
@@ -95,6 +152,14 @@ public class Connection {
         interested = true;
     }
 
+    /**
+     * Send choke
+     */
+    public void sendChoke() throws IOException {
+        sendMessage((byte)0, null);
+        choked = true;
+    }
+
     /**
      * Send unchoke
      */
@@ -110,6 +175,13 @@ public class Connection {
         sendMessage(Request.MESSAGE_ID, request.toBytes());
     }
 
+    /**
+     * Send cancel
+     */
+    public void sendCancel(Cancel cancel) throws IOException {
+        sendMessage(Cancel.MESSAGE_ID, cancel.toBytes());
+    }
+
     /**
      * Send piece
      */
@@ -121,6 +193,21 @@ public class Connection {
     public boolean isPeerChoked() { return peerChoked; }
     public void setPeerChoked(boolean choked) { this.peerChoked = choked; }
     public void setPeerInterested(boolean interested) { this.peerInterested = interested; }
+    public boolean isFastExtension() { return fastExtension; }
+    public void setFastExtension(boolean fastExtension) { this.fastExtension = fastExtension; }
+    public boolean isExtensionProtocol() { return extensionProtocol; }
+    public void setExtensionProtocol(boolean extensionProtocol) { this.extensionProtocol = extensionProtocol; }
+    public void setPeerExtensions(Map<String, Integer> extensions) { this.peerExtensions = extensions; }
+    public boolean isOutgoing() { return outgoing; }
+    public int getPeerListenPort() { return peerListenPort; }
+    public void setPeerListenPort(int port) { this.peerListenPort = port; }
+
+    /**
+     * Id the peer assigned to an extension, 0 if it doesn't support it
+     */
+    public int getPeerExtensionId(String name) {
+        return peerExtensions.getOrDefault(name, 0);
+    }
 
     public void close() {
         try {
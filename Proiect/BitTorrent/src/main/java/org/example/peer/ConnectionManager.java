@@ -0,0 +1,188 @@
+package org.example.peer;
+
+import org.example.core.FileManager;
+import org.example.dht.SwarmEstimate;
+import org.example.util.Hash;
+import org.example.util.Logger;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps every active download at its target number of peers
+ * Discovery (DHT lookups and announces, PEX) feeds a candidate pool per
+ * torrent; this dials candidates whenever a download is below target, asks
+ * the DHT again periodically or when the pool runs dry, and swaps the least
+ * useful connection for an untried peer once a download is at target.
+ * DHT scrape estimates shape the work: a torrent never wants more peers than
+ * its swarm has, and the dials of a round go to the swarms with the fewest
+ * seeds first.
+ */
+public class ConnectionManager {
+    private static final int TARGET_PEERS = Integer.getInteger("bittorrent.targetPeers", 30);
+    private static final long INTERVAL_MS = Long.getLong("bittorrent.connectIntervalMs", 5000);
+    private static final long REDISCOVER_MS = Long.getLong("bittorrent.rediscoverMs", 5 * 60 * 1000);
+    private static final long MIN_REDISCOVER_MS = 30000; // when the pool runs dry
+    private static final int MAX_DIALS_PER_ROUND = 10;
+    private static final long MAX_ESTIMATE_AGE_MS = 30 * 60 * 1000;
+
+    private final PeerNode peerNode;
+    private final PeerClient client;
+    private final Map<String, PeerCandidates> pools = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastDiscovery = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    public ConnectionManager(PeerNode peerNode, PeerClient client) {
+        this.peerNode = peerNode;
+        this.client = client;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-manager");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::maintainAll, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Start maintaining a download and look for its first peers
+     */
+    public void track(byte[] infoHash) {
+        pools.computeIfAbsent(Hash.toHex(infoHash), k -> new PeerCandidates());
+        discover(infoHash);
+    }
+
+    /**
+     * A discovered peer; dialed right away if its download is below target
+     */
+    public void addCandidate(byte[] infoHash, InetSocketAddress peer, PeerCandidates.Source source) {
+        String infoHashHex = Hash.toHex(infoHash);
+        PeerCandidates pool = pools.get(infoHashHex);
+        if (pool == null || !pool.add(peer, source)) return;
+        if (wantsPeers(infoHashHex)) {
+            try {
+                timer.execute(() -> maintain(infoHashHex));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    // ==================== CONNECTION OUTCOMES ====================
+
+    public void onConnected(byte[] infoHash, InetSocketAddress peer) {
+        PeerCandidates pool = pools.get(Hash.toHex(infoHash));
+        if (pool != null) pool.connected(peer);
+    }
+
+    public void onDisconnected(byte[] infoHash, InetSocketAddress peer) {
+        PeerCandidates pool = pools.get(Hash.toHex(infoHash));
+        if (pool != null) pool.disconnected(peer);
+    }
+
+    public void onConnectFailed(byte[] infoHash, InetSocketAddress peer, boolean permanent) {
+        PeerCandidates pool = pools.get(Hash.toHex(infoHash));
+        if (pool != null) pool.failed(peer, permanent);
+    }
+
+    // ==================== MAINTENANCE ====================
+
+    private boolean wantsPeers(String infoHashHex) {
+        FileManager fileManager = peerNode.getFileManager(Hash.fromHex(infoHashHex));
+        return fileManager != null && !fileManager.isComplete() && peerNode.getScheduler().isActive(infoHashHex);
+    }
+
+    private void maintainAll() {
+        // Scarce swarms first, they have the most to lose if a source goes away
+        List<String> order = new ArrayList<>(pools.keySet());
+        order.sort(Comparator.comparingInt(hex -> {
+            SwarmEstimate estimate = freshEstimate(Hash.fromHex(hex));
+            return estimate != null ? estimate.getSeeds() : Integer.MAX_VALUE;
+        }));
+
+        int dials = MAX_DIALS_PER_ROUND;
+        for (String infoHashHex : order) {
+            try {
+                dials -= maintain(infoHashHex, dials);
+            } catch (RuntimeException e) {
+                Logger.error("Connection maintenance failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void maintain(String infoHashHex) {
+        maintain(infoHashHex, MAX_DIALS_PER_ROUND);
+    }
+
+    /**
+     * Dial up to maxDials candidates, returns how many were dialed
+     */
+    private int maintain(String infoHashHex, int maxDials) {
+        PeerCandidates pool = pools.get(infoHashHex);
+        if (pool == null || !wantsPeers(infoHashHex)) return 0;
+        byte[] infoHash = Hash.fromHex(infoHashHex);
+        long now = System.currentTimeMillis();
+
+        int peers = client.getConnectionCount(infoHash) + pool.connectingCount();
+        int missing = targetPeers(infoHash) - peers;
+        int dialed = 0;
+
+        if (missing > 0) {
+            for (InetSocketAddress peer : pool.take(Math.min(missing, Math.max(0, maxDials)), now)) {
+                if (client.connectToPeer(peer, infoHash)) dialed++;
+                else pool.released(peer);
+            }
+        } else if (pool.available(now) > 0) {
+            // At target: make room for an untried peer if a connection isn't pulling its weight
+            InetSocketAddress dropped = client.dropWorstPeer(infoHash);
+            if (dropped != null) {
+                Logger.debug("Dropped slow peer " + dropped + " for a new candidate");
+                pool.failed(dropped, false);
+            }
+        }
+
+        // Ask the DHT again for the life of the download, sooner when the pool ran dry
+        long since = now - lastDiscovery.getOrDefault(infoHashHex, 0L);
+        boolean dry = missing > 0 && pool.available(now) == 0;
+        if (since >= REDISCOVER_MS || (dry && since >= MIN_REDISCOVER_MS)) {
+            discover(infoHash);
+        }
+        return dialed;
+    }
+
+    /**
+     * TARGET_PEERS, or fewer if the scrape says the swarm is smaller
+     */
+    private int targetPeers(byte[] infoHash) {
+        SwarmEstimate estimate = freshEstimate(infoHash);
+        if (estimate == null) return TARGET_PEERS;
+        // The estimate counts us too, and misses peers that never announced; keep at least one
+        return Math.max(1, Math.min(TARGET_PEERS, estimate.getTotal()));
+    }
+
+    private SwarmEstimate freshEstimate(byte[] infoHash) {
+        SwarmEstimate estimate = peerNode.getSwarmEstimate(infoHash);
+        if (estimate == null || System.currentTimeMillis() - estimate.getTime() > MAX_ESTIMATE_AGE_MS) return null;
+        return estimate;
+    }
+
+    private void discover(byte[] infoHash) {
+        lastDiscovery.put(Hash.toHex(infoHash), System.currentTimeMillis());
+        peerNode.discoverPeers(infoHash);
+    }
+
+    public String describe(byte[] infoHash) {
+        PeerCandidates pool = pools.get(Hash.toHex(infoHash));
+        return pool != null ? pool.describe() : "not tracked";
+    }
+
+    public Set<String> getTracked() {
+        return Collections.unmodifiableSet(pools.keySet());
+    }
+}
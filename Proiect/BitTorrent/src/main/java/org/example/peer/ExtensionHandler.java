@@ -0,0 +1,39 @@
+package org.example.peer;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A protocol extension plugged into the Extension Protocol (BEP 10)
+ * Handlers are registered by name in the ExtensionRegistry, which assigns
+ * the local message id and dispatches the peer's messages to them.
+ */
+public interface ExtensionHandler {
+    /**
+     * Name used in the "m" dictionary of the extended handshake, e.g. "ut_pex"
+     */
+    String getName();
+
+    /**
+     * Add extension specific keys to our extended handshake
+     */
+    default void addHandshakeFields(Map<String, Object> handshake, byte[] infoHash) {
+    }
+
+    /**
+     * The peer's extended handshake arrived and it supports this extension
+     */
+    default void onPeerSupports(Connection conn, byte[] infoHash, Map<String, Object> handshake) throws IOException {
+    }
+
+    /**
+     * A message for this extension arrived
+     */
+    void onMessage(Connection conn, byte[] infoHash, byte[] payload) throws IOException;
+
+    /**
+     * The connection closed
+     */
+    default void onClose(Connection conn, byte[] infoHash) {
+    }
+}
@@ -0,0 +1,155 @@
+package org.example.peer;
+
+import org.example.core.protocol.Extended;
+import org.example.util.Bencode;
+import org.example.util.Logger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extension Protocol (BEP 10) negotiation and dispatch, one per node
+ * Every registered handler gets a local message id that is announced in the
+ * "m" dictionary of our extended handshake; the peer does the same, and
+ * messages are sent with the id the receiving side chose. Handlers are
+ * registered before the node starts accepting connections.
+ */
+public class ExtensionRegistry {
+    private static final String CLIENT_VERSION = "LT0001";
+
+    private final Map<String, ExtensionHandler> byName = new ConcurrentHashMap<>();
+    private final Map<Integer, ExtensionHandler> byId = new ConcurrentHashMap<>();
+    private final int listenPort;
+    private int nextId = 1; // 0 is the extended handshake
+
+    public ExtensionRegistry(int listenPort) {
+        this.listenPort = listenPort;
+    }
+
+    /**
+     * Register an extension, returns the local message id assigned to it
+     */
+    public synchronized int register(ExtensionHandler handler) {
+        if (byName.containsKey(handler.getName())) {
+            throw new IllegalArgumentException("Extension already registered: " + handler.getName());
+        }
+        if (nextId > 255) {
+            throw new IllegalStateException("No extended message ids left");
+        }
+        int id = nextId++;
+        byName.put(handler.getName(), handler);
+        byId.put(id, handler);
+        return id;
+    }
+
+    /**
+     * Send our extended handshake if both sides negotiated the Extension Protocol
+     */
+    public void sendHandshake(Connection conn, byte[] infoHash) throws IOException {
+        if (!conn.isExtensionProtocol()) return;
+
+        Map<String, Object> m = new TreeMap<>();
+        for (Map.Entry<Integer, ExtensionHandler> e : byId.entrySet()) {
+            m.put(e.getValue().getName(), e.getKey());
+        }
+
+        Map<String, Object> handshake = new TreeMap<>();
+        handshake.put("m", m);
+        handshake.put("p", listenPort);
+        handshake.put("v", CLIENT_VERSION);
+        for (ExtensionHandler handler : byName.values()) {
+            handler.addHandshakeFields(handshake, infoHash);
+        }
+        conn.sendExtended(new Extended(Extended.HANDSHAKE_ID, Bencode.encode(handshake)));
+    }
+
+    /**
+     * Handle an Extended message received on a connection
+     */
+    public void onMessage(Connection conn, byte[] infoHash, byte[] payload) throws IOException {
+        if (payload == null || payload.length == 0) return;
+        Extended extended = Extended.parse(payload);
+
+        if (extended.getExtendedId() == Extended.HANDSHAKE_ID) {
+            onHandshake(conn, infoHash, extended.getPayload());
+            return;
+        }
+
+        ExtensionHandler handler = byId.get(extended.getExtendedId());
+        if (handler == null) {
+            Logger.debug("Unknown extended message " + extended.getExtendedId() + " from " + conn.getRemoteAddress());
+            return;
+        }
+        handler.onMessage(conn, infoHash, extended.getPayload());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onHandshake(Connection conn, byte[] infoHash, byte[] payload) throws IOException {
+        Map<String, Object> handshake;
+        try {
+            Object decoded = Bencode.decode(payload);
+            if (!(decoded instanceof Map)) throw new IOException("not a dictionary");
+            handshake = (Map<String, Object>)decoded;
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Bad extended handshake from " + conn.getRemoteAddress() + ": " + e.getMessage());
+            return;
+        }
+
+        // A later handshake updates the earlier one; id 0 disables an extension
+        Map<String, Integer> peerIds = new HashMap<>();
+        Object m = handshake.get("m");
+        if (m instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>)m).entrySet()) {
+                if (e.getValue() instanceof Long && (Long)e.getValue() > 0 && (Long)e.getValue() <= 255) {
+                    peerIds.put(e.getKey(), ((Long)e.getValue()).intValue());
+                }
+            }
+        }
+        conn.setPeerExtensions(peerIds);
+
+        Object port = handshake.get("p");
+        if (port instanceof Long && (Long)port > 0 && (Long)port <= 65535) {
+            conn.setPeerListenPort(((Long)port).intValue());
+        }
+
+        Object version = handshake.get("v");
+        Logger.debug("Extended handshake from " + conn.getRemoteAddress() +
+                (version instanceof byte[] ? " (" + new String((byte[])version, StandardCharsets.UTF_8) + ")" : "") +
+                ": " + peerIds.keySet());
+
+        for (ExtensionHandler handler : byName.values()) {
+            if (peerIds.containsKey(handler.getName())) {
+                handler.onPeerSupports(conn, infoHash, handshake);
+            }
+        }
+    }
+
+    /**
+     * Send a message of a named extension, false if the peer doesn't support it
+     */
+    public boolean send(Connection conn, String name, byte[] payload) throws IOException {
+        int id = conn.getPeerExtensionId(name);
+        if (id == 0) return false;
+        conn.sendExtended(new Extended(id, payload));
+        return true;
+    }
+
+    /**
+     * Let the handlers drop their state of a closed connection
+     */
+    public void onClose(Connection conn, byte[] infoHash) {
+        if (!conn.isExtensionProtocol()) return;
+        for (ExtensionHandler handler : byName.values()) {
+            try {
+                handler.onClose(conn, infoHash);
+            } catch (RuntimeException e) {
+                Logger.error("Extension " + handler.getName() + " failed on close: " + e.getMessage());
+            }
+        }
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+}
@@ -0,0 +1,70 @@
+package org.example.peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-wide cap on memory held by partially downloaded pieces
+ * Every piece buffer is reserved here before its blocks are requested and
+ * released once the piece is verified, dropped, or spilled to disk.
+ */
+public class MemoryBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    // Metrics
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong spilledPieces = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Reserve bytes, false if that would exceed the limit
+     */
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) return false;
+            if (used.compareAndSet(current, current + bytes)) {
+                peak.accumulateAndGet(current + bytes, Math::max);
+                return true;
+            }
+        }
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * A request was held back for lack of memory
+     */
+    public void recordThrottled() {
+        throttled.incrementAndGet();
+    }
+
+    /**
+     * A partial piece of the given size was moved from memory to disk
+     */
+    public void recordSpill(long bytes) {
+        spilledPieces.incrementAndGet();
+        spilledBytes.addAndGet(bytes);
+    }
+
+    public long getLimit() { return limit; }
+    public long getUsed() { return used.get(); }
+    public long getAvailable() { return Math.max(0, limit - used.get()); }
+    public long getPeak() { return peak.get(); }
+    public long getThrottled() { return throttled.get(); }
+    public long getSpilledPieces() { return spilledPieces.get(); }
+    public long getSpilledBytes() { return spilledBytes.get(); }
+
+    public String getStats() {
+        return String.format("%dK/%dK used, peak %dK, %d throttled, %d spilled (%dK)",
+                used.get() / 1024, limit / 1024, peak.get() / 1024,
+                throttled.get(), spilledPieces.get(), spilledBytes.get() / 1024);
+    }
+}
@@ -0,0 +1,176 @@
+package org.example.peer;
+
+import org.example.core.FileManager;
+import org.example.core.protocol.Request;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Download state of a piece that is not complete yet
+ * - a bitmap of received 16 KB blocks, so any peer can continue the piece
+ * - which connection each outstanding block was requested from;
+ *   blocks are handed out one by one, so several peers can work on the
+ *   same piece, and a block freed after a timeout goes to another peer
+ * - the data, copied in at each block's offset
+ * Under memory pressure the received part is written to the piece's place on
+ * disk and the buffer is dropped; later blocks of a spilled piece go straight
+ * to disk, and the piece is read back for verification once complete.
+ */
+class PartialPiece {
+    final int pieceIndex;
+    final int length;
+    final int numBlocks;
+    private final BitSet receivedBlocks;
+    private final Object[] requestedBy; // per block, connection it is requested from (null = free)
+    private byte[] data;               // null once spilled
+    private int filled;                // end of the highest block received
+    private boolean reserved;          // still holds its memory reservation
+    private volatile long lastActivity;
+
+    /**
+     * New piece, its memory is already reserved
+     */
+    PartialPiece(int pieceIndex, int length) {
+        this(pieceIndex, length, new BitSet(), new byte[length]);
+        this.reserved = true;
+    }
+
+    /**
+     * Piece restored from the resume file, its blocks are on disk
+     */
+    PartialPiece(int pieceIndex, int length, BitSet receivedBlocks) {
+        this(pieceIndex, length, receivedBlocks, null);
+        this.filled = length;
+    }
+
+    private PartialPiece(int pieceIndex, int length, BitSet receivedBlocks, byte[] data) {
+        this.pieceIndex = pieceIndex;
+        this.length = length;
+        this.numBlocks = (length + Request.BLOCK_SIZE - 1) / Request.BLOCK_SIZE;
+        this.receivedBlocks = receivedBlocks;
+        this.requestedBy = new Object[numBlocks];
+        this.data = data;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Store a block, returns true if this block completed the piece
+     * Blocks that were already received are ignored.
+     */
+    synchronized boolean addBlock(FileManager fileManager, int begin, byte[] block) throws IOException {
+        if (begin < 0 || begin % Request.BLOCK_SIZE != 0 || begin + block.length > length) {
+            throw new IOException("Block out of range for piece " + pieceIndex + ": " + begin + "+" + block.length);
+        }
+
+        int blockIndex = begin / Request.BLOCK_SIZE;
+        if (receivedBlocks.get(blockIndex)) return false;
+
+        if (data != null) {
+            System.arraycopy(block, 0, data, begin, block.length);
+        } else {
+            fileManager.writePartial(pieceIndex, begin, block, 0, block.length);
+        }
+
+        receivedBlocks.set(blockIndex);
+        requestedBy[blockIndex] = null;
+        filled = Math.max(filled, begin + block.length);
+        lastActivity = System.currentTimeMillis();
+        return isComplete();
+    }
+
+    synchronized boolean hasBlock(int begin) {
+        return receivedBlocks.get(begin / Request.BLOCK_SIZE);
+    }
+
+    synchronized boolean isComplete() {
+        return receivedBlocks.cardinality() == numBlocks;
+    }
+
+    /**
+     * Hand out up to max missing blocks nobody has requested, returns their offsets
+     * Blocks of a timed-out or dropped request are freed with unclaimBlock(s).
+     */
+    synchronized List<Integer> claimBlocks(Object owner, int max) {
+        List<Integer> claimed = new ArrayList<>();
+        for (int b = receivedBlocks.nextClearBit(0); b < numBlocks && claimed.size() < max;
+             b = receivedBlocks.nextClearBit(b + 1)) {
+            if (requestedBy[b] == null) {
+                requestedBy[b] = owner;
+                claimed.add(b * Request.BLOCK_SIZE);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Free a block if the connection still holds it
+     */
+    synchronized void unclaimBlock(int begin, Object owner) {
+        int b = begin / Request.BLOCK_SIZE;
+        if (b >= 0 && b < numBlocks && requestedBy[b] == owner) {
+            requestedBy[b] = null;
+        }
+    }
+
+    int blockLength(int begin) {
+        return Math.min(Request.BLOCK_SIZE, length - begin);
+    }
+
+    synchronized BitSet getReceivedBlocks() {
+        return (BitSet)receivedBlocks.clone();
+    }
+
+    synchronized long getReceivedBytes() {
+        long bytes = (long)receivedBlocks.cardinality() * Request.BLOCK_SIZE;
+        if (receivedBlocks.get(numBlocks - 1)) {
+            bytes -= (long)numBlocks * Request.BLOCK_SIZE - length; // short last block
+        }
+        return bytes;
+    }
+
+    /**
+     * Move the received data to disk and drop the buffer
+     * Returns true if memory was freed.
+     */
+    synchronized boolean spill(FileManager fileManager) throws IOException {
+        if (data == null || isComplete()) return false; // complete pieces are being verified
+        writeToDisk(fileManager);
+        data = null;
+        return true;
+    }
+
+    /**
+     * Write the buffered blocks to disk, keeping the buffer (shutdown)
+     */
+    synchronized void writeToDisk(FileManager fileManager) throws IOException {
+        if (data != null && filled > 0) {
+            fileManager.writePartial(pieceIndex, 0, data, 0, filled);
+        }
+    }
+
+    /**
+     * The complete piece, or null if it was spilled and has to be read from disk
+     */
+    synchronized byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Give up the memory reservation, true only on the first call
+     */
+    synchronized boolean releaseReservation() {
+        boolean wasReserved = reserved;
+        reserved = false;
+        return wasReserved;
+    }
+
+    synchronized boolean isSpilled() {
+        return data == null;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+}
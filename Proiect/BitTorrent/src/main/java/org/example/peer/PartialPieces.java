@@ -0,0 +1,125 @@
+package org.example.peer;
+
+import org.example.core.FileManager;
+import org.example.core.PieceBitmap;
+import org.example.core.TorrentFile;
+import org.example.util.Logger;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Block-level progress of the unfinished pieces of one torrent
+ * Shared by all connections and kept when a connection drops, so another
+ * peer can finish a piece where the last one stopped. On shutdown the
+ * received blocks are written to disk and their bitmaps saved in the resume
+ * file; the next start continues from there.
+ */
+public class PartialPieces {
+    private final TorrentFile torrent;
+    private final FileManager fileManager;
+    private final String infoHashHex;
+    private final Map<Integer, PartialPiece> pieces;
+
+    public PartialPieces(TorrentFile torrent, FileManager fileManager, String infoHashHex) {
+        this.torrent = torrent;
+        this.fileManager = fileManager;
+        this.infoHashHex = infoHashHex;
+        this.pieces = new ConcurrentHashMap<>();
+    }
+
+    PartialPiece get(int pieceIndex) {
+        return pieces.get(pieceIndex);
+    }
+
+    /**
+     * Start a new piece; the caller has reserved its memory
+     */
+    PartialPiece create(int pieceIndex) {
+        PartialPiece partial = new PartialPiece(pieceIndex, torrent.getPieceSize(pieceIndex));
+        PartialPiece existing = pieces.putIfAbsent(pieceIndex, partial);
+        return existing != null ? existing : partial;
+    }
+
+    void remove(PartialPiece partial) {
+        pieces.remove(partial.pieceIndex, partial);
+    }
+
+    Collection<PartialPiece> all() {
+        return pieces.values();
+    }
+
+    FileManager getFileManager() {
+        return fileManager;
+    }
+
+    String getInfoHashHex() {
+        return infoHashHex;
+    }
+
+    /**
+     * Unfinished pieces the peer has, most complete first
+     * Finishing started pieces first keeps partial data (and memory) short-lived.
+     */
+    List<PartialPiece> candidates(PieceBitmap peerPieces) {
+        List<PartialPiece> candidates = new ArrayList<>();
+        for (PartialPiece partial : pieces.values()) {
+            if (peerPieces.get(partial.pieceIndex) && !partial.isComplete()) {
+                candidates.add(partial);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(PartialPiece::getReceivedBytes).reversed());
+        return candidates;
+    }
+
+    /**
+     * Recreate the partial pieces saved by the last run, their blocks are on disk
+     * They are claimed in the picker, connections continue them block by block.
+     */
+    public void restore(PiecePicker picker) {
+        Map<Integer, BitSet> saved = fileManager.getSavedPartialPieces();
+        for (Map.Entry<Integer, BitSet> e : saved.entrySet()) {
+            int pieceIndex = e.getKey();
+            if (fileManager.hasPiece(pieceIndex)) continue;
+
+            PartialPiece partial = new PartialPiece(pieceIndex, torrent.getPieceSize(pieceIndex), e.getValue());
+            if (partial.isComplete()) {
+                // Every block arrived before the last run stopped, only verification is left
+                fileManager.completeSpilledPiece(pieceIndex);
+            } else if (picker.tryClaim(pieceIndex)) {
+                pieces.put(pieceIndex, partial);
+            }
+        }
+        if (!pieces.isEmpty()) {
+            Logger.info("Resuming " + pieces.size() + " partial piece(s) of " + torrent.getName());
+        }
+    }
+
+    /**
+     * Write every received block to disk and record the block bitmaps
+     */
+    public void persist() {
+        Map<Integer, BitSet> blocks = new HashMap<>();
+        for (PartialPiece partial : pieces.values()) {
+            if (fileManager.hasPiece(partial.pieceIndex)) continue;
+            try {
+                partial.writeToDisk(fileManager);
+                BitSet received = partial.getReceivedBlocks();
+                if (!received.isEmpty()) blocks.put(partial.pieceIndex, received);
+            } catch (IOException e) {
+                Logger.error("Failed to save partial piece " + partial.pieceIndex + ": " + e.getMessage());
+            }
+        }
+        fileManager.savePartialPieces(blocks);
+    }
+
+    public int size() {
+        return pieces.size();
+    }
+
+    public long getReceivedBytes() {
+        long total = 0;
+        for (PartialPiece partial : pieces.values()) total += partial.getReceivedBytes();
+        return total;
+    }
+}
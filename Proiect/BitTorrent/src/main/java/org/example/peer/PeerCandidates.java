@@ -0,0 +1,166 @@
+package org.example.peer;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * Peers we could connect to for one torrent, from every discovery source
+ * Addresses are deduplicated; a peer that can't be reached waits an
+ * exponentially growing backoff before the next attempt and is dropped after
+ * MAX_FAILURES, so the connection manager doesn't keep dialing dead peers.
+ */
+public class PeerCandidates {
+    public enum Source { DHT, ANNOUNCE, PEX, TRACKER }
+
+    private static final int MAX_CANDIDATES = Integer.getInteger("bittorrent.maxPeerCandidates", 1000);
+    private static final int MAX_FAILURES = 5;
+    private static final long BASE_BACKOFF_MS = 15000;
+    private static final long MAX_BACKOFF_MS = 30 * 60 * 1000;
+    private static final long RECONNECT_DELAY_MS = 60000; // after a connection that worked ended
+
+    private enum State { IDLE, CONNECTING, CONNECTED }
+
+    private final Map<InetSocketAddress, Candidate> candidates = new LinkedHashMap<>(); // guarded by this
+    private final Set<InetSocketAddress> banned = new HashSet<>(); // ourselves, wrong torrent
+    private final EnumMap<Source, Integer> added = new EnumMap<>(Source.class);
+
+    /**
+     * Add a discovered peer, false if it was known already or there is no room
+     */
+    public synchronized boolean add(InetSocketAddress address, Source source) {
+        if (banned.contains(address)) return false;
+        Candidate existing = candidates.get(address);
+        if (existing != null) {
+            existing.lastSeen = System.currentTimeMillis();
+            return false;
+        }
+        if (candidates.size() >= MAX_CANDIDATES && !evictOne()) return false;
+
+        candidates.put(address, new Candidate());
+        added.merge(source, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Drop the idle candidate with the most failures, oldest first on ties
+     */
+    private boolean evictOne() {
+        InetSocketAddress worst = null;
+        Candidate worstCandidate = null;
+        for (Map.Entry<InetSocketAddress, Candidate> e : candidates.entrySet()) {
+            Candidate c = e.getValue();
+            if (c.state != State.IDLE) continue;
+            if (worstCandidate == null || c.failures > worstCandidate.failures
+                    || (c.failures == worstCandidate.failures && c.lastSeen < worstCandidate.lastSeen)) {
+                worst = e.getKey();
+                worstCandidate = c;
+            }
+        }
+        if (worst == null) return false;
+        candidates.remove(worst);
+        return true;
+    }
+
+    /**
+     * Up to n peers to dial now, fewest failures and most recently seen first
+     * They are marked as connecting until connected, failed or released.
+     */
+    public synchronized List<InetSocketAddress> take(int n, long now) {
+        List<Map.Entry<InetSocketAddress, Candidate>> ready = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, Candidate> e : candidates.entrySet()) {
+            if (e.getValue().state == State.IDLE && e.getValue().nextAttemptAt <= now) ready.add(e);
+        }
+        ready.sort((a, b) -> a.getValue().failures != b.getValue().failures
+                ? Integer.compare(a.getValue().failures, b.getValue().failures)
+                : Long.compare(b.getValue().lastSeen, a.getValue().lastSeen));
+
+        List<InetSocketAddress> result = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, Candidate> e : ready) {
+            if (result.size() >= n) break;
+            e.getValue().state = State.CONNECTING;
+            result.add(e.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * The dial was not started (already connected, no connection slot)
+     */
+    public synchronized void released(InetSocketAddress address) {
+        Candidate c = candidates.get(address);
+        if (c != null && c.state == State.CONNECTING) c.state = State.IDLE;
+    }
+
+    public synchronized void connected(InetSocketAddress address) {
+        Candidate c = candidates.get(address);
+        if (c == null) return;
+        c.state = State.CONNECTED;
+        c.failures = 0;
+    }
+
+    /**
+     * A connection that worked ended, try the peer again later
+     */
+    public synchronized void disconnected(InetSocketAddress address) {
+        Candidate c = candidates.get(address);
+        if (c == null || c.state != State.CONNECTED) return;
+        c.state = State.IDLE;
+        c.nextAttemptAt = Math.max(c.nextAttemptAt, System.currentTimeMillis() + RECONNECT_DELAY_MS);
+    }
+
+    /**
+     * The peer couldn't be reached or was dropped as useless
+     * @param permanent never try it again (ourselves, wrong torrent)
+     */
+    public synchronized void failed(InetSocketAddress address, boolean permanent) {
+        if (permanent) {
+            candidates.remove(address);
+            banned.add(address);
+            return;
+        }
+        Candidate c = candidates.get(address);
+        if (c == null) return;
+        c.failures++;
+        if (c.failures >= MAX_FAILURES) {
+            candidates.remove(address);
+            return;
+        }
+        if (c.state == State.CONNECTING) c.state = State.IDLE;
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (c.failures - 1));
+        c.nextAttemptAt = System.currentTimeMillis() + backoff;
+    }
+
+    /**
+     * Peers that could be dialed right now
+     */
+    public synchronized int available(long now) {
+        int count = 0;
+        for (Candidate c : candidates.values()) {
+            if (c.state == State.IDLE && c.nextAttemptAt <= now) count++;
+        }
+        return count;
+    }
+
+    public synchronized int connectingCount() {
+        int count = 0;
+        for (Candidate c : candidates.values()) {
+            if (c.state == State.CONNECTING) count++;
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return candidates.size();
+    }
+
+    public synchronized String describe() {
+        return candidates.size() + " candidates " + added;
+    }
+
+    private static class Candidate {
+        State state = State.IDLE;
+        int failures;
+        long nextAttemptAt;
+        long lastSeen = System.currentTimeMillis();
+    }
+}
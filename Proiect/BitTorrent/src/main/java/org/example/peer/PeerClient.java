@@ -2,41 +2,86 @@ package org.example.peer;
 
 import org.example.core.*;
 import org.example.core.protocol.*;
+import org.example.util.Hash;
 import org.example.util.Logger;
+import org.example.util.TimerWheel;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Connects to peers and downloads pieces
  */
 public class PeerClient {
+    // Partial pieces idle this long may be spilled to disk when memory runs out
+    private static final long SPILL_AFTER_MS = Long.getLong("bittorrent.spillAfterMs", 10_000);
+    // Blocks kept requested per connection
+    private static final int PIPELINE_DEPTH = Integer.getInteger("bittorrent.pipelineDepth", 16);
+    // A block not answered within this time is requested from another peer
+    private static final long BLOCK_TIMEOUT_MS = Long.getLong("bittorrent.blockTimeoutMs", 30_000);
+    // A peer that sends no block for this long while we wait on it is snubbing us
+    private static final long SNUB_TIMEOUT_MS = Long.getLong("bittorrent.snubTimeoutMs", 60_000);
+    private static final long TICK_MS = 100;
+    // Connections younger than this are never dropped as slow
+    private static final long MIN_PEER_AGE_MS = 60_000;
+
     private PeerNode peerNode;
     private ExecutorService executor;
-    private Map<byte[], Set<Connection>> activeConnections;
+    private Map<String, Set<Session>> activeSessions; // info_hash hex -> outgoing connections
+    private final Set<String> dialing = ConcurrentHashMap.newKeySet(); // info_hash hex + address, connecting or connected
+    private TimerWheel<BlockRequest> requestDeadlines;
+    private ScheduledExecutorService timeoutTimer;
+
+    // Metrics
+    private final AtomicLong wastedBytes = new AtomicLong(); // duplicate or no longer needed blocks
+    private final AtomicLong cancelsSent = new AtomicLong();
+    private final AtomicLong requestTimeouts = new AtomicLong(); // blocks re-requested after BLOCK_TIMEOUT_MS
 
     public PeerClient(PeerNode peerNode) {
         this.peerNode = peerNode;
-        this.executor = Executors.newFixedThreadPool(5);
-        this.activeConnections = new ConcurrentHashMap<>();
+        // One blocking thread per connection, the resource scheduler caps how many
+        this.executor = Executors.newCachedThreadPool();
+        this.activeSessions = new ConcurrentHashMap<>();
+        this.requestDeadlines = new TimerWheel<>(TICK_MS, 1024);
+        this.timeoutTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "request-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timeoutTimer.scheduleAtFixedRate(this::checkTimeouts, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Connect to a peer
+     * Returns false if no attempt was started (already connected or no connection slot).
      */
-    public void connectToPeer(InetSocketAddress peerAddress, byte[] infoHash) {
+    public boolean connectToPeer(InetSocketAddress peerAddress, byte[] infoHash) {
+        String infoHashHex = Hash.toHex(infoHash);
+        String dialKey = infoHashHex + peerAddress;
+        if (!dialing.add(dialKey)) return false; // already connected (DHT and PEX report the same peers)
+
+        ResourceScheduler scheduler = peerNode.getScheduler();
+        if (!scheduler.tryAcquireConnection(infoHashHex)) {
+            dialing.remove(dialKey);
+            Logger.debug("Connection limit reached, not connecting to " + peerAddress);
+            return false;
+        }
+        ConnectionManager manager = peerNode.getConnectionManager();
+
         executor.submit(() -> {
+            Socket socket = new Socket();
+            boolean connected = false;
             try {
-                Socket socket = new Socket();
                 socket.connect(peerAddress, 5000);
                 Logger.info("Connected to peer: " + peerAddress);
 
-                Connection conn = new Connection(socket);
+                Connection conn = new Connection(socket, true);
 
                 // Send handshake
                 conn.sendHandshake(peerNode.createHandshake(infoHash));
@@ -45,169 +90,639 @@ public class PeerClient {
                 Handshake handshake = conn.receiveHandshake();
                 if (!Arrays.equals(handshake.getInfoHash(), infoHash)) {
                     Logger.warn("Info hash mismatch");
-                    conn.close();
+                    manager.onConnectFailed(infoHash, peerAddress, true);
                     return;
                 }
 
                 // Prevent connecting to self
                 if (Arrays.equals(handshake.getPeerId(), peerNode.getPeerId())) {
                     Logger.debug("Connected to self, closing connection");
-                    conn.close();
+                    manager.onConnectFailed(infoHash, peerAddress, true);
                     return;
                 }
 
-                // Add connection
-                activeConnections.computeIfAbsent(infoHash, k -> ConcurrentHashMap.newKeySet())
-                        .add(conn);
-
-                // Handle connection
-                handleConnection(conn, infoHash);
-
-            } catch (IOException e) {
-                Logger.error("Failed to connect to " + peerAddress + ": " + e.getMessage());
+                // Both sides advertise BEP 6 in the reserved bytes
+                conn.setFastExtension(handshake.supportsFastExtension());
+                conn.setExtensionProtocol(handshake.supportsExtensionProtocol());
+
+                // Handle connection, it cleans up after itself however it ends
+                manager.onConnected(infoHash, peerAddress);
+                connected = true;
+                handleConnection(new Session(conn, infoHash));
+
+            } catch (IOException | RuntimeException e) {
+                if (!connected) {
+                    Logger.error("Failed to connect to " + peerAddress + ": " + e.getMessage());
+                    manager.onConnectFailed(infoHash, peerAddress, false);
+                } else {
+                    Logger.error("Connection to " + peerAddress + " failed: " + e.getMessage());
+                }
+            } finally {
+                if (connected) manager.onDisconnected(infoHash, peerAddress);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                scheduler.releaseConnection(infoHashHex);
+                dialing.remove(dialKey);
             }
         });
+        return true;
     }
 
-    private void handleConnection(Connection conn, byte[] infoHash) throws IOException {
-        FileManager fileManager = peerNode.getFileManager(infoHash);
-        TorrentFile torrent = peerNode.getTorrent(infoHash);
-        BitSet peerPieces = new BitSet();
-        Map<Integer, ByteArrayOutputStream> pendingPieces = new ConcurrentHashMap<>();
-
-        // Send our bitfield
-        Bitfield ourBitfield = new Bitfield(fileManager.getBitfield(), torrent.getNumPieces());
-        conn.sendBitfield(ourBitfield);
+    /**
+     * Run a connection until it closes; however it ends (I/O error, protocol
+     * error, shutdown) the session is removed and its requests are released
+     */
+    private void handleConnection(Session session) {
+        Connection conn = session.conn;
+        TorrentFile torrent = session.torrent;
 
-        // Send interested
-        conn.sendInterested();
+        activeSessions.computeIfAbsent(session.infoHashHex, k -> ConcurrentHashMap.newKeySet())
+                .add(session);
 
         try {
+            // Send our bitfield (or Have All / Have None)
+            Bitfield ourBitfield = new Bitfield(session.fileManager.getBitfield(), torrent.getNumPieces());
+            conn.sendPieceState(ourBitfield);
+            peerNode.getExtensions().sendHandshake(conn, session.infoHash);
+
+            // Send interested
+            conn.sendInterested();
+
             while (true) {
                 Connection.Message msg = conn.receiveMessage();
 
                 switch (msg.id) {
+                    case 0: // choke
+                        conn.setPeerChoked(true);
+                        // Without the Fast Extension the peer silently drops our requests,
+                        // with it every request is answered by a block or a reject
+                        if (!conn.isFastExtension()) {
+                            giveUpRequests(session, false);
+                            kickOthers(session);
+                        }
+                        break;
+
                     case 1: // unchoke
                         conn.setPeerChoked(false);
-                        requestPieces(conn, fileManager, torrent, peerPieces, pendingPieces);
+                        requestPieces(session);
                         break;
 
                     case Bitfield.MESSAGE_ID:
                         Bitfield bitfield = Bitfield.parse(msg.payload, torrent.getNumPieces());
-                        peerPieces = bitfield.getPieces();
+                        setPeerPieces(session, PieceBitmap.fromBitSet(bitfield.getPieces(), torrent.getNumPieces()));
+                        break;
+
+                    case Bitfield.HAVE_ALL_ID:
+                        BitSet all = new BitSet(torrent.getNumPieces());
+                        all.set(0, torrent.getNumPieces());
+                        setPeerPieces(session, PieceBitmap.fromBitSet(all, torrent.getNumPieces()));
+                        break;
+
+                    case Bitfield.HAVE_NONE_ID:
+                        setPeerPieces(session, new PieceBitmap(torrent.getNumPieces()));
+                        break;
+
+                    case RejectRequest.MESSAGE_ID:
+                        handleReject(session, RejectRequest.parse(msg.payload));
+                        break;
+
+                    case Extended.MESSAGE_ID:
+                        peerNode.getExtensions().onMessage(conn, session.infoHash, msg.payload);
+                        break;
+
+                    case AllowedFast.MESSAGE_ID:
+                        int allowed = AllowedFast.parse(msg.payload).getPieceIndex();
+                        if (allowed >= 0 && allowed < torrent.getNumPieces()) {
+                            session.allowedFast.add(allowed);
+                            if (conn.isPeerChoked()) requestPieces(session);
+                        }
                         break;
 
                     case Piece.MESSAGE_ID:
                         Piece piece = Piece.parse(msg.payload);
-                        handlePieceBlock(piece, fileManager, torrent, pendingPieces,
-                                conn, peerPieces);
+                        handlePieceBlock(session, piece);
                         break;
 
                     case 4: // have
                         int pieceIndex = ByteBuffer.wrap(msg.payload).getInt();
-                        peerPieces.set(pieceIndex);
+                        if (pieceIndex >= 0 && pieceIndex < torrent.getNumPieces()
+                                && session.peerPieces.set(pieceIndex)) {
+                            session.picker.peerHas(pieceIndex);
+                        }
                         break;
                 }
             }
         } catch (IOException e) {
             Logger.debug("Connection closed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A malformed payload (short Have, truncated bitfield or block) is a protocol error
+            Logger.warn("Protocol error from " + conn.getRemoteAddress() + ", closing: " + e);
+        } finally {
             conn.close();
-            activeConnections.get(infoHash).remove(conn);
+            activeSessions.get(session.infoHashHex).remove(session);
+
+            // Unfinished pieces stay in the torrent's partial pieces, other
+            // connections continue them from the blocks received so far
+            session.picker.removePeer(session.peerPieces);
+            giveUpRequests(session, false);
+            session.abandoned.clear();
+            kickOthers(session);
+            peerNode.getExtensions().onClose(conn, session.infoHash);
         }
     }
 
-    private void requestPieces(Connection conn, FileManager fileManager,
-                               TorrentFile torrent, BitSet peerPieces,
-                               Map<Integer, ByteArrayOutputStream> pendingPieces) {
-        if (conn.isPeerChoked()) return;
+    private void setPeerPieces(Session session, PieceBitmap pieces) {
+        session.picker.removePeer(session.peerPieces);
+        session.peerPieces = pieces;
+        session.picker.addPeer(pieces);
+    }
 
-        BitSet ourPieces = fileManager.getBitfield();
+    /**
+     * The peer won't serve a request (Fast Extension), free the block right away
+     */
+    private void handleReject(Session session, RejectRequest reject) {
+        long key = blockKey(reject.getPieceIndex(), reject.getBegin());
+        TimerWheel.Timeout<BlockRequest> timeout = session.outstanding.remove(key);
+        if (timeout == null) return; // not ours, or already given up
+        timeout.cancel();
+        PartialPiece partial = session.partials.get(reject.getPieceIndex());
+        if (partial != null) partial.unclaimBlock(reject.getBegin(), session);
+
+        // A piece rejected while choked is not worth asking for again until unchoked
+        if (session.conn.isPeerChoked()) session.allowedFast.remove(reject.getPieceIndex());
+        kickOthers(session);
+        requestPieces(session);
+    }
 
-        // Find pieces we need that peer has
-        for (int i = 0; i < torrent.getNumPieces(); i++) {
-            if (!ourPieces.get(i) && peerPieces.get(i) && !pendingPieces.containsKey(i)) {
-                requestPiece(conn, i, torrent, pendingPieces);
-                break; // Request one piece at a time
+    /**
+     * Cancel the deadlines of a connection's requests and free their blocks
+     * @param mayStillArrive the peer may still answer (timeout/snub, not choke/disconnect);
+     *                       a Cancel is sent once another peer delivers the block
+     */
+    private void giveUpRequests(Session session, boolean mayStillArrive) {
+        for (Map.Entry<Long, TimerWheel.Timeout<BlockRequest>> e : session.outstanding.entrySet()) {
+            if (session.outstanding.remove(e.getKey(), e.getValue())) {
+                e.getValue().cancel();
+                if (mayStillArrive) session.abandoned.add(e.getKey());
+                PartialPiece partial = session.partials.get(pieceOf(e.getKey()));
+                if (partial != null) partial.unclaimBlock((int)e.getKey().longValue(), session);
             }
         }
     }
 
-    private void requestPiece(Connection conn, int pieceIndex, TorrentFile torrent,
-                              Map<Integer, ByteArrayOutputStream> pendingPieces) {
+    /**
+     * Let the torrent's other connections take over freed blocks
+     */
+    private void kickOthers(Session session) {
+        Set<Session> sessions = activeSessions.get(session.infoHashHex);
+        if (sessions == null) return;
+        for (Session other : sessions) {
+            if (other != session) requestPieces(other);
+        }
+    }
+
+    // ==================== TIMEOUTS ====================
+
+    private void checkTimeouts() {
         try {
-            int pieceLength = (pieceIndex == torrent.getNumPieces() - 1) ?
-                    torrent.getLastPieceLength() : (int)torrent.getPieceLength();
+            long now = System.currentTimeMillis();
+            requestDeadlines.advance(now, this::onRequestTimeout);
+            checkSnubbed(now);
+        } catch (RuntimeException e) {
+            Logger.error("Request timeout check failed: " + e.getMessage());
+        }
+    }
+
+    private void onRequestTimeout(BlockRequest request) {
+        Session session = request.session;
+        long key = blockKey(request.pieceIndex, request.begin);
+        TimerWheel.Timeout<BlockRequest> timeout = session.outstanding.get(key);
+        if (timeout == null || timeout.getItem() != request || !session.outstanding.remove(key, timeout)) return;
+
+        requestTimeouts.incrementAndGet();
+        session.abandoned.add(key);
+        PartialPiece partial = session.partials.get(request.pieceIndex);
+        if (partial != null) partial.unclaimBlock(request.begin, session);
+        Logger.debug("Request for piece " + request.pieceIndex + " block " + request.begin +
+                " timed out at " + session.conn.getRemoteAddress());
+
+        // Other peers first so the block moves away from the slow one
+        kickOthers(session);
+        requestPieces(session);
+    }
+
+    /**
+     * Mark peers that stopped sending blocks as snubbed and hand their blocks to others
+     */
+    private void checkSnubbed(long now) {
+        for (Set<Session> sessions : activeSessions.values()) {
+            for (Session session : sessions) {
+                if (session.snubbed || session.outstanding.isEmpty()) continue;
+                if (now - session.lastBlockAt < SNUB_TIMEOUT_MS) continue;
+
+                session.snubbed = true;
+                Logger.info("Peer " + session.conn.getRemoteAddress() + " is snubbing us, demoting it");
+                giveUpRequests(session, true);
+                kickOthers(session);
+                requestPieces(session); // one probe request
+            }
+        }
+    }
+
+    /**
+     * True if an outgoing connection to this host is snubbing us (used by the choker)
+     */
+    public boolean isSnubbing(InetAddress address) {
+        for (Set<Session> sessions : activeSessions.values()) {
+            for (Session session : sessions) {
+                if (session.snubbed && address.equals(session.conn.getInetAddress())) return true;
+            }
+        }
+        return false;
+    }
 
-            pendingPieces.put(pieceIndex, new ByteArrayOutputStream());
+    /**
+     * Keep up to PIPELINE_DEPTH blocks requested from this peer
+     * Blocks come from unfinished pieces first (several peers may share a piece),
+     * then from a newly picked piece. While choked only the peer's allowed fast
+     * pieces can be requested.
+     */
+    private void requestPieces(Session session) {
+        PieceBitmap available = session.peerPieces;
+        if (session.conn.isPeerChoked()) {
+            available = allowedFastPieces(session);
+            if (available == null) return;
+        }
+
+        // Stop requesting while this torrent's write-behind queue is over its share
+        ResourceScheduler scheduler = peerNode.getScheduler();
+        long diskQueue = session.fileManager.getPendingWriteBytes();
+        scheduler.recordDiskQueue(session.infoHashHex, diskQueue);
+        if (diskQueue > scheduler.getDiskQueueAllowance(session.infoHashHex)) return;
+
+        synchronized (session) {
+            // A snubbing peer keeps a single probe request and starts no new pieces
+            int depth = session.snubbed ? 1 : PIPELINE_DEPTH;
+            int wanted = depth - session.outstanding.size();
+            if (wanted <= 0) return;
+
+            // Started pieces, most complete first
+            for (PartialPiece partial : session.partials.candidates(available)) {
+                wanted -= sendRequests(session, partial, partial.claimBlocks(session, wanted));
+                if (wanted <= 0) return;
+            }
+            if (session.snubbed) return;
 
-            // Request in blocks
-            int offset = 0;
-            while (offset < pieceLength) {
-                int blockSize = Math.min(Request.BLOCK_SIZE, pieceLength - offset);
-                Request request = new Request(pieceIndex, offset, blockSize);
-                conn.sendRequest(request);
-                offset += blockSize;
+            // New pieces: streaming window first, then rarest-first; claimed torrent-wide
+            while (wanted > 0) {
+                PartialPiece partial = startPiece(session, available);
+                if (partial == null) return;
+                wanted -= sendRequests(session, partial, partial.claimBlocks(session, wanted));
             }
+        }
+    }
+
+    /**
+     * Allowed fast pieces the peer has, null if there are none
+     */
+    private PieceBitmap allowedFastPieces(Session session) {
+        if (!session.conn.isFastExtension() || session.allowedFast.isEmpty()) return null;
+        PieceBitmap pieces = new PieceBitmap(session.torrent.getNumPieces());
+        boolean any = false;
+        for (int index : session.allowedFast) {
+            if (session.peerPieces.get(index)) any |= pieces.set(index);
+        }
+        return any ? pieces : null;
+    }
 
+    /**
+     * Pick a new piece and reserve its memory, null if there is none or no memory
+     */
+    private PartialPiece startPiece(Session session, PieceBitmap available) {
+        int i = session.picker.pick(available);
+        if (i < 0) return null;
+
+        PartialPiece partial = session.partials.get(i);
+        if (partial != null) return partial;
+
+        // Throttle when out of piece memory, unless stalled pieces can make room;
+        // otherwise retried on the next rebalance
+        ResourceScheduler scheduler = peerNode.getScheduler();
+        int pieceSize = session.torrent.getPieceSize(i);
+        if (!scheduler.tryReserveInFlight(session.infoHashHex, pieceSize)
+                && !(spillStalled(pieceSize) && scheduler.tryReserveInFlight(session.infoHashHex, pieceSize))) {
+            session.picker.release(i);
+            return null;
+        }
+        return session.partials.create(i);
+    }
+
+    private int sendRequests(Session session, PartialPiece partial, List<Integer> blocks) {
+        long now = System.currentTimeMillis();
+        if (session.outstanding.isEmpty()) {
+            session.lastBlockAt = now; // snub clock starts with the first request
+        }
+        try {
+            for (int begin : blocks) {
+                BlockRequest request = new BlockRequest(session, partial.pieceIndex, begin);
+                session.outstanding.put(blockKey(partial.pieceIndex, begin),
+                        requestDeadlines.schedule(request, now + BLOCK_TIMEOUT_MS));
+                session.conn.sendRequest(new Request(partial.pieceIndex, begin, partial.blockLength(begin)));
+            }
         } catch (IOException e) {
             Logger.error("Error requesting piece: " + e.getMessage());
-            pendingPieces.remove(pieceIndex);
+            giveUpRequests(session, false);
         }
+        return blocks.size();
     }
 
-    private void handlePieceBlock(Piece piece, FileManager fileManager, TorrentFile torrent,
-                                  Map<Integer, ByteArrayOutputStream> pendingPieces,
-                                  Connection conn, BitSet peerPieces) {
+    private void handlePieceBlock(Session session, Piece piece) {
         int pieceIndex = piece.getPieceIndex();
-        ByteArrayOutputStream pieceData = pendingPieces.get(pieceIndex);
+        long key = blockKey(pieceIndex, piece.getBegin());
+        TimerWheel.Timeout<BlockRequest> timeout = session.outstanding.remove(key);
+        if (timeout != null) timeout.cancel();
+        session.abandoned.remove(key);
+
+        session.lastBlockAt = System.currentTimeMillis();
+        if (session.snubbed) {
+            session.snubbed = false;
+            Logger.info("Peer " + session.conn.getRemoteAddress() + " is sending again");
+        }
 
-        if (pieceData == null) {
-            Logger.warn("Received unexpected piece block: " + pieceIndex);
+        peerNode.getScheduler().recordDownloaded(session.infoHashHex, piece.getBlock().length);
+        session.bytesReceived += piece.getBlock().length;
+        PartialPiece partial = session.partials.get(pieceIndex);
+
+        if (partial == null || partial.hasBlock(piece.getBegin())) {
+            // Already delivered by another peer (a timed-out request answered late)
+            wastedBytes.addAndGet(piece.getBlock().length);
+            Logger.debug("Received duplicate block of piece " + pieceIndex);
+            requestPieces(session);
             return;
         }
 
         try {
-            pieceData.write(piece.getBlock());
+            boolean complete = partial.addBlock(session.fileManager, piece.getBegin(), piece.getBlock());
+            cancelElsewhere(session, pieceIndex, piece.getBegin(), piece.getBlock().length);
+            if (complete) {
+                finishPiece(session, partial);
+            }
+        } catch (IOException e) {
+            Logger.error("Error handling piece block: " + e.getMessage());
+        }
 
-            // Check if piece is complete
-            int expectedLength = (pieceIndex == torrent.getNumPieces() - 1) ?
-                    torrent.getLastPieceLength() : (int)torrent.getPieceLength();
+        // Refill the pipeline
+        requestPieces(session);
+    }
 
-            if (pieceData.size() >= expectedLength) {
-                byte[] completePiece = pieceData.toByteArray();
+    /**
+     * Cancel the same block at every other peer it is still requested from:
+     * a given-up request, or the re-request after a timeout when the slow
+     * peer answered after all
+     */
+    private void cancelElsewhere(Session session, int pieceIndex, int begin, int length) {
+        Set<Session> sessions = activeSessions.get(session.infoHashHex);
+        if (sessions == null) return;
+
+        long key = blockKey(pieceIndex, begin);
+        for (Session other : sessions) {
+            if (other == session) continue;
+            TimerWheel.Timeout<BlockRequest> timeout = other.outstanding.remove(key);
+            if (timeout != null) timeout.cancel();
+            if (!other.abandoned.remove(key) && timeout == null) continue;
+            try {
+                other.conn.sendCancel(new Cancel(pieceIndex, begin, length));
+                cancelsSent.incrementAndGet();
+            } catch (IOException e) {
+                // Connection is going away, nothing to cancel
+            }
+        }
+    }
 
-                if (fileManager.writePiece(pieceIndex, completePiece)) {
-//                    Logger.info("Downloaded piece " + pieceIndex + " (" +
-//                            fileManager.getCompletionPercentage() + "% complete)");
+    public long getWastedBytes() { return wastedBytes.get(); }
+    public long getCancelsSent() { return cancelsSent.get(); }
+    public long getRequestTimeouts() { return requestTimeouts.get(); }
 
-                    String peerAddress = conn.getRemoteAddress(); // Get the IP
-//                    Logger.info("Downloaded piece " + pieceIndex +
-//                            " from " + peerAddress +
-//                            " (" + fileManager.getCompletionPercentage() + "% complete)");
-                    Logger.debug("Downloaded block for Piece " + pieceIndex + " from " + peerAddress + " (" +
-                            fileManager.getCompletionPercentage() + "% complete)");
+    /**
+     * Verify + write a complete piece on the hashing pool; it stays claimed
+     * until then so it isn't picked again while being hashed
+     */
+    private void finishPiece(Session session, PartialPiece partial) {
+        int pieceIndex = partial.pieceIndex;
+        FileManager fileManager = session.fileManager;
+        String peerAddress = session.conn.getRemoteAddress(); // Get the IP
+
+        byte[] completePiece = partial.getData();
+        CompletableFuture<Boolean> written = completePiece != null
+                ? fileManager.writePieceAsync(pieceIndex, completePiece)
+                : fileManager.completeSpilledPiece(pieceIndex);
+
+        written.thenAccept(ok -> {
+            // A piece that failed verification starts over from scratch
+            session.partials.remove(partial);
+            session.picker.release(pieceIndex);
+            releasePieceMemory(session.infoHashHex, partial);
+
+            if (ok) {
+                Logger.debug("Downloaded Piece " + pieceIndex + " (last block from " + peerAddress + ", " +
+                        fileManager.getCompletionPercentage() + "% complete)");
+
+                if (fileManager.isComplete()) {
+                    Logger.info("Download complete!");
+                    peerNode.onDownloadComplete(session.infoHash);
+                }
+            }
 
+            // Memory was just freed; also retries a failed piece
+            requestPieces(session);
+        });
+    }
+
+    private static long blockKey(int pieceIndex, int begin) {
+        return ((long)pieceIndex << 32) | (begin & 0xFFFFFFFFL);
+    }
+
+    private static int pieceOf(long blockKey) {
+        return (int)(blockKey >>> 32);
+    }
+
+    private void releasePieceMemory(String infoHashHex, PartialPiece partial) {
+        if (partial.releaseReservation()) {
+            peerNode.getScheduler().releaseInFlight(infoHashHex, partial.length);
+        }
+    }
 
-                    if (fileManager.isComplete()) {
-                        Logger.info("Download complete!");
-                    }
+    /**
+     * Move the oldest stalled partial pieces (all torrents) to disk until
+     * at least the requested memory is free. Returns true if it is.
+     */
+    private synchronized boolean spillStalled(long needed) {
+        MemoryBudget memory = peerNode.getScheduler().getMemoryBudget();
+        long cutoff = System.currentTimeMillis() - SPILL_AFTER_MS;
+
+        List<Map.Entry<PartialPieces, PartialPiece>> stalled = new ArrayList<>();
+        for (PartialPieces partials : peerNode.getAllPartialPieces()) {
+            for (PartialPiece partial : partials.all()) {
+                if (partial.getLastActivity() < cutoff && !partial.isSpilled()) {
+                    stalled.add(Map.entry(partials, partial));
                 }
+            }
+        }
+        stalled.sort(Comparator.comparingLong(e -> e.getValue().getLastActivity()));
 
-                pendingPieces.remove(pieceIndex);
+        for (Map.Entry<PartialPieces, PartialPiece> e : stalled) {
+            if (memory.getAvailable() >= needed) break;
+            PartialPiece partial = e.getValue();
+            try {
+                if (partial.spill(e.getKey().getFileManager())) {
+                    memory.recordSpill(partial.length);
+                    releasePieceMemory(e.getKey().getInfoHashHex(), partial);
+                    Logger.debug("Spilled partial piece " + partial.pieceIndex + " to disk");
+                }
+            } catch (IOException ex) {
+                Logger.error("Failed to spill piece " + partial.pieceIndex + ": " + ex.getMessage());
+            }
+        }
+        return memory.getAvailable() >= needed;
+    }
 
-                // Request next piece
-                requestPieces(conn, fileManager, torrent, peerPieces, pendingPieces);
+    /**
+     * Retry connections that were throttled (no memory / disk queue full) and are idle now
+     */
+    public void resumeThrottled() {
+        for (Set<Session> sessions : activeSessions.values()) {
+            for (Session session : sessions) {
+                if (session.outstanding.isEmpty() && !session.fileManager.isComplete()) {
+                    requestPieces(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close every outgoing connection of a torrent (download stopped / queued)
+     */
+    public void closeTorrent(byte[] infoHash) {
+        Set<Session> sessions = activeSessions.get(Hash.toHex(infoHash));
+        if (sessions != null) {
+            sessions.forEach(session -> session.conn.close());
+        }
+    }
+
+    /**
+     * Addresses of the peers we dialed for a torrent
+     */
+    public Set<InetSocketAddress> getPeerAddresses(byte[] infoHash) {
+        Set<InetSocketAddress> peers = new HashSet<>();
+        Set<Session> sessions = activeSessions.get(Hash.toHex(infoHash));
+        if (sessions != null) {
+            sessions.forEach(session -> peers.add(session.conn.getRemoteSocketAddress()));
+        }
+        return peers;
+    }
+
+    /**
+     * Close the torrent's least useful connection to make room for another peer
+     * A snubbing peer goes first, otherwise the slowest since the previous call
+     * if it delivered under a quarter of the average. Connections younger than
+     * MIN_PEER_AGE_MS are left alone. Returns the peer's address, or null if
+     * every connection is worth keeping.
+     */
+    public InetSocketAddress dropWorstPeer(byte[] infoHash) {
+        Set<Session> sessions = activeSessions.get(Hash.toHex(infoHash));
+        if (sessions == null || sessions.isEmpty()) return null;
+
+        long now = System.currentTimeMillis();
+        Session worst = null;
+        long worstDelta = Long.MAX_VALUE;
+        long total = 0;
+        int counted = 0;
+        for (Session session : sessions) {
+            long received = session.bytesReceived;
+            long delta = received - session.bytesAtCheck;
+            session.bytesAtCheck = received;
+            if (now - session.connectedAt < MIN_PEER_AGE_MS) continue;
+            if (session.snubbed) {
+                worst = session;
+                worstDelta = -1;
+                continue;
+            }
+            total += delta;
+            counted++;
+            if (worstDelta >= 0 && delta < worstDelta) {
+                worst = session;
+                worstDelta = delta;
             }
-        } catch (IOException e) {
-            Logger.error("Error handling piece block: " + e.getMessage());
-            pendingPieces.remove(pieceIndex);
         }
+        if (worst == null) return null;
+        if (worstDelta >= 0 && (counted < 2 || worstDelta * 4 >= total / counted)) return null;
+
+        InetSocketAddress address = worst.conn.getRemoteSocketAddress();
+        worst.conn.close();
+        return address;
+    }
+
+    public int getConnectionCount(byte[] infoHash) {
+        Set<Session> sessions = activeSessions.get(Hash.toHex(infoHash));
+        return sessions != null ? sessions.size() : 0;
     }
 
     public void shutdown() {
+        timeoutTimer.shutdownNow();
         executor.shutdownNow();
-        for (Set<Connection> conns : activeConnections.values()) {
-            conns.forEach(Connection::close);
+        for (Set<Session> sessions : activeSessions.values()) {
+            sessions.forEach(session -> session.conn.close());
+        }
+    }
+
+    /**
+     * State of one outgoing connection
+     */
+    private class Session {
+        final Connection conn;
+        final byte[] infoHash;
+        final String infoHashHex;
+        final FileManager fileManager;
+        final TorrentFile torrent;
+        final PiecePicker picker;
+        final PartialPieces partials;                                   // shared by the torrent's connections
+        final Map<Long, TimerWheel.Timeout<BlockRequest>> outstanding = new ConcurrentHashMap<>(); // requested block -> deadline
+        final Set<Long> abandoned = ConcurrentHashMap.newKeySet(); // given-up requests the peer may still answer
+        volatile long lastBlockAt = System.currentTimeMillis();
+        volatile boolean snubbed;
+        volatile long bytesReceived;
+        long bytesAtCheck;             // bytesReceived at the last dropWorstPeer
+        final long connectedAt = System.currentTimeMillis();
+        volatile PieceBitmap peerPieces;
+        final Set<Integer> allowedFast = ConcurrentHashMap.newKeySet(); // pieces we may request while choked
+
+        Session(Connection conn, byte[] infoHash) {
+            this.conn = conn;
+            this.infoHash = infoHash;
+            this.infoHashHex = Hash.toHex(infoHash);
+            this.fileManager = peerNode.getFileManager(infoHash);
+            this.torrent = peerNode.getTorrent(infoHash);
+            this.picker = peerNode.getPiecePicker(infoHash);
+            this.partials = peerNode.getPartialPieces(infoHash);
+            this.peerPieces = new PieceBitmap(torrent.getNumPieces());
+        }
+    }
+
+    /**
+     * One outstanding block request, the item of the deadline wheel
+     */
+    private static class BlockRequest {
+        final Session session;
+        final int pieceIndex;
+        final int begin;
+
+        BlockRequest(Session session, int pieceIndex, int begin) {
+            this.session = session;
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+package org.example.peer;
+
+import org.example.util.Bencode;
+import org.example.util.CompactPeers;
+import org.example.util.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Peer Exchange (ut_pex, BEP 11)
+ * A connection that supports it gets the peers we are connected to for the
+ * same torrent right after its extended handshake, then once a minute a
+ * delta against what it was sent before: compact "added" and "dropped"
+ * lists (IPv4 and IPv6). Peers we learn
+ * this way go to the torrent's candidate pool, so a swarm fills up from a
+ * single contact without asking the DHT again.
+ */
+public class PeerExchange implements ExtensionHandler {
+    public static final String NAME = "ut_pex";
+    private static final long INTERVAL_MS = Long.getLong("bittorrent.pexIntervalMs", 60000);
+    private static final int MAX_PEERS_PER_MESSAGE = 50; // per list, as recommended by BEP 11
+
+    private final PeerNode peerNode;
+    private final Map<Connection, State> states = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final AtomicLong peersSent = new AtomicLong();
+    private final AtomicLong peersReceived = new AtomicLong();
+
+    public PeerExchange(PeerNode peerNode) {
+        this.peerNode = peerNode;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-exchange");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::sendUpdates, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public void onPeerSupports(Connection conn, byte[] infoHash, Map<String, Object> handshake) {
+        State state = new State(infoHash);
+        if (states.putIfAbsent(conn, state) != null) return;
+        // The first (full) list goes out right away, a new peer shouldn't wait a round
+        try {
+            timer.execute(() -> sendSafely(conn, state));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    @Override
+    public void onClose(Connection conn, byte[] infoHash) {
+        states.remove(conn);
+    }
+
+    private void sendUpdates() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Connection, State> e : states.entrySet()) {
+            // Just got its initial list, receivers drop messages closer than half an interval
+            if (now - e.getValue().lastSent < INTERVAL_MS / 2) continue;
+            sendSafely(e.getKey(), e.getValue());
+        }
+    }
+
+    private void sendSafely(Connection conn, State state) {
+        try {
+            sendUpdate(conn, state);
+        } catch (IOException e) {
+            Logger.debug("PEX to " + conn.getRemoteAddress() + " failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Logger.error("PEX update failed: " + e.getMessage());
+        }
+    }
+
+    private void sendUpdate(Connection conn, State state) throws IOException {
+        Set<InetSocketAddress> current = peerNode.getPeerAddresses(state.infoHash);
+        current.remove(listenAddressOf(conn)); // not the receiver itself
+
+        List<InetSocketAddress> added = new ArrayList<>();
+        for (InetSocketAddress peer : current) {
+            if (added.size() >= MAX_PEERS_PER_MESSAGE) break;
+            if (!state.sent.contains(peer)) added.add(peer);
+        }
+        List<InetSocketAddress> dropped = new ArrayList<>();
+        for (InetSocketAddress peer : state.sent) {
+            if (dropped.size() >= MAX_PEERS_PER_MESSAGE) break;
+            if (!current.contains(peer)) dropped.add(peer);
+        }
+        if (added.isEmpty() && dropped.isEmpty()) return;
+
+        Map<String, Object> message = new TreeMap<>();
+        message.put("added", CompactPeers.encode(added, false));
+        message.put("added.f", new byte[countFamily(added, false)]); // no flags known
+        message.put("added6", CompactPeers.encode(added, true));
+        message.put("added6.f", new byte[countFamily(added, true)]);
+        message.put("dropped", CompactPeers.encode(dropped, false));
+        message.put("dropped6", CompactPeers.encode(dropped, true));
+
+        if (peerNode.getExtensions().send(conn, NAME, Bencode.encode(message))) {
+            state.sent.addAll(added);
+            state.sent.removeAll(dropped);
+            state.lastSent = System.currentTimeMillis();
+            peersSent.addAndGet(added.size());
+        }
+    }
+
+    private static int countFamily(List<InetSocketAddress> peers, boolean ipv6) {
+        int count = 0;
+        for (InetSocketAddress peer : peers) {
+            if ((peer.getAddress().getAddress().length == 16) == ipv6) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Address other peers can connect to, null if the peer didn't tell its port
+     */
+    static InetSocketAddress listenAddressOf(Connection conn) {
+        if (conn.isOutgoing()) return conn.getRemoteSocketAddress();
+        int port = conn.getPeerListenPort();
+        return port > 0 ? new InetSocketAddress(conn.getInetAddress(), port) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onMessage(Connection conn, byte[] infoHash, byte[] payload) {
+        State state = states.get(conn);
+        if (state == null) return;
+
+        // Peers must not send more than once a minute, drop floods
+        long now = System.currentTimeMillis();
+        if (now - state.lastReceived < INTERVAL_MS / 2) {
+            Logger.debug("Ignoring early PEX message from " + conn.getRemoteAddress());
+            return;
+        }
+        state.lastReceived = now;
+
+        Map<String, Object> message;
+        try {
+            Object decoded = Bencode.decode(payload);
+            if (!(decoded instanceof Map)) return;
+            message = (Map<String, Object>)decoded;
+        } catch (IOException | RuntimeException e) {
+            Logger.debug("Bad PEX message from " + conn.getRemoteAddress() + ": " + e.getMessage());
+            return;
+        }
+
+        List<InetSocketAddress> added = new ArrayList<>();
+        if (message.get("added") instanceof byte[]) {
+            added.addAll(CompactPeers.decode((byte[])message.get("added"), false));
+        }
+        if (message.get("added6") instanceof byte[]) {
+            added.addAll(CompactPeers.decode((byte[])message.get("added6"), true));
+        }
+
+        int accepted = 0;
+        for (InetSocketAddress peer : added) {
+            if (accepted >= MAX_PEERS_PER_MESSAGE) break;
+            if (peer.getAddress().isAnyLocalAddress() || peer.getAddress().isMulticastAddress()) continue;
+            peerNode.addPeerCandidate(infoHash, peer, PeerCandidates.Source.PEX);
+            accepted++;
+        }
+        peersReceived.addAndGet(accepted);
+        if (accepted > 0) {
+            Logger.debug("PEX: " + accepted + " peers from " + conn.getRemoteAddress());
+        }
+    }
+
+    public String getStats() {
+        return String.format("%d connections, %d peers sent, %d peers received",
+                states.size(), peersSent.get(), peersReceived.get());
+    }
+
+    /**
+     * PEX state of one connection
+     */
+    private static class State {
+        final byte[] infoHash;
+        final Set<InetSocketAddress> sent = new HashSet<>(); // only touched by the timer thread
+        long lastSent;                                     // timer thread too
+        volatile long lastReceived;
+
+        State(byte[] infoHash) {
+            this.infoHash = infoHash;
+        }
+    }
+}
@@ -3,36 +3,104 @@ package org.example.peer;
 import org.example.core.*;
 import org.example.core.protocol.Handshake;
 import org.example.dht.LocalDHT;
+import org.example.dht.StateSlot;
+import org.example.dht.SwarmEstimate;
+import org.example.tracker.TrackerClient;
 import org.example.util.*;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main peer node that coordinates everything
  */
 public class PeerNode {
+    private static final String STATE_DIR = System.getProperty("bittorrent.stateDir", "."); // node-wide state (DHT snapshot)
+
     private byte[] peerId;                    // Unique ID for this peer (like "-LT0001-XXXXXX...")
     private LocalDHT dht;                     // Custom DHT for peer discovery system
+    private StateSlot dhtState;               // DHT snapshot claimed by this node, null = none
     private PeerServer server;                // Listens for incoming connections
     private PeerClient client;                // Connects to other peers
     private Map<String, TorrentFile> torrents;           // Loaded .torrent files (by info_hash) [torrents the peer knows about]
     private Map<String, FileManager> fileManagers;       // Handles reading/writing pieces
+    private Map<String, PiecePicker> piecePickers;       // Piece selection per torrent
+    private Map<String, PartialPieces> partialPieces;    // Unfinished pieces per torrent, shared by connections
     private Map<String, Set<Connection>> connections;    // Active peer connections per torrent
+    private ExecutorService hashPool;                    // Verifies pieces off the connection threads
+    private ScheduledExecutorService ioScheduler;        // Drives write-behind flushes and fsync batches
+    private FileHandleCache fileHandles;                 // Open files shared by all torrents (LRU, capped)
+    private ResourceScheduler scheduler;                 // Connections, upload slots, memory and disk queue across torrents
+    private ExecutorService downloadStarter;             // Starts queued downloads off the scheduler thread
+    private ExtensionRegistry extensions;                // Extension Protocol handlers (BEP 10)
+    private PeerExchange peerExchange;                   // ut_pex, learns peers from connected peers
+    private ConnectionManager connectionManager;         // Keeps downloads at their target peer count
+    private TrackerClient trackerClient;                 // UDP trackers (BEP 15), used alongside the DHT
+    private Map<String, SwarmEstimate> trackerEstimates; // Swarm sizes from tracker announces
     private int port;
 
     public PeerNode(int port) throws IOException {
         this.peerId = generatePeerId();  // Creates ID like -LT0001-abcd1234...
         this.port = port;
-        this.dht = new LocalDHT();       // Starts local peer discovery
+        this.dhtState = StateSlot.claim(new File(STATE_DIR)); // not tied to the TCP port, which may change between runs
+        this.dht = new LocalDHT(dhtState != null ? dhtState.getStateFile() : null); // Starts local peer discovery, warm if a snapshot exists
+        this.extensions = new ExtensionRegistry(port);
+        this.peerExchange = new PeerExchange(this);
+        this.extensions.register(peerExchange);
         this.server = new PeerServer(port, this);  // Accepts incoming connections
         this.client = new PeerClient(this);        // Makes outgoing connections
+        this.connectionManager = new ConnectionManager(this, client);
+        this.dht.setAnnounceListener((infoHash, peer) ->
+                connectionManager.addCandidate(infoHash, peer, PeerCandidates.Source.ANNOUNCE));
+        this.trackerEstimates = new ConcurrentHashMap<>();
+        this.trackerClient = new TrackerClient(peerId, port, this::onTrackerAnnounce);
+        for (String tracker : System.getProperty("bittorrent.trackers", "").split(",")) {
+            if (!tracker.isBlank()) trackerClient.addTracker(TrackerClient.parseAddress(tracker));
+        }
         this.torrents = new ConcurrentHashMap<>();
         this.fileManagers = new ConcurrentHashMap<>();
+        this.piecePickers = new ConcurrentHashMap<>();
+        this.partialPieces = new ConcurrentHashMap<>();
         this.connections = new ConcurrentHashMap<>();
+        this.hashPool = createHashPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        this.ioScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "disk-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.fileHandles = new FileHandleCache(
+                Integer.getInteger("bittorrent.maxOpenFiles", FileHandleCache.DEFAULT_MAX_OPEN));
+        this.downloadStarter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "download-starter");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = new ResourceScheduler(ResourceScheduler.Limits.fromSystemProperties());
+        this.scheduler.setListener(new ResourceScheduler.Listener() {
+            @Override
+            public void onStart(String infoHashHex) {
+                downloadStarter.submit(() -> startDownload(infoHashHex));
+            }
+
+            @Override
+            public void onStop(String infoHashHex) {
+                TorrentFile torrent = torrents.get(infoHashHex);
+                if (torrent != null) client.closeTorrent(torrent.getInfoHash());
+            }
+
+            @Override
+            public void onRebalance() {
+                client.resumeThrottled();
+                server.unchokeWaiting();
+            }
+        });
 
         Logger.info("Peer node created with ID: " + Hash.toHex(peerId));
     }
@@ -52,6 +120,16 @@ public class PeerNode {
         return id;
     }
 
+    private ExecutorService createHashPool(int threads) {
+        int size = Integer.getInteger("bittorrent.hashThreads", threads);
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(size, r -> {
+            Thread t = new Thread(r, "piece-hasher-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
     public byte[] getPeerId() {
         return peerId;
     }
@@ -59,25 +137,33 @@ public class PeerNode {
     public void start() {
         dht.start();
         server.start();
+        scheduler.start();
+        peerExchange.start();
+        connectionManager.start();
+        trackerClient.start();
         Logger.info("Peer node started on port " + port);
     }
 
     /**
-     * Share a file
+     * Share a file or a directory (multi-file torrent)
      */
     public void shareFile(File file, File downloadDir) throws IOException {
         // Create torrent
-        TorrentFile torrent = TorrentFile.createFromFile(file);
+        TorrentFile torrent = TorrentFile.create(file); // single file or directory
         String infoHashHex = Hash.toHex(torrent.getInfoHash());
 
         torrents.put(infoHashHex, torrent);
 
         // Create file manager (file already exists)
-        FileManager fileManager = new FileManager(torrent, downloadDir);
+        FileManager fileManager = new FileManager(torrent, downloadDir, hashPool, ioScheduler, fileHandles);
         fileManagers.put(infoHashHex, fileManager);
+        piecePickers.put(infoHashHex, new PiecePicker(torrent.getNumPieces(), fileManager.getPieceBitmap()));
+        partialPieces.put(infoHashHex, new PartialPieces(torrent, fileManager, infoHashHex));
+        scheduler.register(infoHashHex, 1, true);
 
-        // Announce to DHT
-        dht.announceTorrent(torrent.getInfoHash(), port);
+        // Announce to DHT and trackers
+        dht.announceTorrent(torrent.getInfoHash(), port, true);
+        trackerClient.track(torrent.getInfoHash(), () -> bytesLeft(infoHashHex));
 
         // Save .torrent file
         File torrentFile = new File(downloadDir, file.getName() + ".torrent");
@@ -97,37 +183,118 @@ public class PeerNode {
         torrents.put(infoHashHex, torrent);
 
         // Create file manager
-        FileManager fileManager = new FileManager(torrent, downloadDir);
+        FileManager fileManager = new FileManager(torrent, downloadDir, hashPool, ioScheduler, fileHandles);
         fileManagers.put(infoHashHex, fileManager);
+        piecePickers.put(infoHashHex, new PiecePicker(torrent.getNumPieces(), fileManager.getPieceBitmap()));
+        PartialPieces partials = new PartialPieces(torrent, fileManager, infoHashHex);
+        partials.restore(piecePickers.get(infoHashHex));
+        partialPieces.put(infoHashHex, partials);
 
         if (fileManager.isComplete()) {
             Logger.info("File already complete!");
+            scheduler.register(infoHashHex, 1, true);
             return;
         }
 
-        // Find peers via DHT
-        dht.findPeers(torrent.getInfoHash());
-
-        // Wait a bit for DHT responses
-        try {
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        if (!scheduler.register(infoHashHex, 1, false)) {
+            // Started by the scheduler once an active download finishes or stalls
+            Logger.info("Download of " + torrent.getName() + " queued");
+            return;
         }
 
-        // Connect to peers
-        Set<InetSocketAddress> peers = dht.getPeers(torrent.getInfoHash());
-        Logger.info("Found " + peers.size() + " peers");
+        startDownload(infoHashHex);
+    }
 
-        for (InetSocketAddress peer : peers) {
-            client.connectToPeer(peer, torrent.getInfoHash());
-        }
+    /**
+     * Hand an active download to the connection manager, which finds and connects peers
+     */
+    private void startDownload(String infoHashHex) {
+        TorrentFile torrent = torrents.get(infoHashHex);
+        if (torrent == null) return;
+
+        connectionManager.track(torrent.getInfoHash());
 
         // Also announce ourselves
-        dht.announceTorrent(torrent.getInfoHash(), port);
+        dht.announceTorrent(torrent.getInfoHash(), port, fileManagers.get(infoHashHex).isComplete());
+        trackerClient.track(torrent.getInfoHash(), () -> bytesLeft(infoHashHex));
         dht.registerTorrentName(torrent.getInfoHash(), torrent.getName(), torrent.getTotalLength());
     }
 
+    /**
+     * Look up peers via the DHT, each one goes to the candidate pool as soon as it is found
+     */
+    public void discoverPeers(byte[] infoHash) {
+        TorrentFile torrent = torrents.get(Hash.toHex(infoHash));
+        dht.findPeers(infoHash, peer -> connectionManager.addCandidate(infoHash, peer, PeerCandidates.Source.DHT))
+                .thenAccept(peers -> Logger.info("Found " + peers.size() + " peers" +
+                        (torrent != null ? " for " + torrent.getName() : "")));
+        trackerClient.reannounce(infoHash);
+    }
+
+    /**
+     * Use a UDP tracker next to the DHT, for peers multicast bootstrap can't reach
+     */
+    public void addTracker(InetSocketAddress tracker) {
+        trackerClient.addTracker(tracker);
+    }
+
+    private void onTrackerAnnounce(byte[] infoHash, List<InetSocketAddress> peers, int seeders, int leechers) {
+        trackerEstimates.put(Hash.toHex(infoHash), new SwarmEstimate(seeders, leechers, System.currentTimeMillis()));
+        for (InetSocketAddress peer : peers) {
+            addPeerCandidate(infoHash, peer, PeerCandidates.Source.TRACKER);
+        }
+        Logger.debug("Tracker returned " + peers.size() + " peers for " + Hash.toHex(infoHash));
+    }
+
+    /**
+     * Bytes still missing, what trackers are told as "left"; never 0 before the download completes
+     */
+    private long bytesLeft(String infoHashHex) {
+        TorrentFile torrent = torrents.get(infoHashHex);
+        FileManager fileManager = fileManagers.get(infoHashHex);
+        if (torrent == null || fileManager == null || fileManager.isComplete()) return 0;
+        long have = (long)fileManager.getPieceBitmap().count() * torrent.getPieceLength();
+        return Math.max(1, torrent.getTotalLength() - have);
+    }
+
+    /**
+     * Called once every piece of a download is verified
+     */
+    public void onDownloadComplete(byte[] infoHash) {
+        scheduler.markComplete(Hash.toHex(infoHash));
+        dht.announceTorrent(infoHash, port, true); // scrapes count us as a seed from now on
+        trackerClient.completed(infoHash);
+    }
+
+    /**
+     * Latest estimated swarm size, from a DHT scrape or a tracker announce, null if not known yet
+     */
+    public SwarmEstimate getSwarmEstimate(byte[] infoHash) {
+        SwarmEstimate fromDht = dht.getSwarmEstimate(infoHash);
+        SwarmEstimate fromTracker = trackerEstimates.get(Hash.toHex(infoHash));
+        if (fromDht == null) return fromTracker;
+        if (fromTracker == null) return fromDht;
+        return fromTracker.getTime() >= fromDht.getTime() ? fromTracker : fromDht;
+    }
+
+    /**
+     * Relative share of bandwidth, memory and slots for a torrent (default 1)
+     */
+    public void setPriority(byte[] infoHash, int weight) {
+        scheduler.setWeight(Hash.toHex(infoHash), weight);
+    }
+
+    /**
+     * True if one of our downloads is being snubbed by this host
+     */
+    public boolean isSnubbing(InetAddress address) {
+        return client.isSnubbing(address);
+    }
+
+    public ResourceScheduler getScheduler() {
+        return scheduler;
+    }
+
     public boolean hasInfoHash(byte[] infoHash) {
         return torrents.containsKey(Hash.toHex(infoHash));
     }
@@ -140,8 +307,62 @@ public class PeerNode {
         return fileManagers.get(Hash.toHex(infoHash));
     }
 
+    public FileHandleCache getFileHandleCache() {
+        return fileHandles;
+    }
+
+    public PiecePicker getPiecePicker(byte[] infoHash) {
+        return piecePickers.get(Hash.toHex(infoHash));
+    }
+
+    public PartialPieces getPartialPieces(byte[] infoHash) {
+        return partialPieces.get(Hash.toHex(infoHash));
+    }
+
+    public Collection<PartialPieces> getAllPartialPieces() {
+        return partialPieces.values();
+    }
+
+    /**
+     * Switch a torrent between rarest-first and streaming (sequential window) download
+     */
+    public void setStreaming(byte[] infoHash, boolean streaming, int windowPieces) {
+        PiecePicker picker = getPiecePicker(infoHash);
+        if (picker != null) {
+            picker.setStreaming(streaming, windowPieces);
+            Logger.info((streaming ? "Streaming" : "Rarest-first") + " mode for " + Hash.toHex(infoHash));
+        }
+    }
+
+    /**
+     * Move the playback cursor of a streaming torrent to a byte offset
+     */
+    public void setPlaybackPosition(byte[] infoHash, long byteOffset) {
+        PiecePicker picker = getPiecePicker(infoHash);
+        TorrentFile torrent = getTorrent(infoHash);
+        if (picker != null && torrent != null) {
+            picker.setCursor((int)(byteOffset / torrent.getPieceLength()));
+        }
+    }
+
+    /**
+     * Open a blocking channel over a torrent's data; reading it moves the playback cursor
+     */
+    public PieceStreamChannel openStream(byte[] infoHash) {
+        FileManager fileManager = getFileManager(infoHash);
+        PiecePicker picker = getPiecePicker(infoHash);
+        if (fileManager == null || picker == null) {
+            throw new IllegalArgumentException("Unknown torrent: " + Hash.toHex(infoHash));
+        }
+        return fileManager.openStream(picker::setCursor);
+    }
+
     public Handshake createHandshake(byte[] infoHash) {
-        return new Handshake(infoHash, peerId);
+        return new Handshake(infoHash, peerId).enableFastExtension().enableExtensionProtocol();
+    }
+
+    public ExtensionRegistry getExtensions() {
+        return extensions;
     }
 
     public void addConnection(byte[] infoHash, Connection conn) {
@@ -149,10 +370,64 @@ public class PeerNode {
                 .add(conn);
     }
 
+    public void removeConnection(byte[] infoHash, Connection conn) {
+        Set<Connection> conns = connections.get(Hash.toHex(infoHash));
+        if (conns != null) conns.remove(conn);
+    }
+
+    /**
+     * Listen addresses of the peers connected for a torrent, in either direction
+     * Incoming peers are included once their extended handshake told us their port.
+     */
+    public Set<InetSocketAddress> getPeerAddresses(byte[] infoHash) {
+        Set<InetSocketAddress> peers = client.getPeerAddresses(infoHash);
+        for (Connection conn : connections.getOrDefault(Hash.toHex(infoHash), Collections.emptySet())) {
+            InetSocketAddress address = PeerExchange.listenAddressOf(conn);
+            if (address != null) peers.add(address);
+        }
+        return peers;
+    }
+
+    /**
+     * A peer learned from another peer or a tracker, goes to the torrent's candidate pool
+     */
+    public void addPeerCandidate(byte[] infoHash, InetSocketAddress peer, PeerCandidates.Source source) {
+        if (isOwnAddress(peer)) return;
+        connectionManager.addCandidate(infoHash, peer, source);
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    private boolean isOwnAddress(InetSocketAddress peer) {
+        if (peer.getPort() != port) return false;
+        InetAddress address = peer.getAddress();
+        try {
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
     public void stop() {
+        scheduler.stop();
+        peerExchange.stop();
+        connectionManager.stop();
+        downloadStarter.shutdownNow();
+        trackerClient.stop();
         dht.stop();
+        if (dhtState != null) dhtState.close(); // after the final snapshot
         server.stop();
         client.shutdown();
+        hashPool.shutdownNow();
+
+        // Save unfinished pieces, then flush write-behind queues before the scheduler goes away
+        partialPieces.values().forEach(PartialPieces::persist);
+        fileManagers.values().forEach(FileManager::close);
+        ioScheduler.shutdown();
+        fileHandles.clear();
 
         for (Set<Connection> conns : connections.values()) {
             conns.forEach(Connection::close);
@@ -164,7 +439,30 @@ public class PeerNode {
     public void showNetworkStatus() {
         System.out.println("\n=== LAN BITTORRENT NETWORK STATUS ===");
         System.out.println("Known nodes: " + dht.getKnownNodesCount());
+        System.out.println("DHT messages: " + dht.getStats());
         System.out.println("Active torrents: " + dht.getActiveTorrentCount());
+        System.out.println("File handles: " + fileHandles.getStats());
+        System.out.println("Piece memory: " + scheduler.getMemoryBudget().getStats());
+        System.out.println("Peer exchange: " + peerExchange.getStats());
+        if (trackerClient.hasTrackers()) System.out.println("Trackers: " + trackerClient.getStats());
+        for (String hex : connectionManager.getTracked()) {
+            byte[] infoHash = Hash.fromHex(hex);
+            TorrentFile torrent = torrents.get(hex);
+            System.out.println("Peers of " + (torrent != null ? torrent.getName() : hex) + ": " +
+                    client.getConnectionCount(infoHash) + " connected, " + connectionManager.describe(infoHash));
+        }
+        for (Map.Entry<String, TorrentFile> e : torrents.entrySet()) {
+            SwarmEstimate estimate = getSwarmEstimate(e.getValue().getInfoHash());
+            if (estimate == null) continue;
+            System.out.println("Swarm of " + e.getValue().getName() + ": " + estimate + " (updated " +
+                    (System.currentTimeMillis() - estimate.getTime()) / 1000 + "s ago)");
+        }
+        System.out.printf("Blocks: %dK wasted, %d timed out, %d cancels sent, %d received (%dK upload saved)%n",
+                client.getWastedBytes() / 1024, client.getRequestTimeouts(), client.getCancelsSent(),
+                server.getCancelsReceived(), server.getCancelledBytes() / 1024);
+        for (String line : scheduler.describe()) {
+            System.out.println("  " + line);
+        }
         System.out.println();
 
         if (dht.getTorrentPeersMap().isEmpty()) {
@@ -181,6 +479,8 @@ public class PeerNode {
             System.out.println("File: " + name);
             System.out.println("  Size: " + size + " bytes");
             System.out.println("  Info hash: " + hash.substring(0, 16) + "...");
+            SwarmEstimate estimate = getSwarmEstimate(Hash.fromHex(hash));
+            if (estimate != null) System.out.println("  Swarm: " + estimate);
             System.out.println("  Shared by:");
             for (InetSocketAddress p : e.getValue()) {
                 System.out.println("    • " + p.getAddress().getHostAddress() + ":" + p.getPort());
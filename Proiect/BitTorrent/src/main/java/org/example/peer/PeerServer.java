@@ -2,26 +2,46 @@ package org.example.peer;
 
 import org.example.core.*;
 import org.example.core.protocol.*;
+import org.example.util.Hash;
 import org.example.util.Logger;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Accepts incoming peer connections
  */
 public class PeerServer {
+    // Requests queued per peer beyond this are dropped
+    private static final int MAX_QUEUED_REQUESTS = Integer.getInteger("bittorrent.maxQueuedRequests", 256);
+    // Pieces a Fast Extension peer may download before it is unchoked
+    private static final int ALLOWED_FAST_COUNT = Integer.getInteger("bittorrent.allowedFastCount", AllowedFast.DEFAULT_SET_SIZE);
+
     private ServerSocket serverSocket;
     private PeerNode peerNode;
     private ExecutorService executor;
     private volatile boolean running;
+    private Map<Connection, String> waitingForSlot;  // interested peers still choked -> info_hash hex
+    private Map<Connection, String> unchoked;        // peers holding an upload slot -> info_hash hex
+    private Map<Connection, UploadQueue> uploads;     // pending requests per peer
+
+    // Metrics
+    private final AtomicLong cancelsReceived = new AtomicLong();
+    private final AtomicLong cancelledBytes = new AtomicLong(); // upload saved by cancels
 
     public PeerServer(int port, PeerNode peerNode) throws IOException {
         this.serverSocket = new ServerSocket(port);
         this.peerNode = peerNode;
         this.executor = Executors.newCachedThreadPool();
+        this.waitingForSlot = new ConcurrentHashMap<>();
+        this.unchoked = new ConcurrentHashMap<>();
+        this.uploads = new ConcurrentHashMap<>();
         Logger.info("Peer server listening on port " + port);
     }
 
@@ -45,8 +65,10 @@ public class PeerServer {
     }
 
     private void handlePeer(Socket socket) {
+        Connection conn = null;
+        String infoHashHex = null;
         try {
-            Connection conn = new Connection(socket);
+            conn = new Connection(socket);
 
             // Receive handshake
             Handshake handshake = conn.receiveHandshake();
@@ -58,31 +80,136 @@ public class PeerServer {
                 return;
             }
 
-            // Send our handshake
+            // Respect the node-wide connection budget
+            if (!peerNode.getScheduler().tryAcquireConnection(Hash.toHex(handshake.getInfoHash()))) {
+                Logger.debug("Connection limit reached, rejecting " + socket.getRemoteSocketAddress());
+                conn.close();
+                return;
+            }
+            infoHashHex = Hash.toHex(handshake.getInfoHash());
+
+            // Send our handshake (we always offer the Fast Extension)
             conn.sendHandshake(peerNode.createHandshake(handshake.getInfoHash()));
+            conn.setFastExtension(handshake.supportsFastExtension());
+            conn.setExtensionProtocol(handshake.supportsExtensionProtocol());
 
-            // Send bitfield
+            // Send bitfield (or Have All / Have None)
             FileManager fileManager = peerNode.getFileManager(handshake.getInfoHash());
-            Bitfield bitfield = new Bitfield(
-                    fileManager.getBitfield(),
-                    peerNode.getTorrent(handshake.getInfoHash()).getNumPieces()
-            );
-            conn.sendBitfield(bitfield);
+            TorrentFile torrent = peerNode.getTorrent(handshake.getInfoHash());
+            Bitfield bitfield = new Bitfield(fileManager.getBitfield(), torrent.getNumPieces());
+            conn.sendPieceState(bitfield);
 
-            // Unchoke immediately (optimistic unchoking)
-            conn.sendUnchoke();
+            // Let a newcomer fetch a few pieces before it gets an upload slot
+            Set<Integer> allowedFast = new HashSet<>();
+            if (conn.isFastExtension()) {
+                for (int index : AllowedFast.generate(ALLOWED_FAST_COUNT, torrent.getNumPieces(),
+                        torrent.getInfoHash(), socket.getInetAddress())) {
+                    if (fileManager.hasPiece(index)) {
+                        allowedFast.add(index);
+                        conn.sendAllowedFast(new AllowedFast(index));
+                    }
+                }
+            }
+
+            // Extended handshake follows the bitfield
+            peerNode.getExtensions().sendHandshake(conn, handshake.getInfoHash());
+
+            // Unchoke if an upload slot is free, otherwise wait for the next rebalance
+            tryUnchoke(conn, infoHashHex);
 
             // Handle messages from this peer
             peerNode.addConnection(handshake.getInfoHash(), conn);
-            handlePeerMessages(conn, handshake.getInfoHash());
+            handlePeerMessages(conn, handshake.getInfoHash(), allowedFast);
 
         } catch (IOException e) {
             Logger.error("Error handling peer: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A malformed handshake is a protocol error like any other
+            Logger.warn("Protocol error from " + socket.getRemoteSocketAddress() + ", closing: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            if (infoHashHex != null) {
+                waitingForSlot.remove(conn);
+                if (unchoked.remove(conn) != null) {
+                    peerNode.getScheduler().releaseUploadSlot(infoHashHex);
+                }
+                peerNode.getScheduler().releaseConnection(infoHashHex);
+            }
+        }
+    }
+
+    private void tryUnchoke(Connection conn, String infoHashHex) throws IOException {
+        ResourceScheduler scheduler = peerNode.getScheduler();
+        if (scheduler.tryAcquireUploadSlot(infoHashHex)) {
+            unchoked.put(conn, infoHashHex);
+            conn.sendUnchoke();
+        } else {
+            waitingForSlot.put(conn, infoHashHex);
+            scheduler.recordUploadDemand(infoHashHex);
         }
     }
 
-    private void handlePeerMessages(Connection conn, byte[] infoHash) {
+    /**
+     * Give freed or re-balanced upload slots to peers that are still choked
+     * Peers that snub our own downloads are demoted: they lose their slot
+     * while others wait, and are unchoked last.
+     */
+    public void unchokeWaiting() {
+        ResourceScheduler scheduler = peerNode.getScheduler();
+        if (!waitingForSlot.isEmpty()) {
+            chokeSnubbing();
+        }
+
+        List<Map.Entry<Connection, String>> waiting = new ArrayList<>(waitingForSlot.entrySet());
+        waiting.sort(Comparator.comparing(e -> peerNode.isSnubbing(e.getKey().getInetAddress())));
+        for (Map.Entry<Connection, String> e : waiting) {
+            String infoHashHex = e.getValue();
+            if (!scheduler.tryAcquireUploadSlot(infoHashHex)) {
+                scheduler.recordUploadDemand(infoHashHex);
+                continue;
+            }
+            if (waitingForSlot.remove(e.getKey()) == null) {
+                // Peer left meanwhile
+                scheduler.releaseUploadSlot(infoHashHex);
+                continue;
+            }
+            unchoked.put(e.getKey(), infoHashHex);
+            try {
+                e.getKey().sendUnchoke();
+            } catch (IOException ex) {
+                e.getKey().close(); // the peer thread releases the slot
+            }
+        }
+    }
+
+    private void chokeSnubbing() {
+        for (Map.Entry<Connection, String> e : unchoked.entrySet()) {
+            Connection conn = e.getKey();
+            if (!peerNode.isSnubbing(conn.getInetAddress()) || unchoked.remove(conn) == null) continue;
+
+            peerNode.getScheduler().releaseUploadSlot(e.getValue());
+            waitingForSlot.put(conn, e.getValue());
+            UploadQueue queue = uploads.get(conn);
+            if (queue != null) queue.onChoke();
+            try {
+                conn.sendChoke();
+                Logger.debug("Choked snubbing peer " + conn.getRemoteAddress());
+            } catch (IOException ex) {
+                conn.close(); // the peer thread cleans up
+            }
+        }
+    }
+
+    private void handlePeerMessages(Connection conn, byte[] infoHash, Set<Integer> allowedFast) {
         FileManager fileManager = peerNode.getFileManager(infoHash);
+        TorrentFile torrent = peerNode.getTorrent(infoHash);
+        String infoHashHex = Hash.toHex(infoHash);
+        UploadQueue queue = new UploadQueue(conn, fileManager, infoHashHex, allowedFast);
+        uploads.put(conn, queue);
 
         try {
             while (true) {
@@ -95,23 +222,65 @@ public class PeerServer {
 
                     case Request.MESSAGE_ID:
                         Request request = Request.parse(msg.payload);
-                        handleRequest(conn, fileManager, request);
+                        if (!isValid(request, torrent)) {
+                            throw new ProtocolException("Invalid request for piece " + request.getPieceIndex() +
+                                    " begin " + request.getBegin() + " length " + request.getLength());
+                        }
+                        queue.add(request);
+                        break;
+
+                    case Cancel.MESSAGE_ID:
+                        Cancel cancel = Cancel.parse(msg.payload);
+                        cancelsReceived.incrementAndGet();
+                        if (queue.cancel(cancel.getPieceIndex(), cancel.getBegin())) {
+                            cancelledBytes.addAndGet(cancel.getLength());
+                            // With the Fast Extension every request gets a piece or a reject
+                            queue.reject(new Request(cancel.getPieceIndex(), cancel.getBegin(), cancel.getLength()));
+                        }
+                        break;
+
+                    case Extended.MESSAGE_ID:
+                        peerNode.getExtensions().onMessage(conn, infoHash, msg.payload);
                         break;
 
                 }
             }
         } catch (IOException e) {
             Logger.info("Peer disconnected: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A malformed payload (short Request or Cancel, bad index) is a protocol error
+            Logger.warn("Protocol error from " + conn.getRemoteAddress() + ", closing: " + e);
+        } finally {
             conn.close();
+            queue.clear();
+            uploads.remove(conn);
+            peerNode.removeConnection(infoHash, conn);
+            peerNode.getExtensions().onClose(conn, infoHash);
         }
     }
 
-    private void handleRequest(Connection conn, FileManager fileManager, Request request) {
+    /**
+     * A block of at most 16 KB inside an existing piece; anything else is a protocol violation
+     */
+    private static boolean isValid(Request request, TorrentFile torrent) {
+        int index = request.getPieceIndex();
+        if (index < 0 || index >= torrent.getNumPieces()) return false;
+        int pieceSize = torrent.getPieceSize(index);
+        int begin = request.getBegin();
+        int length = request.getLength();
+        return begin >= 0 && begin < pieceSize
+                && length > 0 && length <= Request.BLOCK_SIZE && length <= pieceSize - begin;
+    }
+
+    /**
+     * Read and send one requested block, false if the connection failed
+     */
+    private boolean handleRequest(Connection conn, FileManager fileManager, String infoHashHex, Request request) {
         try {
             byte[] pieceData = fileManager.readPiece(request.getPieceIndex());
             if (pieceData == null) {
                 Logger.warn("Don't have piece " + request.getPieceIndex());
-                return;
+                return true;
             }
 
             // Extract requested block
@@ -121,9 +290,12 @@ public class PeerServer {
 
             Piece piece = new Piece(request.getPieceIndex(), request.getBegin(), block);
             conn.sendPiece(piece);
+            peerNode.getScheduler().recordUploaded(infoHashHex, block.length);
+            return true;
 
         } catch (IOException e) {
             Logger.error("Error sending piece: " + e.getMessage());
+            return false;
         }
     }
 
@@ -141,4 +313,130 @@ public class PeerServer {
     public int getPort() {
         return serverSocket.getLocalPort();
     }
+
+    public long getCancelsReceived() { return cancelsReceived.get(); }
+    public long getCancelledBytes() { return cancelledBytes.get(); }
+
+    /**
+     * Requests of one peer waiting to be served, in arrival order
+     * The connection thread only queues; one uploader task at a time drains
+     * the queue, so a Cancel can still remove a request before its block is
+     * read from disk. Requests that won't be served are dropped, or
+     * explicitly rejected when the peer uses the Fast Extension.
+     */
+    private class UploadQueue implements Runnable {
+        private final Connection conn;
+        private final FileManager fileManager;
+        private final String infoHashHex;
+        private final Set<Integer> allowedFast; // may be requested while choked
+        private final LinkedHashMap<Long, Request> pending = new LinkedHashMap<>(); // guarded by this
+        private boolean draining;                                                 // guarded by this
+
+        UploadQueue(Connection conn, FileManager fileManager, String infoHashHex, Set<Integer> allowedFast) {
+            this.conn = conn;
+            this.fileManager = fileManager;
+            this.infoHashHex = infoHashHex;
+            this.allowedFast = allowedFast;
+        }
+
+        void add(Request request) {
+            if (!queue(request)) reject(request);
+        }
+
+        /**
+         * Queue a request for the uploader, false if it won't be served
+         */
+        private synchronized boolean queue(Request request) {
+            if (conn.isChoked() && !allowedFast.contains(request.getPieceIndex())) {
+                return false; // no slot
+            }
+            if (!fileManager.hasPiece(request.getPieceIndex())) {
+                return false;
+            }
+            if (pending.size() >= MAX_QUEUED_REQUESTS) {
+                Logger.debug("Request queue full for " + conn.getRemoteAddress());
+                return false;
+            }
+            pending.put(key(request.getPieceIndex(), request.getBegin()), request);
+            if (!draining) {
+                draining = true;
+                executor.submit(this);
+            }
+            return true;
+        }
+
+        synchronized boolean cancel(int pieceIndex, int begin) {
+            return pending.remove(key(pieceIndex, begin)) != null;
+        }
+
+        synchronized void clear() {
+            pending.clear();
+        }
+
+        /**
+         * We choked the peer: drop its requests, except for allowed fast pieces
+         */
+        void onChoke() {
+            List<Request> rejected = new ArrayList<>();
+            synchronized (this) {
+                Iterator<Request> it = pending.values().iterator();
+                while (it.hasNext()) {
+                    Request request = it.next();
+                    if (!allowedFast.contains(request.getPieceIndex())) {
+                        it.remove();
+                        rejected.add(request);
+                    }
+                }
+            }
+            rejected.forEach(this::reject);
+        }
+
+        /**
+         * Tell a Fast Extension peer a request won't be served (others time out)
+         * Never called holding the queue's lock: the write blocks while the
+         * peer's receive window is full, and must not stall the uploader or the choker.
+         */
+        void reject(Request request) {
+            if (!conn.isFastExtension()) return;
+            try {
+                conn.sendReject(new RejectRequest(request.getPieceIndex(), request.getBegin(), request.getLength()));
+            } catch (IOException e) {
+                // Connection is going away
+            }
+        }
+
+        private synchronized Request next() {
+            Iterator<Request> it = pending.values().iterator();
+            if (!it.hasNext()) {
+                draining = false;
+                return null;
+            }
+            Request request = it.next();
+            it.remove();
+            return request;
+        }
+
+        @Override
+        public void run() {
+            Request request;
+            while ((request = next()) != null) {
+                boolean sent;
+                try {
+                    sent = handleRequest(conn, fileManager, infoHashHex, request);
+                } catch (RuntimeException e) {
+                    // Keep draining: an exception escaping here would leave draining set for good
+                    Logger.error("Upload of piece " + request.getPieceIndex() + " to " +
+                            conn.getRemoteAddress() + " failed: " + e);
+                    sent = false;
+                }
+                if (!sent) {
+                    clear(); // connection is gone (or broken), drop the rest
+                }
+            }
+        }
+
+        private long key(int pieceIndex, int begin) {
+            return ((long)pieceIndex << 32) | (begin & 0xFFFFFFFFL);
+        }
+    }
 }
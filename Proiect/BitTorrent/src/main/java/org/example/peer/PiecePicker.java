@@ -0,0 +1,149 @@
+package org.example.peer;
+
+import org.example.core.PieceBitmap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Chooses which piece to download next for one torrent
+ * - normal mode: rarest-first, using availability counted over connected peers
+ * - streaming mode: pieces in a window ahead of the playback cursor come first,
+ *   in deadline order (closest to the cursor = earliest deadline); outside the
+ *   window it falls back to rarest-first
+ * A picked piece is claimed torrent-wide so two connections don't download it twice.
+ */
+public class PiecePicker {
+    public static final int DEFAULT_STREAM_WINDOW = 16; // pieces ahead of the cursor
+
+    private final int numPieces;
+    private final PieceBitmap ourPieces;
+    private final AtomicIntegerArray availability;
+    private final Set<Integer> inProgress;
+
+    private volatile boolean streaming;
+    private volatile int cursor;       // piece index the reader is at
+    private volatile int windowSize = DEFAULT_STREAM_WINDOW;
+
+    public PiecePicker(int numPieces, PieceBitmap ourPieces) {
+        this.numPieces = numPieces;
+        this.ourPieces = ourPieces;
+        this.availability = new AtomicIntegerArray(numPieces);
+        this.inProgress = ConcurrentHashMap.newKeySet();
+    }
+
+    // ==================== AVAILABILITY ====================
+
+    public void addPeer(PieceBitmap peerPieces) {
+        forEachSet(peerPieces, 1);
+    }
+
+    public void removePeer(PieceBitmap peerPieces) {
+        forEachSet(peerPieces, -1);
+    }
+
+    public void peerHas(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numPieces) {
+            availability.incrementAndGet(pieceIndex);
+        }
+    }
+
+    public int getAvailability(int pieceIndex) {
+        return availability.get(pieceIndex);
+    }
+
+    private void forEachSet(PieceBitmap bitmap, int delta) {
+        for (int w = 0; w < bitmap.wordCount(); w++) {
+            long word = bitmap.word(w);
+            while (word != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (index < numPieces) availability.addAndGet(index, delta);
+                word &= word - 1;
+            }
+        }
+    }
+
+    // ==================== STREAMING ====================
+
+    public void setStreaming(boolean streaming, int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Move the playback cursor, the priority window slides with it
+     */
+    public void setCursor(int pieceIndex) {
+        this.cursor = Math.max(0, Math.min(pieceIndex, numPieces - 1));
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    // ==================== PICKING ====================
+
+    /**
+     * Pick and claim a piece the peer has and we still need, or -1
+     */
+    public int pick(PieceBitmap peerPieces) {
+        while (true) {
+            int index = streaming ? pickInWindow(peerPieces) : -1;
+            if (index < 0) {
+                index = pickRarest(peerPieces);
+            }
+            if (index < 0) return -1;
+
+            // Another connection may have claimed it in the meantime
+            if (inProgress.add(index)) return index;
+        }
+    }
+
+    /**
+     * Claim a specific piece, false if another connection has it
+     */
+    public boolean tryClaim(int pieceIndex) {
+        return !ourPieces.get(pieceIndex) && inProgress.add(pieceIndex);
+    }
+
+    /**
+     * Give a claimed piece back (completed, failed or connection lost)
+     */
+    public void release(int pieceIndex) {
+        inProgress.remove(pieceIndex);
+    }
+
+    public boolean isInProgress(int pieceIndex) {
+        return inProgress.contains(pieceIndex);
+    }
+
+    private int pickInWindow(PieceBitmap peerPieces) {
+        int start = cursor;
+        int end = Math.min(numPieces, start + windowSize);
+        for (int i = ourPieces.nextMissing(peerPieces, start); i >= 0 && i < end;
+             i = ourPieces.nextMissing(peerPieces, i + 1)) {
+            if (!inProgress.contains(i)) return i;
+        }
+        return -1;
+    }
+
+    private int pickRarest(PieceBitmap peerPieces) {
+        int best = -1;
+        int bestAvailability = Integer.MAX_VALUE;
+        for (int i = ourPieces.nextMissing(peerPieces, 0); i >= 0;
+             i = ourPieces.nextMissing(peerPieces, i + 1)) {
+            if (inProgress.contains(i)) continue;
+            int a = availability.get(i);
+            if (a < bestAvailability) {
+                best = i;
+                bestAvailability = a;
+                if (a <= 1) break; // can't get rarer than only this peer
+            }
+        }
+        return best;
+    }
+}
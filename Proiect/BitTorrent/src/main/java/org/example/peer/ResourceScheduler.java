@@ -0,0 +1,517 @@
+package org.example.peer;
+
+import org.example.util.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-wide allocation of shared resources across torrents
+ * Resources:
+ * - peer connections
+ * - upload slots (unchoked peers)
+ * - in-flight request memory (bytes of pieces being downloaded)
+ * - disk queue depth (bytes waiting in the write-behind queue)
+ * Each active torrent gets an allowance of every resource. Allowances are
+ * recomputed every rebalance interval with weighted max-min fairness: capacity
+ * is split by weight, torrents that don't use their share give it to those
+ * that are saturated. Download/upload rates are measured at the same time.
+ *
+ * Downloads beyond maxActiveDownloads wait in a queue and are started
+ * automatically (highest weight first) when a download completes, is removed,
+ * or stalls below MIN_ACTIVE_RATE for several rounds.
+ */
+public class ResourceScheduler {
+    public enum State { QUEUED, DOWNLOADING, SEEDING }
+
+    public interface Listener {
+        void onStart(String infoHashHex);     // queued download may start
+        void onStop(String infoHashHex);      // download sent back to the queue
+        void onRebalance();                   // allowances changed, retry throttled work
+    }
+
+    private static final long MIN_ACTIVE_RATE = 1024;    // bytes/s below which a download is stalled
+    private static final int STALL_ROUNDS = 6;           // consecutive slow rounds before it stops counting
+    private static final double RATE_SMOOTHING = 0.3;    // EWMA weight of the newest sample
+
+    private final Limits limits;
+    private final MemoryBudget memory;          // node-wide cap on partial piece buffers
+    private final Map<String, Share> shares;
+    private final ScheduledExecutorService timer;
+    private volatile Listener listener;
+    private long lastRebalance;
+
+    public ResourceScheduler(Limits limits) {
+        this.limits = limits;
+        this.memory = new MemoryBudget(limits.maxInFlightBytes);
+        this.shares = new ConcurrentHashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "resource-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.lastRebalance = System.currentTimeMillis();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start() {
+        timer.scheduleWithFixedDelay(this::rebalanceQuietly,
+                limits.rebalanceIntervalMs, limits.rebalanceIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    // ==================== TORRENTS ====================
+
+    /**
+     * Add a torrent, returns true if it may start right away (false = queued)
+     */
+    public boolean register(String infoHashHex, int weight, boolean complete) {
+        Share share = new Share(infoHashHex, Math.max(1, weight));
+        synchronized (this) {
+            if (complete) {
+                share.state = State.SEEDING;
+            } else if (countingDownloads() < limits.maxActiveDownloads) {
+                share.state = State.DOWNLOADING;
+            } else {
+                share.state = State.QUEUED;
+                Logger.info("Download queued (" + limits.maxActiveDownloads + " already active): " + shortHex(infoHashHex));
+            }
+            shares.put(infoHashHex, share);
+            recomputeAllowances();
+        }
+        return share.state != State.QUEUED;
+    }
+
+    public void remove(String infoHashHex) {
+        synchronized (this) {
+            shares.remove(infoHashHex);
+        }
+        rebalanceQuietly();
+    }
+
+    public void setWeight(String infoHashHex, int weight) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) {
+            share.weight = Math.max(1, weight);
+            rebalanceQuietly();
+        }
+    }
+
+    /**
+     * A download finished, free its active slot
+     */
+    public void markComplete(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share != null && share.state != State.SEEDING) {
+            share.state = State.SEEDING;
+            rebalanceQuietly();
+        }
+    }
+
+    public State getState(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        return share != null ? share.state : null;
+    }
+
+    public boolean isActive(String infoHashHex) {
+        State state = getState(infoHashHex);
+        return state == State.DOWNLOADING || state == State.SEEDING;
+    }
+
+    // ==================== CONNECTIONS ====================
+
+    public boolean tryAcquireConnection(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share == null || share.state == State.QUEUED) return false;
+        synchronized (this) {
+            if (totalConnections() >= limits.maxConnections) return false;
+            return tryIncrement(share.connections, share.connectionAllowance);
+        }
+    }
+
+    public void releaseConnection(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.connections.decrementAndGet();
+    }
+
+    // ==================== UPLOAD SLOTS ====================
+
+    public boolean tryAcquireUploadSlot(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share == null || share.state == State.QUEUED) return false;
+        synchronized (this) {
+            if (totalUploadSlots() >= limits.maxUploadSlots) return false;
+            return tryIncrement(share.uploadSlots, share.uploadSlotAllowance);
+        }
+    }
+
+    public void releaseUploadSlot(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.uploadSlots.decrementAndGet();
+    }
+
+    /**
+     * Note that a peer is waiting for an upload slot, counts as demand at the next rebalance
+     */
+    public void recordUploadDemand(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.uploadWaiting.incrementAndGet();
+    }
+
+    // ==================== IN-FLIGHT MEMORY ====================
+
+    public boolean tryReserveInFlight(String infoHashHex, long bytes) {
+        Share share = shares.get(infoHashHex);
+        if (share == null || share.state != State.DOWNLOADING) return false;
+        synchronized (this) {
+            // Always allow one piece so a torrent with a tiny allowance still progresses
+            long used = share.inFlight.get();
+            if ((used > 0 && used + bytes > share.inFlightAllowance) || !memory.tryReserve(bytes)) {
+                share.inFlightDenied = true;
+                memory.recordThrottled();
+                return false;
+            }
+            share.inFlight.addAndGet(bytes);
+            return true;
+        }
+    }
+
+    public void releaseInFlight(String infoHashHex, long bytes) {
+        memory.release(bytes);
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.inFlight.addAndGet(-bytes);
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memory;
+    }
+
+    // ==================== DISK QUEUE ====================
+
+    /**
+     * Bytes this torrent may keep in its write-behind queue before it should stop requesting
+     */
+    public long getDiskQueueAllowance(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        return share != null ? share.diskQueueAllowance : 0;
+    }
+
+    public void recordDiskQueue(String infoHashHex, long pendingBytes) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.diskQueue = pendingBytes;
+    }
+
+    // ==================== RATES ====================
+
+    public void recordDownloaded(String infoHashHex, long bytes) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.downloaded.addAndGet(bytes);
+    }
+
+    public void recordUploaded(String infoHashHex, long bytes) {
+        Share share = shares.get(infoHashHex);
+        if (share != null) share.uploaded.addAndGet(bytes);
+    }
+
+    public double getDownloadRate(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        return share != null ? share.downloadRate : 0;
+    }
+
+    public double getUploadRate(String infoHashHex) {
+        Share share = shares.get(infoHashHex);
+        return share != null ? share.uploadRate : 0;
+    }
+
+    // ==================== REBALANCE ====================
+
+    private void rebalanceQuietly() {
+        try {
+            rebalance();
+        } catch (RuntimeException e) {
+            Logger.error("Resource rebalance failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measure rates, apply the download queue and recompute allowances
+     */
+    public void rebalance() {
+        List<String> toStart = new ArrayList<>();
+        List<String> toStop = new ArrayList<>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            double seconds = Math.max(0.001, (now - lastRebalance) / 1000.0);
+            lastRebalance = now;
+
+            for (Share share : shares.values()) {
+                share.sampleRates(seconds);
+                if (share.state == State.DOWNLOADING) {
+                    share.slowRounds = share.downloadRate < MIN_ACTIVE_RATE ? share.slowRounds + 1 : 0;
+                }
+            }
+
+            applyQueue(toStart, toStop);
+            recomputeAllowances();
+        }
+
+        Listener l = listener;
+        if (l != null) {
+            toStop.forEach(l::onStop);
+            toStart.forEach(l::onStart);
+            l.onRebalance();
+        }
+    }
+
+    private void applyQueue(List<String> toStart, List<String> toStop) {
+        // Too many active (limit lowered or stalled ones recovered): requeue the lowest priority
+        List<Share> active = new ArrayList<>();
+        for (Share share : shares.values()) {
+            if (share.state == State.DOWNLOADING && share.slowRounds < STALL_ROUNDS) active.add(share);
+        }
+        active.sort(Comparator.comparingInt((Share s) -> s.weight).thenComparingLong(s -> -s.order));
+        while (active.size() > limits.maxActiveDownloads) {
+            Share share = active.remove(0);
+            share.state = State.QUEUED;
+            share.slowRounds = 0;
+            toStop.add(share.infoHashHex);
+        }
+
+        // Free slots: start queued downloads, highest weight first, then oldest
+        List<Share> queued = new ArrayList<>();
+        for (Share share : shares.values()) {
+            if (share.state == State.QUEUED && !toStop.contains(share.infoHashHex)) queued.add(share);
+        }
+        queued.sort(Comparator.comparingInt((Share s) -> -s.weight).thenComparingLong(s -> s.order));
+        int free = limits.maxActiveDownloads - active.size();
+        for (int i = 0; i < free && i < queued.size(); i++) {
+            Share share = queued.get(i);
+            share.state = State.DOWNLOADING;
+            share.slowRounds = 0;
+            toStart.add(share.infoHashHex);
+        }
+    }
+
+    private void recomputeAllowances() {
+        List<Share> active = new ArrayList<>();
+        List<Share> downloading = new ArrayList<>();
+        for (Share share : shares.values()) {
+            if (share.state == State.QUEUED) {
+                share.connectionAllowance = 0;
+                share.uploadSlotAllowance = 0;
+                share.inFlightAllowance = 0;
+                share.diskQueueAllowance = 0;
+                continue;
+            }
+            active.add(share);
+            if (share.state == State.DOWNLOADING) downloading.add(share);
+        }
+
+        long[] conns = allocate(limits.maxConnections, active,
+                s -> demand(s.connections.get(), s.connectionAllowance, false));
+        long[] slots = allocate(limits.maxUploadSlots, active,
+                s -> demand(s.uploadSlots.get(), s.uploadSlotAllowance, s.uploadWaiting.getAndSet(0) > 0));
+        for (int i = 0; i < active.size(); i++) {
+            active.get(i).connectionAllowance = (int)conns[i];
+            active.get(i).uploadSlotAllowance = (int)slots[i];
+        }
+
+        long[] memory = allocate(limits.maxInFlightBytes, downloading,
+                s -> demand(s.inFlight.get(), s.inFlightAllowance, s.inFlightDenied));
+        long[] disk = allocate(limits.maxDiskQueueBytes, downloading,
+                s -> demand(s.diskQueue, s.diskQueueAllowance, false));
+        for (int i = 0; i < downloading.size(); i++) {
+            Share share = downloading.get(i);
+            share.inFlightAllowance = memory[i];
+            share.diskQueueAllowance = disk[i];
+            share.inFlightDenied = false;
+        }
+        for (Share share : active) {
+            if (share.state == State.SEEDING) {
+                share.inFlightAllowance = 0;
+                share.diskQueueAllowance = 0;
+            }
+        }
+    }
+
+    /**
+     * What a torrent would use if it could: saturated users ask for double,
+     * others for a bit more than they use now. New torrents start from zero
+     * usage and zero allowance, so they get an equal weighted share.
+     */
+    private static long demand(long used, long allowance, boolean saturated) {
+        if (allowance == 0) return Long.MAX_VALUE;
+        if (saturated || used >= allowance) return Math.max(1, allowance) * 2;
+        return used + used / 4 + 1;
+    }
+
+    /**
+     * Weighted max-min fair split of capacity: every round divides what is left
+     * by weight among torrents that still want more, capped at their demand.
+     */
+    static long[] allocate(long capacity, List<Share> shares, java.util.function.ToLongFunction<Share> demandOf) {
+        int n = shares.size();
+        long[] result = new long[n];
+        if (n == 0) return result;
+
+        long[] demand = new long[n];
+        boolean[] satisfied = new boolean[n];
+        for (int i = 0; i < n; i++) demand[i] = Math.max(1, demandOf.applyAsLong(shares.get(i)));
+
+        long remaining = capacity;
+        while (remaining > 0) {
+            long weightSum = 0;
+            for (int i = 0; i < n; i++) if (!satisfied[i]) weightSum += shares.get(i).weight;
+            if (weightSum == 0) break;
+
+            long given = 0;
+            for (int i = 0; i < n; i++) {
+                if (satisfied[i]) continue;
+                long portion = Math.max(1, remaining * shares.get(i).weight / weightSum);
+                long grant = Math.min(portion, demand[i] - result[i]);
+                grant = Math.min(grant, remaining - given);
+                result[i] += grant;
+                given += grant;
+                if (result[i] >= demand[i]) satisfied[i] = true;
+                if (given >= remaining) break;
+            }
+            if (given == 0) break;
+            remaining -= given;
+        }
+
+        // Leftover capacity (everyone satisfied) is spread by weight as headroom
+        if (remaining > 0) {
+            long weightSum = 0;
+            for (Share share : shares) weightSum += share.weight;
+            for (int i = 0; i < n; i++) result[i] += remaining * shares.get(i).weight / weightSum;
+        }
+        return result;
+    }
+
+    private int countingDownloads() {
+        int count = 0;
+        for (Share share : shares.values()) {
+            if (share.state == State.DOWNLOADING && share.slowRounds < STALL_ROUNDS) count++;
+        }
+        return count;
+    }
+
+    private int totalConnections() {
+        int total = 0;
+        for (Share share : shares.values()) total += share.connections.get();
+        return total;
+    }
+
+    private int totalUploadSlots() {
+        int total = 0;
+        for (Share share : shares.values()) total += share.uploadSlots.get();
+        return total;
+    }
+
+    private static boolean tryIncrement(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (current >= limit) return false;
+            if (counter.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private static String shortHex(String hex) {
+        return hex.substring(0, Math.min(8, hex.length()));
+    }
+
+    /**
+     * One line per torrent for the status screen
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Share s : shares.values()) {
+            lines.add(String.format("%s %-11s w=%d conns %d/%d slots %d/%d mem %dK/%dK down %.1f KB/s up %.1f KB/s",
+                    shortHex(s.infoHashHex), s.state, s.weight,
+                    s.connections.get(), s.connectionAllowance,
+                    s.uploadSlots.get(), s.uploadSlotAllowance,
+                    s.inFlight.get() / 1024, s.inFlightAllowance / 1024,
+                    s.downloadRate / 1024, s.uploadRate / 1024));
+        }
+        return lines;
+    }
+
+    /**
+     * Per-torrent bookkeeping
+     */
+    static class Share {
+        private static final AtomicLong ORDER = new AtomicLong();
+
+        final String infoHashHex;
+        final long order = ORDER.incrementAndGet(); // FIFO tie-break for the queue
+        volatile int weight;
+        volatile State state;
+
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger uploadSlots = new AtomicInteger();
+        final AtomicInteger uploadWaiting = new AtomicInteger();
+        final AtomicLong inFlight = new AtomicLong();
+        volatile long diskQueue;
+        volatile boolean inFlightDenied;
+
+        volatile int connectionAllowance;
+        volatile int uploadSlotAllowance;
+        volatile long inFlightAllowance;
+        volatile long diskQueueAllowance;
+
+        final AtomicLong downloaded = new AtomicLong();
+        final AtomicLong uploaded = new AtomicLong();
+        private long lastDownloaded;
+        private long lastUploaded;
+        volatile double downloadRate; // bytes/s, smoothed
+        volatile double uploadRate;
+        int slowRounds;
+
+        Share(String infoHashHex, int weight) {
+            this.infoHashHex = infoHashHex;
+            this.weight = weight;
+        }
+
+        void sampleRates(double seconds) {
+            long down = downloaded.get();
+            long up = uploaded.get();
+            double downSample = (down - lastDownloaded) / seconds;
+            double upSample = (up - lastUploaded) / seconds;
+            lastDownloaded = down;
+            lastUploaded = up;
+            downloadRate = RATE_SMOOTHING * downSample + (1 - RATE_SMOOTHING) * downloadRate;
+            uploadRate = RATE_SMOOTHING * upSample + (1 - RATE_SMOOTHING) * uploadRate;
+        }
+    }
+
+    /**
+     * Global caps, configurable through system properties
+     */
+    public static class Limits {
+        public int maxConnections = 200;
+        public int maxUploadSlots = 32;
+        public long maxInFlightBytes = 256L * 1024 * 1024;
+        public long maxDiskQueueBytes = 128L * 1024 * 1024;
+        public int maxActiveDownloads = 4;
+        public long rebalanceIntervalMs = 5000;
+
+        public static Limits fromSystemProperties() {
+            Limits limits = new Limits();
+            limits.maxConnections = Integer.getInteger("bittorrent.maxConnections", limits.maxConnections);
+            limits.maxUploadSlots = Integer.getInteger("bittorrent.maxUploadSlots", limits.maxUploadSlots);
+            limits.maxInFlightBytes = Long.getLong("bittorrent.maxInFlightBytes", limits.maxInFlightBytes);
+            limits.maxDiskQueueBytes = Long.getLong("bittorrent.maxDiskQueueBytes", limits.maxDiskQueueBytes);
+            limits.maxActiveDownloads = Integer.getInteger("bittorrent.maxActiveDownloads", limits.maxActiveDownloads);
+            limits.rebalanceIntervalMs = Long.getLong("bittorrent.rebalanceIntervalMs", limits.rebalanceIntervalMs);
+            return limits;
+        }
+    }
+}
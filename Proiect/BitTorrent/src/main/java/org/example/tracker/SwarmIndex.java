@@ -0,0 +1,270 @@
+package org.example.tracker;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-memory swarm index of the tracker, sharded by info_hash
+ * Each shard has its own lock, so announces for different torrents never
+ * contend, and expiry sweeps one shard at a time instead of stopping the
+ * whole index. A swarm keeps its peers in an array plus an address index:
+ * adding, removing and sampling a random peer are all O(1).
+ * Peers are IPv4 only, packed as (ip << 16 | port) like their compact form.
+ */
+public class SwarmIndex {
+    public static final int SHARDS = 64;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long peerTtlMs;
+    private final int maxPeersPerSwarm;
+
+    public SwarmIndex(long peerTtlMs, int maxPeersPerSwarm) {
+        this.peerTtlMs = peerTtlMs;
+        this.maxPeersPerSwarm = maxPeersPerSwarm;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Record an announce and write the BEP 15 response body after the header:
+     * leechers, seeders and up to numWant compact peers other than the announcer
+     * @param event 0 none, 1 completed, 2 started, 3 stopped
+     */
+    public void announce(byte[] infoHash, long address, boolean seed, int event, int numWant, long now, ByteBuffer out) {
+        Shard shard = shardOf(infoHash);
+        synchronized (shard) {
+            Key key = new Key(infoHash);
+            Swarm swarm = shard.swarms.get(key);
+            if (event == UdpTracker.EVENT_STOPPED) {
+                if (swarm != null) {
+                    swarm.remove(address);
+                    if (swarm.peers.isEmpty()) shard.swarms.remove(key);
+                }
+                out.putInt(swarm != null ? swarm.leechers() : 0);
+                out.putInt(swarm != null ? swarm.seeders : 0);
+                return;
+            }
+
+            if (swarm == null) {
+                swarm = new Swarm();
+                shard.swarms.put(key, swarm);
+            }
+            swarm.update(address, seed, now, maxPeersPerSwarm);
+            if (event == UdpTracker.EVENT_COMPLETED) swarm.completed++;
+
+            out.putInt(swarm.leechers());
+            out.putInt(swarm.seeders);
+            swarm.sample(address, seed, numWant, out);
+        }
+    }
+
+    /**
+     * Write the scrape entry of a torrent: seeders, completed, leechers
+     */
+    public void scrape(byte[] infoHash, ByteBuffer out) {
+        Shard shard = shardOf(infoHash);
+        synchronized (shard) {
+            Swarm swarm = shard.swarms.get(new Key(infoHash));
+            out.putInt(swarm != null ? swarm.seeders : 0);
+            out.putInt(swarm != null ? swarm.completed : 0);
+            out.putInt(swarm != null ? swarm.leechers() : 0);
+        }
+    }
+
+    /**
+     * Drop peers of one shard that stopped announcing, returns how many were removed
+     */
+    public int expire(int shardIndex, long now) {
+        Shard shard = shards[shardIndex];
+        int removed = 0;
+        synchronized (shard) {
+            Iterator<Swarm> it = shard.swarms.values().iterator();
+            while (it.hasNext()) {
+                Swarm swarm = it.next();
+                removed += swarm.expire(now - peerTtlMs);
+                if (swarm.peers.isEmpty()) it.remove();
+            }
+        }
+        return removed;
+    }
+
+    public int swarmCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.swarms.size();
+            }
+        }
+        return count;
+    }
+
+    public int peerCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Swarm swarm : shard.swarms.values()) count += swarm.peers.size();
+            }
+        }
+        return count;
+    }
+
+    private Shard shardOf(byte[] infoHash) {
+        // info_hashes are uniformly distributed, the first byte is as good as any hash
+        return shards[(infoHash[0] & 0xFF) % SHARDS];
+    }
+
+    private static class Shard {
+        final Map<Key, Swarm> swarms = new HashMap<>();
+    }
+
+    /**
+     * info_hash as a map key
+     */
+    private static final class Key {
+        final byte[] bytes;
+        final int hash;
+
+        Key(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(bytes, ((Key)o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Peer {
+        final long address;
+        boolean seed;
+        long lastSeen;
+        int index; // position in Swarm.peers
+
+        Peer(long address) {
+            this.address = address;
+        }
+    }
+
+    private static class Swarm {
+        final List<Peer> peers = new ArrayList<>();
+        final Map<Long, Peer> byAddress = new HashMap<>();
+        int seeders;
+        int completed;
+
+        int leechers() {
+            return peers.size() - seeders;
+        }
+
+        void update(long address, boolean seed, long now, int maxPeers) {
+            Peer peer = byAddress.get(address);
+            if (peer == null) {
+                if (peers.size() >= maxPeers) return; // still answered, just not stored
+                peer = new Peer(address);
+                peer.index = peers.size();
+                peers.add(peer);
+                byAddress.put(address, peer);
+            } else if (peer.seed) {
+                seeders--;
+            }
+            peer.seed = seed;
+            peer.lastSeen = now;
+            if (seed) seeders++;
+        }
+
+        void remove(long address) {
+            Peer peer = byAddress.remove(address);
+            if (peer != null) removeAt(peer);
+        }
+
+        /**
+         * Swap the last peer into the hole, O(1)
+         */
+        private void removeAt(Peer peer) {
+            Peer last = peers.remove(peers.size() - 1);
+            if (last != peer) {
+                last.index = peer.index;
+                peers.set(peer.index, last);
+            }
+            if (peer.seed) seeders--;
+        }
+
+        int expire(long seenBefore) {
+            int removed = 0;
+            for (int i = peers.size() - 1; i >= 0; i--) {
+                Peer peer = peers.get(i);
+                if (peer.lastSeen < seenBefore) {
+                    byAddress.remove(peer.address);
+                    removeAt(peer);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * Up to n random peers, seeds are not sent to a seed
+         */
+        void sample(long self, boolean selfSeed, int n, ByteBuffer out) {
+            int size = peers.size();
+            if (size == 0 || n <= 0) return;
+            int written = 0;
+            if (size <= n + 1) {
+                for (Peer peer : peers) {
+                    if (written >= n) break;
+                    if (wanted(peer, self, selfSeed)) {
+                        putCompact(out, peer.address);
+                        written++;
+                    }
+                }
+                return;
+            }
+
+            // Random start, then a stride coprime with size visits every peer once
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int start = random.nextInt(size);
+            int stride = 1 + random.nextInt(size - 1);
+            while (gcd(stride, size) != 1) stride++;
+            for (int i = 0, pos = start; i < size && written < n; i++, pos = (pos + stride) % size) {
+                Peer peer = peers.get(pos);
+                if (wanted(peer, self, selfSeed)) {
+                    putCompact(out, peer.address);
+                    written++;
+                }
+            }
+        }
+
+        private static boolean wanted(Peer peer, long self, boolean selfSeed) {
+            return peer.address != self && !(selfSeed && peer.seed);
+        }
+
+        private static int gcd(int a, int b) {
+            while (b != 0) {
+                int t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+    }
+
+    private static void putCompact(ByteBuffer out, long address) {
+        out.putInt((int)(address >>> 16));
+        out.putShort((short)address);
+    }
+
+    /**
+     * Pack an IPv4 address and port like their compact form
+     */
+    public static long pack(byte[] ip, int port) {
+        long value = ((ip[0] & 0xFFL) << 24) | ((ip[1] & 0xFFL) << 16) | ((ip[2] & 0xFFL) << 8) | (ip[3] & 0xFFL);
+        return (value << 16) | (port & 0xFFFF);
+    }
+}
@@ -0,0 +1,340 @@
+package org.example.tracker;
+
+import org.example.util.CompactPeers;
+import org.example.util.Hash;
+import org.example.util.Logger;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+/**
+ * BEP 15 client: announces our torrents to every configured UDP tracker
+ * Requests are matched to responses by transaction id and retried on
+ * timeout; a connection id is reused for the minute it stays valid. Each
+ * tracked torrent is re-announced at the interval the tracker asks for.
+ */
+public class TrackerClient {
+    private static final long TIMEOUT_MS = Long.getLong("bittorrent.trackerTimeoutMs", 2000);
+    private static final int RETRIES = Integer.getInteger("bittorrent.trackerRetries", 2);
+    private static final long CONNECTION_ID_TTL_MS = 60000;
+    private static final long MIN_ANNOUNCE_GAP_MS = 30000; // early re-announces, e.g. when a download runs dry
+    private static final int NUM_WANT = 50;
+
+    /**
+     * Receives the result of every successful announce
+     */
+    public interface Listener {
+        void onAnnounce(byte[] infoHash, List<InetSocketAddress> peers, int seeders, int leechers);
+    }
+
+    private final byte[] peerId;
+    private final int port;
+    private final Listener listener;
+    private final List<InetSocketAddress> trackers = new CopyOnWriteArrayList<>();
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, CompletableFuture<Long>> connecting = new ConcurrentHashMap<>(); // shared by concurrent announces
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final int key = new SecureRandom().nextInt(); // identifies us across IP changes
+    private final ScheduledExecutorService timer;
+    private final DatagramSocket socket;
+    private volatile boolean running;
+
+    /**
+     * A torrent we announce, with what is still missing of it
+     */
+    private static class Tracked {
+        final byte[] infoHash;
+        final LongSupplier left;
+        final Map<InetSocketAddress, ScheduledFuture<?>> next = new ConcurrentHashMap<>(); // per tracker
+        volatile long lastAnnounce;
+
+        Tracked(byte[] infoHash, LongSupplier left) {
+            this.infoHash = infoHash;
+            this.left = left;
+        }
+    }
+
+    private static class Connection {
+        final long id;
+        final long obtained;
+
+        Connection(long id, long obtained) {
+            this.id = id;
+            this.obtained = obtained;
+        }
+    }
+
+    public TrackerClient(byte[] peerId, int port, Listener listener) throws IOException {
+        this.socket = new DatagramSocket();
+        this.peerId = peerId;
+        this.port = port;
+        this.listener = listener;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tracker-client");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void addTracker(InetSocketAddress tracker) {
+        if (trackers.contains(tracker)) return;
+        trackers.add(tracker);
+        Logger.info("Using UDP tracker " + tracker);
+        for (Tracked t : tracked.values()) {
+            announce(t, tracker, UdpTracker.EVENT_STARTED);
+        }
+    }
+
+    public boolean hasTrackers() {
+        return !trackers.isEmpty();
+    }
+
+    /**
+     * Parse "host:port"
+     */
+    public static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        int port = -1;
+        if (colon > 0) {
+            try {
+                port = Integer.parseInt(hostPort.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        if (port < 1 || port > 65535) throw new IllegalArgumentException("Expected host:port, got " + hostPort);
+        return new InetSocketAddress(hostPort.substring(0, colon).trim(), port);
+    }
+
+    public void start() {
+        running = true;
+        Thread receiver = new Thread(this::receiveLoop, "tracker-client-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Tell every tracker we are leaving (without waiting for answers) and close
+     */
+    public void stop() {
+        for (Tracked t : tracked.values()) {
+            for (InetSocketAddress tracker : trackers) {
+                Connection connection = connections.get(tracker);
+                if (connection != null && System.currentTimeMillis() - connection.obtained < CONNECTION_ID_TTL_MS) {
+                    sendQuietly(announceRequest(connection.id, random.nextInt(), t, UdpTracker.EVENT_STOPPED), tracker);
+                }
+            }
+        }
+        running = false;
+        timer.shutdownNow();
+        socket.close();
+        pending.values().forEach(f -> f.cancel(false));
+    }
+
+    // ==================== TORRENTS ====================
+
+    /**
+     * Start announcing a torrent
+     * @param left bytes still missing, 0 announces us as a seed
+     */
+    public void track(byte[] infoHash, LongSupplier left) {
+        Tracked t = new Tracked(infoHash, left);
+        Tracked old = tracked.put(Hash.toHex(infoHash), t);
+        if (old != null) old.next.values().forEach(f -> f.cancel(false));
+        for (InetSocketAddress tracker : trackers) {
+            announce(t, tracker, UdpTracker.EVENT_STARTED);
+        }
+    }
+
+    /**
+     * A download finished, trackers count it and list us as a seed from now on
+     */
+    public void completed(byte[] infoHash) {
+        Tracked t = tracked.get(Hash.toHex(infoHash));
+        if (t == null) return;
+        for (InetSocketAddress tracker : trackers) {
+            announce(t, tracker, UdpTracker.EVENT_COMPLETED);
+        }
+    }
+
+    /**
+     * Ask for more peers ahead of the interval, at most every MIN_ANNOUNCE_GAP_MS
+     */
+    public void reannounce(byte[] infoHash) {
+        Tracked t = tracked.get(Hash.toHex(infoHash));
+        if (t == null || System.currentTimeMillis() - t.lastAnnounce < MIN_ANNOUNCE_GAP_MS) return;
+        for (InetSocketAddress tracker : trackers) {
+            announce(t, tracker, UdpTracker.EVENT_NONE);
+        }
+    }
+
+    private void announce(Tracked t, InetSocketAddress tracker, int event) {
+        if (!running) return;
+        t.lastAnnounce = System.currentTimeMillis();
+        connectionId(tracker)
+                .thenCompose(connectionId -> {
+                    int transactionId = random.nextInt();
+                    return request(announceRequest(connectionId, transactionId, t, event), transactionId, tracker);
+                })
+                .whenComplete((response, error) -> {
+                    int interval = 60; // retry sooner after a failure
+                    if (error != null) {
+                        Logger.debug("Announce to tracker " + tracker + " failed: " + rootMessage(error));
+                    } else {
+                        interval = handleAnnounce(t, response);
+                    }
+                    scheduleNext(t, tracker, interval);
+                });
+    }
+
+    private void scheduleNext(Tracked t, InetSocketAddress tracker, int intervalSeconds) {
+        if (!running || tracked.get(Hash.toHex(t.infoHash)) != t) return;
+        try {
+            ScheduledFuture<?> old = t.next.put(tracker, timer.schedule(() -> announce(t, tracker, UdpTracker.EVENT_NONE),
+                    Math.max(30, intervalSeconds), TimeUnit.SECONDS));
+            if (old != null) old.cancel(false);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Parse an announce response, returns the interval the tracker wants
+     */
+    private int handleAnnounce(Tracked t, ByteBuffer response) {
+        if (response.limit() < 20 || response.getInt(0) != UdpTracker.ACTION_ANNOUNCE) return 60;
+        int interval = response.getInt(8);
+        int leechers = response.getInt(12);
+        int seeders = response.getInt(16);
+        byte[] compact = new byte[response.remaining() - 20];
+        response.position(20);
+        response.get(compact);
+        List<InetSocketAddress> peers = CompactPeers.decode(compact, false);
+        try {
+            listener.onAnnounce(t.infoHash, peers, seeders, leechers);
+        } catch (RuntimeException e) {
+            Logger.error("Tracker listener failed: " + e.getMessage());
+        }
+        return interval;
+    }
+
+    private ByteBuffer announceRequest(long connectionId, int transactionId, Tracked t, int event) {
+        ByteBuffer request = ByteBuffer.allocate(98);
+        request.putLong(connectionId).putInt(UdpTracker.ACTION_ANNOUNCE).putInt(transactionId);
+        request.put(t.infoHash).put(peerId);
+        request.putLong(0).putLong(Math.max(0, t.left.getAsLong())).putLong(0); // downloaded, left, uploaded
+        request.putInt(event).putInt(0).putInt(key).putInt(NUM_WANT).putShort((short)port);
+        request.flip();
+        return request;
+    }
+
+    // ==================== REQUESTS ====================
+
+    private CompletableFuture<Long> connectionId(InetSocketAddress tracker) {
+        Connection connection = connections.get(tracker);
+        if (connection != null && System.currentTimeMillis() - connection.obtained < CONNECTION_ID_TTL_MS) {
+            return CompletableFuture.completedFuture(connection.id);
+        }
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        CompletableFuture<Long> existing = connecting.putIfAbsent(tracker, future);
+        if (existing != null) return existing;
+        connect(tracker).whenComplete((id, error) -> {
+            connecting.remove(tracker, future);
+            if (error != null) future.completeExceptionally(error);
+            else future.complete(id);
+        });
+        return future;
+    }
+
+    private CompletableFuture<Long> connect(InetSocketAddress tracker) {
+        int transactionId = random.nextInt();
+        ByteBuffer request = ByteBuffer.allocate(16);
+        request.putLong(UdpTracker.PROTOCOL_ID).putInt(UdpTracker.ACTION_CONNECT).putInt(transactionId);
+        request.flip();
+        return request(request, transactionId, tracker).thenApply(response -> {
+            if (response.limit() < 16 || response.getInt(0) != UdpTracker.ACTION_CONNECT) {
+                throw new CompletionException(new IOException("bad connect response"));
+            }
+            long id = response.getLong(8);
+            connections.put(tracker, new Connection(id, System.currentTimeMillis()));
+            return id;
+        });
+    }
+
+    /**
+     * Send a request, resending it after each timeout; completes with the
+     * response or fails once the retries are used up
+     */
+    private CompletableFuture<ByteBuffer> request(ByteBuffer request, int transactionId, InetSocketAddress tracker) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        pending.put(transactionId, future);
+        future.whenComplete((r, e) -> pending.remove(transactionId, future));
+        attempt(request, tracker, future, 0);
+        return future;
+    }
+
+    private void attempt(ByteBuffer request, InetSocketAddress tracker, CompletableFuture<ByteBuffer> future, int attempt) {
+        if (future.isDone()) return;
+        if (attempt > RETRIES) {
+            future.completeExceptionally(new TimeoutException("no answer from " + tracker));
+            return;
+        }
+        sendQuietly(request.duplicate(), tracker);
+        try {
+            timer.schedule(() -> attempt(request, tracker, future, attempt + 1), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            future.cancel(false);
+        }
+    }
+
+    private void sendQuietly(ByteBuffer request, InetSocketAddress tracker) {
+        try {
+            socket.send(new DatagramPacket(request.array(), request.arrayOffset() + request.position(),
+                    request.remaining(), tracker));
+        } catch (IOException e) {
+            Logger.debug("Failed to send to tracker " + tracker + ": " + e.getMessage());
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[2048];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                if (packet.getLength() < 8) continue;
+                ByteBuffer response = ByteBuffer.wrap(Arrays.copyOf(packet.getData(), packet.getLength()));
+                CompletableFuture<ByteBuffer> future = pending.get(response.getInt(4));
+                if (future == null) continue; // late answer to a retried request
+
+                if (response.getInt(0) == UdpTracker.ACTION_ERROR) {
+                    String message = new String(packet.getData(), 8, packet.getLength() - 8, StandardCharsets.US_ASCII);
+                    connections.remove(new InetSocketAddress(packet.getAddress(), packet.getPort()));
+                    future.completeExceptionally(new IOException("tracker error: " + message));
+                } else {
+                    future.complete(response);
+                }
+            } catch (IOException e) {
+                if (running) Logger.error("Tracker receive error: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String rootMessage(Throwable error) {
+        while (error.getCause() != null) error = error.getCause();
+        return error.getMessage();
+    }
+
+    public String getStats() {
+        return trackers.size() + " trackers, " + tracked.size() + " torrents announced, " + pending.size() + " pending";
+    }
+}
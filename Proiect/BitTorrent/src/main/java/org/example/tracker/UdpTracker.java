@@ -0,0 +1,245 @@
+package org.example.tracker;
+
+import org.example.util.Logger;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP tracker (BEP 15), unicast discovery for networks multicast doesn't reach
+ * One thread runs a non-blocking event loop: it drains every datagram the
+ * channel has, answers it from the in-memory SwarmIndex and expires one
+ * index shard per tick. Connection ids are not stored, they are a keyed hash
+ * of the client address and the current minute, valid for two minutes.
+ */
+public class UdpTracker {
+    public static final long PROTOCOL_ID = 0x41727101980L; // connect magic
+    public static final int ACTION_CONNECT = 0;
+    public static final int ACTION_ANNOUNCE = 1;
+    public static final int ACTION_SCRAPE = 2;
+    public static final int ACTION_ERROR = 3;
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_COMPLETED = 1;
+    public static final int EVENT_STARTED = 2;
+    public static final int EVENT_STOPPED = 3;
+
+    private static final int INTERVAL_S = Integer.getInteger("bittorrent.trackerInterval", 300);
+    private static final int MAX_PEERS_PER_SWARM = Integer.getInteger("bittorrent.trackerMaxPeersPerSwarm", 10000);
+    private static final int DEFAULT_NUM_WANT = 50;
+    private static final int MAX_NUM_WANT = 200;
+    private static final int MAX_SCRAPE_HASHES = 74; // what fits a 1500 byte request
+    private static final int ANNOUNCE_LENGTH = 98;
+    private static final long CONNECTION_ID_BUCKET_MS = 60000;
+    private static final long TICK_MS = 1000;
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+    private final int port;
+    private final SwarmIndex index;
+    private final byte[] secret = new byte[16];
+    private final MessageDigest sha1; // event loop only
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean running;
+    private int nextShard;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong announces = new AtomicLong();
+    private final AtomicLong scrapes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();  // malformed requests or stale connection ids
+    private final AtomicLong dropped = new AtomicLong(); // responses the send buffer had no room for
+
+    public UdpTracker(int port) {
+        this.port = port;
+        // Peers re-announce every interval, two missed announces and they are gone
+        this.index = new SwarmIndex(2L * INTERVAL_S * 1000 + 60000, MAX_PEERS_PER_SWARM);
+        new SecureRandom().nextBytes(secret);
+        try {
+            this.sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        running = true;
+        loop = new Thread(this::eventLoop, "udp-tracker");
+        loop.setDaemon(true);
+        loop.start();
+        Logger.info("UDP tracker listening on port " + getPort());
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) selector.wakeup();
+        try {
+            if (loop != null) loop.join(2000);
+            if (channel != null) channel.close();
+            if (selector != null) selector.close();
+        } catch (IOException e) {
+            Logger.error("Error stopping tracker: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ==================== EVENT LOOP ====================
+
+    private void eventLoop() {
+        ByteBuffer in = ByteBuffer.allocateDirect(2048);
+        ByteBuffer out = ByteBuffer.allocateDirect(2048);
+        long nextTick = System.currentTimeMillis() + TICK_MS;
+        while (running) {
+            try {
+                selector.select(TICK_MS);
+                selector.selectedKeys().clear();
+
+                // Drain everything queued, one wakeup can cover thousands of datagrams
+                InetSocketAddress sender;
+                while ((sender = (InetSocketAddress) channel.receive(in)) != null) {
+                    in.flip();
+                    out.clear();
+                    if (handle(in, sender, out)) {
+                        out.flip();
+                        if (channel.send(out, sender) == 0) dropped.incrementAndGet();
+                    }
+                    in.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTick) {
+                    nextTick = now + TICK_MS;
+                    index.expire(nextShard, now);
+                    nextShard = (nextShard + 1) % SwarmIndex.SHARDS;
+                }
+            } catch (IOException e) {
+                if (running) Logger.error("Tracker receive error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                Logger.error("Tracker request failed: " + e.getMessage());
+                in.clear();
+            }
+        }
+    }
+
+    /**
+     * Handle one request, returns true if out holds a response
+     */
+    private boolean handle(ByteBuffer in, InetSocketAddress sender, ByteBuffer out) {
+        if (in.remaining() < 16) {
+            errors.incrementAndGet();
+            return false;
+        }
+        long connectionId = in.getLong(0);
+        int action = in.getInt(8);
+        int transactionId = in.getInt(12);
+
+        if (action == ACTION_CONNECT) {
+            if (connectionId != PROTOCOL_ID) {
+                errors.incrementAndGet();
+                return false;
+            }
+            connects.incrementAndGet();
+            out.putInt(ACTION_CONNECT).putInt(transactionId).putLong(connectionId(sender, 0));
+            return true;
+        }
+
+        if (connectionId != connectionId(sender, 0) && connectionId != connectionId(sender, -1)) {
+            return error(out, transactionId, "Connection ID expired");
+        }
+
+        switch (action) {
+            case ACTION_ANNOUNCE:
+                return announce(in, sender, transactionId, out);
+            case ACTION_SCRAPE:
+                return scrape(in, transactionId, out);
+            default:
+                return error(out, transactionId, "Unknown action");
+        }
+    }
+
+    private boolean announce(ByteBuffer in, InetSocketAddress sender, int transactionId, ByteBuffer out) {
+        if (in.remaining() < ANNOUNCE_LENGTH) return error(out, transactionId, "Short announce");
+        if (!(sender.getAddress() instanceof Inet4Address)) return error(out, transactionId, "IPv4 only");
+
+        byte[] infoHash = new byte[20];
+        in.position(16);
+        in.get(infoHash);
+        long left = in.getLong(64);
+        int event = in.getInt(80);
+        int numWant = in.getInt(92);
+        int peerPort = in.getShort(96) & 0xFFFF;
+        if (peerPort == 0) return error(out, transactionId, "Invalid port");
+        if (numWant < 0) numWant = DEFAULT_NUM_WANT;
+        numWant = Math.min(numWant, MAX_NUM_WANT);
+
+        // The announced IP field is ignored, peers are reachable where the request came from
+        long address = SwarmIndex.pack(sender.getAddress().getAddress(), peerPort);
+        announces.incrementAndGet();
+        out.putInt(ACTION_ANNOUNCE).putInt(transactionId).putInt(INTERVAL_S);
+        index.announce(infoHash, address, left == 0, event, numWant, System.currentTimeMillis(), out);
+        return true;
+    }
+
+    private boolean scrape(ByteBuffer in, int transactionId, ByteBuffer out) {
+        int count = Math.min((in.remaining() - 16) / 20, MAX_SCRAPE_HASHES);
+        if (count <= 0) return error(out, transactionId, "No info_hash");
+
+        scrapes.incrementAndGet();
+        out.putInt(ACTION_SCRAPE).putInt(transactionId);
+        in.position(16);
+        for (int i = 0; i < count; i++) {
+            byte[] infoHash = new byte[20];
+            in.get(infoHash);
+            index.scrape(infoHash, out);
+        }
+        return true;
+    }
+
+    private boolean error(ByteBuffer out, int transactionId, String message) {
+        errors.incrementAndGet();
+        out.putInt(ACTION_ERROR).putInt(transactionId).put(message.getBytes(StandardCharsets.US_ASCII));
+        return true;
+    }
+
+    /**
+     * Keyed hash of the client address and a minute bucket (0 = current, -1 = previous)
+     */
+    private long connectionId(InetSocketAddress client, int bucketOffset) {
+        long bucket = System.currentTimeMillis() / CONNECTION_ID_BUCKET_MS + bucketOffset;
+        sha1.reset();
+        sha1.update(secret);
+        sha1.update(client.getAddress().getAddress());
+        sha1.update((byte)(client.getPort() >> 8));
+        sha1.update((byte)client.getPort());
+        for (int i = 56; i >= 0; i -= 8) sha1.update((byte)(bucket >> i));
+        return ByteBuffer.wrap(sha1.digest()).getLong();
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    public String getStats() {
+        return String.format("%d swarms, %d peers, %d connects, %d announces, %d scrapes, %d errors, %d dropped",
+                index.swarmCount(), index.peerCount(), connects.get(), announces.get(), scrapes.get(),
+                errors.get(), dropped.get());
+    }
+}
@@ -7,6 +7,8 @@ import java.util.*;
 public class Bencode {
 
     private static final boolean DEBUG = true;  //  set to false to silence
+    // Real messages nest a few levels; deeper input is an attack on the stack
+    private static final int MAX_DEPTH = 64;
 
     /**
      * Decode bencoded data into Java objects
@@ -23,6 +25,13 @@ public class Bencode {
 
 
 public static Object decode(InputStream in) throws IOException {
+    return decode(in, 0);
+}
+
+private static Object decode(InputStream in, int depth) throws IOException {
+    if (depth > MAX_DEPTH) {
+        throw new IOException("Bencode nested deeper than " + MAX_DEPTH + " levels");
+    }
     int firstByte = in.read();
     if (firstByte == -1) {
         throw new IOException("Unexpected end of stream");
@@ -33,9 +42,9 @@ public static Object decode(InputStream in) throws IOException {
     if (firstByte == 'i') {
         return decodeInteger(in);
     } else if (firstByte == 'l') {
-        return decodeList(in);
+        return decodeList(in, depth);
     } else if (firstByte == 'd') {
-        return decodeDictionary(in);
+        return decodeDictionary(in, depth);
     } else if (firstByte >= '0' && firstByte <= '9') {
         return decodeString(in, firstByte);
     }
@@ -63,26 +72,32 @@ public static Object decode(InputStream in) throws IOException {
             lengthStr.append((char)b);
         }
 
-        int length = Integer.parseInt(lengthStr.toString());
-        byte[] data = new byte[length];
-        int bytesRead = 0;
-        while (bytesRead < length) {
-            int result = in.read(data, bytesRead, length - bytesRead);
-            if (result == -1) throw new IOException("Unexpected end in string data");
-            bytesRead += result;
+        int length;
+        try {
+            length = Integer.parseInt(lengthStr.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid string length: " + lengthStr);
+        }
+
+        // The length comes from the peer: check it against the input before allocating,
+        // other streams are read in chunks so a few bytes can't claim gigabytes
+        if (in instanceof ByteArrayInputStream && length > in.available()) {
+            throw new IOException("String length " + length + " exceeds the " + in.available() + " bytes left");
         }
+        byte[] data = in.readNBytes(length);
+        if (data.length < length) throw new IOException("Unexpected end in string data");
 
         return data;
     }
 
-    private static List<Object> decodeList(InputStream in) throws IOException {
+    private static List<Object> decodeList(InputStream in, int depth) throws IOException {
         List<Object> list = new ArrayList<>();
         in.mark(1);
         int b = in.read();
 
         while (b != 'e') {
             in.reset();
-            list.add(decode(in));
+            list.add(decode(in, depth + 1));
             in.mark(1);
             b = in.read();
         }
@@ -91,7 +106,7 @@ public static Object decode(InputStream in) throws IOException {
     }
 
 
-    private static Map<String, Object> decodeDictionary(InputStream in) throws IOException {
+    private static Map<String, Object> decodeDictionary(InputStream in, int depth) throws IOException {
         Map<String, Object> map = new LinkedHashMap<>();
 
         int b;
@@ -108,7 +123,7 @@ public static Object decode(InputStream in) throws IOException {
             byte[] keyBytes = decodeString(in, b);
             String key = new String(keyBytes, StandardCharsets.UTF_8);
 
-            Object value = decode(in);
+            Object value = decode(in, depth + 1);
             map.put(key, value);
         }
 
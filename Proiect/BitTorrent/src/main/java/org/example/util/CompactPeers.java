@@ -0,0 +1,58 @@
+package org.example.util;
+
+import java.io.ByteArrayOutputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact peer format used by PEX, the DHT and trackers
+ * - IPv4: 4-byte address + 2-byte port (big endian)
+ * - IPv6: 16-byte address + 2-byte port
+ */
+public class CompactPeers {
+    public static final int IPV4_LENGTH = 6;
+    public static final int IPV6_LENGTH = 18;
+
+    /**
+     * Encode the peers of one address family, the others are skipped
+     */
+    public static byte[] encode(Collection<InetSocketAddress> peers, boolean ipv6) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(peers.size() * (ipv6 ? IPV6_LENGTH : IPV4_LENGTH));
+        for (InetSocketAddress peer : peers) {
+            InetAddress address = peer.getAddress();
+            if (address == null || (ipv6 ? !(address instanceof Inet6Address) : !(address instanceof Inet4Address))) {
+                continue;
+            }
+            out.writeBytes(address.getAddress());
+            out.write((peer.getPort() >> 8) & 0xFF);
+            out.write(peer.getPort() & 0xFF);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a compact peer list, ignoring a trailing partial entry
+     */
+    public static List<InetSocketAddress> decode(byte[] data, boolean ipv6) {
+        int entry = ipv6 ? IPV6_LENGTH : IPV4_LENGTH;
+        List<InetSocketAddress> peers = new ArrayList<>(data.length / entry);
+        byte[] address = new byte[entry - 2];
+        for (int off = 0; off + entry <= data.length; off += entry) {
+            System.arraycopy(data, off, address, 0, address.length);
+            int port = ((data[off + entry - 2] & 0xFF) << 8) | (data[off + entry - 1] & 0xFF);
+            if (port == 0) continue;
+            try {
+                peers.add(new InetSocketAddress(InetAddress.getByAddress(address), port));
+            } catch (UnknownHostException e) {
+                // Only thrown for a wrong address length
+            }
+        }
+        return peers;
+    }
+}
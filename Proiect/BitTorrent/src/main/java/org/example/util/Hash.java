@@ -1,19 +1,68 @@
 package org.example.util;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class Hash {
+    public static final int SHA1_LENGTH = 20;
+
+    // MessageDigest is not thread-safe, so each thread keeps its own instance
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available", e);
+        }
+    });
+
     /**
      * Computes SHA-1 hash of byte array
      * BitTorrent uses SHA-1 for piece verification
      */
     public static byte[] sha1(byte[] data) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        return digest.digest(data);
+    }
+
+    /**
+     * Computes SHA-1 of data[offset, offset + length) into out[outOffset, outOffset + 20)
+     */
+    public static void sha1(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        digest.update(data, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    /**
+     * Computes SHA-1 of the remaining bytes of a buffer into out[outOffset, outOffset + 20)
+     * Works on heap, direct and mapped buffers without copying them into a new array.
+     * The buffer's position is left unchanged.
+     */
+    public static void sha1(ByteBuffer data, byte[] out, int outOffset) {
+        MessageDigest digest = SHA1.get();
+        digest.reset();
+        digest.update(data.duplicate());
+        finish(digest, out, outOffset);
+    }
+
+    /**
+     * Computes SHA-1 of the remaining bytes of a buffer
+     */
+    public static byte[] sha1(ByteBuffer data) {
+        byte[] out = new byte[SHA1_LENGTH];
+        sha1(data, out, 0);
+        return out;
+    }
+
+    private static void finish(MessageDigest digest, byte[] out, int outOffset) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            return digest.digest(data);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-1 not available", e);
+            digest.digest(out, outOffset, SHA1_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Output buffer too small for SHA-1", e);
         }
     }
 
@@ -0,0 +1,96 @@
+package org.example.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for many short-lived timeouts
+ * - schedule() and cancel() are O(1), no matter how many timers are pending
+ * - advance() expires the buckets of the ticks that passed; a timer further
+ *   out than one rotation stays in its bucket until its deadline comes round
+ * Meant for request deadlines, where almost every timer is cancelled before it fires.
+ */
+public class TimerWheel<T> {
+    private final long tickMs;
+    private final List<Set<Timeout<T>>> buckets;
+    private volatile long currentTick; // last tick processed by advance()
+
+    public TimerWheel(long tickMs, int wheelSize) {
+        this.tickMs = tickMs;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+        this.currentTick = System.currentTimeMillis() / tickMs;
+    }
+
+    /**
+     * Schedule an item to expire at an absolute time (ms)
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        // First tick at or after the deadline, never one that was already processed
+        long tick = Math.max((deadline + tickMs - 1) / tickMs, currentTick + 1);
+        Timeout<T> timeout = new Timeout<>(item, deadline, bucketFor(tick));
+        timeout.bucket.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Fire every timer whose deadline is at or before now
+     * Called from a single thread.
+     */
+    public void advance(long now, Consumer<T> onExpired) {
+        long target = now / tickMs;
+        // After a long pause, one pass over the wheel is enough
+        long from = Math.max(currentTick + 1, target - buckets.size() + 1);
+
+        for (long tick = from; tick <= target; tick++) {
+            Set<Timeout<T>> bucket = bucketFor(tick);
+            for (Timeout<T> timeout : bucket) {
+                if (timeout.deadline <= now && bucket.remove(timeout)) {
+                    onExpired.accept(timeout.item);
+                }
+            }
+        }
+        currentTick = target;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<Timeout<T>> bucket : buckets) size += bucket.size();
+        return size;
+    }
+
+    private Set<Timeout<T>> bucketFor(long tick) {
+        return buckets.get((int)(tick % buckets.size()));
+    }
+
+    /**
+     * A scheduled timer
+     */
+    public static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private final Set<Timeout<T>> bucket;
+
+        Timeout(T item, long deadline, Set<Timeout<T>> bucket) {
+            this.item = item;
+            this.deadline = deadline;
+            this.bucket = bucket;
+        }
+
+        /**
+         * Cancel the timer, true if it had not fired yet
+         */
+        public boolean cancel() {
+            return bucket.remove(this);
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Resume files: round trip, and corrupt files are ignored without leaving partial state
+ */
+class ResumeDataTest {
+    private static final int NUM_PIECES = 100;
+    private static final int BLOCKS_PER_PIECE = 16;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] infoHash() {
+        byte[] infoHash = new byte[20];
+        Arrays.fill(infoHash, (byte)7);
+        return infoHash;
+    }
+
+    private ResumeData resume(File file) {
+        return new ResumeData(file, infoHash(), NUM_PIECES, BLOCKS_PER_PIECE);
+    }
+
+    /**
+     * A version 2 file with pieces 3 and 70 durable and the given partial section
+     */
+    private File write(int partialCount, int index, int wordCount) throws IOException {
+        File file = dir.resolve("t.resume").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x42545253);
+            out.writeByte(2);
+            out.write(infoHash());
+            out.writeInt(NUM_PIECES);
+            out.writeLong(1L << 3);
+            out.writeLong(1L << (70 - 64));
+            out.writeInt(partialCount);
+            out.writeInt(index);
+            out.writeInt(wordCount);
+            for (int w = 0; w < Math.max(0, Math.min(wordCount, 4)); w++) out.writeLong(0b101);
+        }
+        return file;
+    }
+
+    @Test
+    void roundTrip() {
+        File file = dir.resolve("t.resume").toFile();
+        ResumeData saved = resume(file);
+        saved.setPartialPieces(Map.of(5, BitSet.valueOf(new long[] {0b11})));
+        saved.markDurable(List.of(1, 99));
+
+        ResumeData loaded = resume(file);
+        assertTrue(loaded.load());
+        assertTrue(loaded.getDurablePieces().get(1));
+        assertTrue(loaded.getDurablePieces().get(99));
+        assertEquals(2, loaded.getDurablePieces().count());
+        assertEquals(Map.of(5, BitSet.valueOf(new long[] {0b11})), loaded.getPartialPieces());
+    }
+
+    @Test
+    void validPartialSection() throws IOException {
+        ResumeData loaded = resume(write(1, 5, 1));
+        assertTrue(loaded.load());
+        assertEquals(Map.of(5, BitSet.valueOf(new long[] {0b101})), loaded.getPartialPieces());
+    }
+
+    @Test
+    void negativeWordCountIsIgnored() throws IOException {
+        ResumeData loaded = resume(write(1, 5, -1));
+        assertFalse(loaded.load());
+        assertEquals(0, loaded.getDurablePieces().count()); // nothing applied from the good prefix
+        assertTrue(loaded.getPartialPieces().isEmpty());
+    }
+
+    @Test
+    void hugeWordCountIsIgnored() throws IOException {
+        assertFalse(resume(write(1, 5, Integer.MAX_VALUE)).load());
+    }
+
+    @Test
+    void badPartialCountIsIgnored() throws IOException {
+        assertFalse(resume(write(-1, 5, 1)).load());
+        assertFalse(resume(write(NUM_PIECES + 1, 5, 1)).load());
+    }
+
+    @Test
+    void truncatedFileIsIgnored() throws IOException {
+        ResumeData loaded = resume(write(2, 5, 1)); // second record missing
+        assertFalse(loaded.load());
+        assertEquals(0, loaded.getDurablePieces().count());
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.core.protocol;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Allowed fast sets against the BEP 6 test vectors
+ */
+class AllowedFastTest {
+    private static final int NUM_PIECES = 1313;
+
+    private static byte[] infoHash() {
+        byte[] infoHash = new byte[20];
+        Arrays.fill(infoHash, (byte)0xAA);
+        return infoHash;
+    }
+
+    @Test
+    void sevenPieceSet() throws Exception {
+        List<Integer> allowed = new ArrayList<>(AllowedFast.generate(7, NUM_PIECES, infoHash(),
+                InetAddress.getByName("80.4.4.200")));
+        assertEquals(List.of(1059, 431, 808, 1217, 287, 376, 1188), allowed);
+    }
+
+    @Test
+    void ninePieceSet() throws Exception {
+        List<Integer> allowed = new ArrayList<>(AllowedFast.generate(9, NUM_PIECES, infoHash(),
+                InetAddress.getByName("80.4.4.200")));
+        assertEquals(List.of(1059, 431, 808, 1217, 287, 376, 1188, 353, 508), allowed);
+    }
+
+    @Test
+    void lastOctetIsMasked() throws Exception {
+        assertEquals(AllowedFast.generate(9, NUM_PIECES, infoHash(), InetAddress.getByName("80.4.4.200")),
+                AllowedFast.generate(9, NUM_PIECES, infoHash(), InetAddress.getByName("80.4.4.1")));
+    }
+
+    @Test
+    void ipv6PeersGetNoSet() throws Exception {
+        assertTrue(AllowedFast.generate(9, NUM_PIECES, infoHash(), InetAddress.getByName("2001:db8::1")).isEmpty());
+    }
+
+    @Test
+    void setIsCappedByPieceCount() throws Exception {
+        assertEquals(3, AllowedFast.generate(9, 3, infoHash(), InetAddress.getByName("80.4.4.200")).size());
+    }
+}
@@ -0,0 +1,72 @@
+package org.example.dht;
+
+import org.junit.jupiter.api.Test;
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bloom filter against the BEP 33 test vector
+ */
+class BloomFilterTest {
+    // 192.0.2.0 - 192.0.2.255 and 2001:DB8::0 - 2001:DB8::3E7 inserted into one filter
+    private static final String REFERENCE =
+            "F6C3F5EAA07FFD91BDE89F777F26FB2BFF37BDB8FB2BBAA2FD3DDDE7BACFFF75"
+            + "EE7CCBAEFE5EEDB1FBFAFF67F6ABFF5E43DDBCA3FD9B9FFDF4FFD3E9DFF12D1B"
+            + "DF59DB53DBE9FA5B7FF3B8FDFCDE1AFB8BEDD7BE2F3EE71EBBBFE93BCDEEFE14"
+            + "8246C2BC5DBFF7E7EFDCF24FD8DC7ADFFD8FFFDFDDFFF7A4BBEEDF5CB95CE81F"
+            + "C7FCFF1FF4FFFFDFE5F7FDCBB7FD79B3FA1FC77BFE07FFF905B7B7FFC7FEFEFF"
+            + "E0B8370BB0CD3F5B7F2BD93FEB4386CFDD6F7FD5BFAF2E9EBFFFFEECD67ADBF7"
+            + "C67F17EFD5D75EBA6FFEBA7FFF47A91EB1BFBB53E8ABFB5762ABE8FF237279BF"
+            + "EFBFEEF5FFC5FEBFDFE5ADFFADFEE1FB737FFFFBFD9F6AEFFEEE76B6FD8F72EF";
+
+    private static BloomFilter referenceFilter() throws Exception {
+        BloomFilter filter = new BloomFilter();
+        for (int i = 0; i < 256; i++) {
+            filter.add(InetAddress.getByAddress(new byte[] {(byte)192, 0, 2, (byte)i}));
+        }
+        for (int i = 0; i < 0x3E8; i++) {
+            byte[] ip = new byte[16];
+            ip[0] = 0x20;
+            ip[1] = 0x01;
+            ip[2] = 0x0D;
+            ip[3] = (byte)0xB8;
+            ip[14] = (byte)(i >> 8);
+            ip[15] = (byte)i;
+            filter.add(InetAddress.getByAddress(ip));
+        }
+        return filter;
+    }
+
+    @Test
+    void matchesReferenceBits() throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : referenceFilter().toBytes()) hex.append(String.format("%02X", b));
+        assertEquals(REFERENCE, hex.toString());
+    }
+
+    @Test
+    void estimatesReferenceSize() throws Exception {
+        // BEP 33 gives 1224.93
+        assertEquals(1225, referenceFilter().estimate());
+    }
+
+    @Test
+    void mergeIsUnion() throws Exception {
+        BloomFilter a = new BloomFilter();
+        BloomFilter b = new BloomFilter();
+        for (int i = 0; i < 100; i++) {
+            InetAddress address = InetAddress.getByAddress(new byte[] {10, 0, (byte)(i / 50), (byte)i});
+            (i % 2 == 0 ? a : b).add(address);
+        }
+        a.merge(b);
+        assertEquals(100, a.estimate(), 5);
+    }
+
+    @Test
+    void emptyAndMalformedFilters() {
+        assertTrue(new BloomFilter().isEmpty());
+        assertEquals(0, new BloomFilter().estimate());
+        assertNull(BloomFilter.fromBytes(new byte[BloomFilter.BYTES - 1]));
+    }
+}
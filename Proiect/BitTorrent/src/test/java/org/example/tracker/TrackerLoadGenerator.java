@@ -0,0 +1,110 @@
+package org.example.tracker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+/**
+ * Announce load against an embedded UdpTracker, for measuring its throughput
+ * Each client thread keeps a window of announces in flight on its own socket,
+ * spread over a fixed set of swarms. Lost datagrams are not retried: when no
+ * answer arrives for a while the outstanding ones are counted as lost.
+ * Run: mvn -B test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      "-Dexec.args=-cp %classpath org.example.tracker.TrackerLoadGenerator [clients] [announces per client]"
+ */
+public class TrackerLoadGenerator {
+    private static final int WINDOW = 256;       // announces in flight per client
+    private static final int SWARMS = 500;
+    private static final long LOSS_AFTER_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perClient = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        UdpTracker tracker = new UdpTracker(0);
+        tracker.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), tracker.getPort());
+
+        Random random = new Random(1);
+        byte[][] swarms = new byte[SWARMS][20];
+        for (byte[] infoHash : swarms) random.nextBytes(infoHash);
+
+        long[] answered = new long[clients];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> answered[client] = run(address, swarms, perClient, client), "load-" + c);
+            threads[c].start();
+        }
+        long total = 0;
+        for (int c = 0; c < clients; c++) {
+            threads[c].join();
+            total += answered[c];
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d of %d announces answered in %.2f s: %.0f/s%n",
+                total, (long)clients * perClient, seconds, total / seconds);
+        System.out.println("Tracker: " + tracker.getStats());
+        tracker.stop();
+    }
+
+    /**
+     * Connect, then announce count times; returns how many were answered
+     */
+    private static long run(InetSocketAddress tracker, byte[][] swarms, int count, int seed) {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(tracker);
+            ByteBuffer in = ByteBuffer.allocate(2048);
+            channel.write(ByteBuffer.allocate(16).putLong(UdpTracker.PROTOCOL_ID)
+                    .putInt(UdpTracker.ACTION_CONNECT).putInt(seed).flip());
+            channel.read(in);
+            long connectionId = in.getLong(8);
+            channel.configureBlocking(false);
+
+            Random random = new Random(seed);
+            byte[] peerId = new byte[20];
+            random.nextBytes(peerId);
+            ByteBuffer out = ByteBuffer.allocate(98);
+            int sent = 0;
+            int inFlight = 0;
+            long answered = 0;
+            long lastAnswer = System.currentTimeMillis();
+            while (sent < count || inFlight > 0) {
+                while (sent < count && inFlight < WINDOW) {
+                    out.clear();
+                    out.putLong(connectionId).putInt(UdpTracker.ACTION_ANNOUNCE).putInt(sent)
+                            .put(swarms[random.nextInt(swarms.length)]).put(peerId)
+                            .putLong(0)                                            // downloaded
+                            .putLong(random.nextInt(3) == 0 ? 0 : 1 << 20)         // left, a third are seeds
+                            .putLong(0)                                            // uploaded
+                            .putInt(UdpTracker.EVENT_NONE).putInt(0).putInt(0).putInt(50)
+                            .putShort((short)(1024 + random.nextInt(60000)));
+                    channel.write(out.flip());
+                    sent++;
+                    inFlight++;
+                }
+
+                in.clear();
+                if (channel.read(in) > 0) {
+                    answered++;
+                    inFlight--;
+                    lastAnswer = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - lastAnswer > LOSS_AFTER_MS) {
+                    inFlight = 0; // lost, go on with the rest
+                    lastAnswer = System.currentTimeMillis();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+            return answered;
+        } catch (IOException e) {
+            System.err.println("Client " + seed + " failed: " + e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.example.util;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decoding of peer-supplied bencode (DHT messages, extended handshakes, ut_pex)
+ */
+class BencodeTest {
+
+    private static Object decode(String s) throws IOException {
+        return Bencode.decode(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        Map<String, Object> message = Map.of("m", Map.of("ut_pex", 1L), "p", 6881L, "v", "x".getBytes());
+        Map<?, ?> decoded = (Map<?, ?>)Bencode.decode(Bencode.encode(message));
+        assertEquals(Map.of("ut_pex", 1L), decoded.get("m"));
+        assertEquals(6881L, decoded.get("p"));
+        assertArrayEquals("x".getBytes(), (byte[])decoded.get("v"));
+    }
+
+    @Test
+    void oversizedLengthPrefixIsRejected() {
+        // Claims 2 GB in a 16 byte message, must fail before allocating
+        IOException e = assertThrows(IOException.class, () -> decode("d1:m2147483000:x"));
+        assertTrue(e.getMessage().contains("exceeds"), e.getMessage());
+    }
+
+    @Test
+    void oversizedKeyAndListItemAreRejected() {
+        assertThrows(IOException.class, () -> decode("d2000000000:ae"));
+        assertThrows(IOException.class, () -> decode("l5:abce"));
+    }
+
+    @Test
+    void unparseableLengthIsAnIOException() {
+        assertThrows(IOException.class, () -> decode("99999999999:x"));
+    }
+
+    @Test
+    void deepNestingIsRejected() {
+        byte[] deep = new byte[64000];
+        Arrays.fill(deep, (byte)'l');
+        assertThrows(IOException.class, () -> Bencode.decode(deep));
+    }
+
+    @Test
+    void exactLengthIsAccepted() throws Exception {
+        assertArrayEquals("abc".getBytes(), (byte[])decode("3:abc"));
+        assertThrows(IOException.class, () -> decode("4:abc"));
+    }
+}
@@ -0,0 +1,74 @@
+package org.example.util;
+
+import org.example.core.TorrentFile;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Piece verification: the old path (new MessageDigest per call, copied piece
+ * hash) against per-thread digests compared in place, on heap arrays and on
+ * direct buffers like the ones the disk path hands out
+ * Run: mvn -B test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      "-Dexec.args=-cp %classpath org.openjdk.jmh.Main HashBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    @Param({"16384", "262144"})
+    public int size;
+
+    private TorrentFile torrent; // one piece of exactly size bytes
+    private byte[] data;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() throws IOException {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        direct = ByteBuffer.allocateDirect(size).put(data).flip();
+
+        File file = File.createTempFile("hash-bench", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        torrent = TorrentFile.createFromFile(file);
+    }
+
+    @Benchmark
+    public boolean oldArray() throws NoSuchAlgorithmException {
+        byte[] actual = MessageDigest.getInstance("SHA-1").digest(data);
+        return Arrays.equals(torrent.getPieceHash(0), actual);
+    }
+
+    @Benchmark
+    public boolean newArray() {
+        return torrent.verifyPiece(0, data, 0, data.length);
+    }
+
+    @Benchmark
+    public boolean oldDirect() throws NoSuchAlgorithmException {
+        // A direct buffer had to be copied out before it could be hashed
+        byte[] copy = new byte[direct.remaining()];
+        direct.duplicate().get(copy);
+        byte[] actual = MessageDigest.getInstance("SHA-1").digest(copy);
+        return Arrays.equals(torrent.getPieceHash(0), actual);
+    }
+
+    @Benchmark
+    public boolean newDirect() {
+        return torrent.verifyPiece(0, direct);
+    }
+}